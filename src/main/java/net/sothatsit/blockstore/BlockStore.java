@@ -2,6 +2,8 @@ package net.sothatsit.blockstore;
 
 import net.sothatsit.blockstore.chunkstore.ChunkLoc;
 import net.sothatsit.blockstore.chunkstore.ChunkManager;
+import net.sothatsit.blockstore.chunkstore.StorageScheduler;
+import net.sothatsit.blockstore.chunkstore.StoreCache;
 import org.bukkit.*;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
@@ -12,12 +14,14 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.block.*;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.player.PlayerTeleportEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 public class BlockStore extends JavaPlugin implements Listener {
@@ -25,14 +29,29 @@ public class BlockStore extends JavaPlugin implements Listener {
     private static BlockStore instance;
     private final Map<String, ChunkManager> managers = new ConcurrentHashMap<>();
     private final BlockStoreConfig blockStoreConfig = new BlockStoreConfig();
+    private final PredictivePreloader predictivePreloader = new PredictivePreloader();
+    private final MainThreadExecutor mainThreadExecutor = new MainThreadExecutor();
+    // The metadata keys of each plugin that are indexed in every world
+    private final Map<String, Set<String>> metaIndexes = new ConcurrentHashMap<>();
+    private StorageScheduler storageScheduler;
+    private StoreCache storeCache;
 
     @Override
     public void onEnable() {
         instance = this;
 
-        blockStoreConfig.reload();
+        blockStoreConfig.load();
+
+        storageScheduler = new StorageScheduler("BlockStore I/O",
+                blockStoreConfig.getIOThreads(), blockStoreConfig.getIOQueueSize());
+        storeCache = new StoreCache(blockStoreConfig.getStoreCacheSize());
+
+        // Preloading needs the scheduler and cache to have been created
+        blockStoreConfig.getPreloadStrategy().initialise();
 
         Bukkit.getPluginManager().registerEvents(this, this);
+        Bukkit.getScheduler().runTaskTimer(this, this::checkStoreMemory, 20, 20);
+        Bukkit.getScheduler().runTaskTimer(this, mainThreadExecutor::drain, 1, 1);
         
         getCommand("blockstore").setExecutor(new BlockStoreCommand());
         
@@ -60,17 +79,71 @@ public class BlockStore extends JavaPlugin implements Listener {
     
     @Override
     public void onDisable() {
+        // Complete anything that was waiting for the next tick
+        mainThreadExecutor.drain();
+
+        // Preloads are not needed any more, but queued loads and saves finish before everything that is left is saved
         for (ChunkManager manager : managers.values()) {
-            manager.saveAll();
-            manager.saveNames();
+            manager.cancelPreloads();
+        }
+
+        if(storageScheduler != null) {
+            storageScheduler.shutdown();
+        }
+
+        ForkJoinPool savePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        try {
+            for (ChunkManager manager : managers.values()) {
+                manager.saveAll(savePool);
+                manager.close();
+            }
+        } finally {
+            savePool.shutdown();
         }
 
         instance = null;
     }
 
+    private void checkStoreMemory() {
+        long used = 0;
+
+        for (ChunkManager manager : managers.values()) {
+            used += manager.updateStoreMemory();
+        }
+
+        long budget = blockStoreConfig.getMaxStoreMemory();
+
+        if(budget <= 0 || used <= budget)
+            return;
+
+        // Each world frees its share of the memory over the budget
+        double excess = used - budget;
+
+        for (ChunkManager manager : managers.values()) {
+            manager.evictStores((long) Math.ceil(excess * manager.getStoreMemory() / used));
+        }
+    }
+
     public BlockStoreConfig getBlockStoreConfig() {
         return blockStoreConfig;
     }
+
+    public PredictivePreloader getPredictivePreloader() {
+        return predictivePreloader;
+    }
+
+    public MainThreadExecutor getMainThreadExecutor() {
+        return mainThreadExecutor;
+    }
+
+    public StorageScheduler getStorageScheduler() {
+        return storageScheduler;
+    }
+
+    public StoreCache getStoreCache() {
+        return storeCache;
+    }
     
     public ChunkManager getManager(String world) {
         return managers.get(world);
@@ -81,7 +154,34 @@ public class BlockStore extends JavaPlugin implements Listener {
     }
 
     public ChunkManager getManager(World world) {
-        return managers.computeIfAbsent(world.getName(), key -> new ChunkManager(world));
+        // Looked up first so that the usual case does not allocate the lambda below
+        ChunkManager existing = managers.get(world.getName());
+
+        if(existing != null)
+            return existing;
+
+        return managers.computeIfAbsent(world.getName(), key -> {
+            ChunkManager manager = new ChunkManager(world);
+
+            metaIndexes.forEach((plugin, keys) -> {
+                for(String metaKey : keys) {
+                    manager.getMetaIndexes().add(plugin, metaKey);
+                }
+            });
+
+            return manager;
+        });
+    }
+
+    /**
+     * Indexes the values of a plugin's metadata key in every world, including worlds that are loaded later.
+     */
+    public void addMetaIndex(String plugin, String key) {
+        metaIndexes.computeIfAbsent(plugin, name -> ConcurrentHashMap.newKeySet()).add(key);
+
+        for(World world : Bukkit.getWorlds()) {
+            getManager(world).getMetaIndexes().add(plugin, key);
+        }
     }
     
     public Map<String, ChunkManager> getChunkManagers() {
@@ -182,25 +282,37 @@ public class BlockStore extends JavaPlugin implements Listener {
     @EventHandler
     public void onPlayerMove(PlayerMoveEvent event) {
         if(blockStoreConfig.getPreloadStrategy() == PreloadStrategy.CLOSE) {
-            ChunkLoc before = ChunkLoc.fromLocation(event.getFrom());
-            ChunkLoc after = ChunkLoc.fromLocation(event.getTo());
-
-            if(!before.equals(after)) {
-                getManager(event.getTo().getWorld()).preloadStoresAround(after);
-            }
+            onPlayerChangeStore(event.getPlayer(), event.getFrom(), event.getTo());
+        } else if(blockStoreConfig.getPreloadStrategy() == PreloadStrategy.PREDICTIVE) {
+            predictivePreloader.onMove(event.getPlayer(), event.getTo());
         }
     }
 
     @EventHandler
     public void onPlayerTeleport(PlayerTeleportEvent event) {
         if(blockStoreConfig.getPreloadStrategy() == PreloadStrategy.CLOSE) {
-            ChunkLoc before = ChunkLoc.fromLocation(event.getFrom());
-            ChunkLoc after = ChunkLoc.fromLocation(event.getTo());
+            onPlayerChangeStore(event.getPlayer(), event.getFrom(), event.getTo());
+        } else if(blockStoreConfig.getPreloadStrategy() == PreloadStrategy.PREDICTIVE) {
+            predictivePreloader.onTeleport(event.getPlayer(), event.getTo());
+        }
+    }
 
-            if(!before.equals(after)) {
-                getManager(event.getTo().getWorld()).preloadStoresAround(after);
-            }
+    private void onPlayerChangeStore(Player player, Location from, Location to) {
+        if(from.getWorld() == to.getWorld()
+                && (from.getBlockX() >> 4) == (to.getBlockX() >> 4)
+                && (from.getBlockY() >> 6) == (to.getBlockY() >> 6)
+                && (from.getBlockZ() >> 4) == (to.getBlockZ() >> 4))
+            return;
+
+        if(from.getWorld() != to.getWorld()) {
+            getManager(from.getWorld()).removePlayerStore(player.getUniqueId());
         }
+
+        ChunkLoc after = ChunkLoc.fromLocation(to);
+        ChunkManager manager = getManager(to.getWorld());
+
+        manager.preloadStoresAround(after);
+        manager.updatePlayerStore(player.getUniqueId(), after);
     }
 
     @EventHandler
@@ -213,8 +325,21 @@ public class BlockStore extends JavaPlugin implements Listener {
             ChunkManager manager = getManager(player.getWorld());
 
             manager.preloadStoresAround(chunkLoc);
+            manager.updatePlayerStore(player.getUniqueId(), chunkLoc);
+        } else if(blockStoreConfig.getPreloadStrategy() == PreloadStrategy.PREDICTIVE) {
+            Player player = event.getPlayer();
+
+            predictivePreloader.onTeleport(player, player.getLocation());
         }
     }
+
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        Player player = event.getPlayer();
+
+        predictivePreloader.remove(player.getUniqueId());
+        getManager(player.getWorld()).removePlayerStore(player.getUniqueId());
+    }
     
     public static BlockStore getInstance() {
         return instance;
@@ -1,6 +1,9 @@
 package net.sothatsit.blockstore;
 
+import java.lang.reflect.Array;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
 import net.sothatsit.blockstore.chunkstore.*;
@@ -8,6 +11,7 @@ import net.sothatsit.blockstore.util.Checks;
 import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.plugin.Plugin;
 
@@ -39,22 +43,48 @@ public class BlockStoreApi {
         return BlockStore.getInstance().getManager(location);
     }
 
-    private static ChunkStore getChunkStore(Location location) {
-        return getChunkManager(location).getChunkStore(location);
-    }
-
-    private static NameStore getNameStore(Location location) {
-        return getChunkManager(location).getNameStore();
+    private static ChunkManager getChunkManager(World world) {
+        return BlockStore.getInstance().getManager(world);
     }
 
     private static void retrieveChunkStore(Plugin callingPlugin, Location location, Consumer<ChunkStore> consumer) {
         getChunkManager(location).retrieveChunkStore(location, store -> {
-            Bukkit.getScheduler().runTask(callingPlugin, () -> {
-                consumer.accept(store);
+            getMainThreadExecutor().execute(() -> {
+                // Match the scheduler, which does not run the tasks of disabled plugins
+                if(callingPlugin.isEnabled())
+                    consumer.accept(store);
             });
         });
     }
 
+    private static CompletableFuture<ChunkStore> loadChunkStore(World world, ChunkLoc chunkLoc) {
+        CompletableFuture<ChunkStore> future = new CompletableFuture<>();
+
+        try {
+            getChunkManager(world).retrieveChunkStore(chunkLoc, future::complete);
+        } catch(RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    private static CompletableFuture<ChunkStore> loadChunkStore(Location location) {
+        return loadChunkStore(location.getWorld(), ChunkLoc.fromLocation(location));
+    }
+
+    private static int toBlockIndex(Location location) {
+        return BlockLoc.toBlockIndex(location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    /**
+     * Returns the executor that the futures returned by this API complete on when no executor is given.
+     * It runs tasks on the main thread, all in one task each tick.
+     */
+    public static Executor getMainThreadExecutor() {
+        return BlockStore.getInstance().getMainThreadExecutor();
+    }
+
     public static void preloadChunk(Block block) {
         preloadChunk(block.getChunk());
     }
@@ -69,12 +99,91 @@ public class BlockStoreApi {
         chunkManager.preloadChunk(chunk);
     }
 
+    /**
+     * Returns a batch to collect changes to the blocks of world in, to be applied together.
+     */
+    public static BlockStoreBatch batch(World world) {
+        return new BlockStoreBatch(getChunkManager(world));
+    }
+
     public static boolean isPlaced(Block block) {
-        return isPlaced(block.getLocation());
+        return isPlaced(block.getWorld(), block.getX(), block.getY(), block.getZ());
     }
     
     public static boolean isPlaced(Location location) {
-        return getChunkStore(location).isPlaced(location);
+        return isPlaced(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    public static boolean isPlaced(World world, int x, int y, int z) {
+        return getChunkManager(world).isPlaced(x, y, z);
+    }
+
+    /**
+     * Returns which blocks in the cuboid between the min and max coordinates, inclusive, were placed.
+     * Each chunk section in the cuboid is only looked up once, and sections that have never had a
+     * placed block are not loaded.
+     */
+    public static PlacedBitmap queryPlaced(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        PlacedBitmap bitmap = new PlacedBitmap(world, minX, minY, minZ, maxX, maxY, maxZ);
+        ChunkManager manager = getChunkManager(world);
+        long[] words = new long[BlockContainer.WORDS];
+
+        int minCY = Math.max(minY, 0) >> 6;
+        int maxCY = Math.min(maxY, world.getMaxHeight() - 1) >> 6;
+
+        for(int cx = minX >> 4; cx <= maxX >> 4; ++cx) {
+            for(int cz = minZ >> 4; cz <= maxZ >> 4; ++cz) {
+                for(int cy = minCY; cy <= maxCY; ++cy) {
+                    if(manager.copyPlacedWords(cx, cy, cz, words)) {
+                        bitmap.copySection(cx, cy, cz, words);
+                    }
+                }
+            }
+        }
+
+        return bitmap;
+    }
+
+    public static PlacedBitmap queryPlaced(Location min, Location max) {
+        Checks.ensureTrue(min.getWorld() == max.getWorld(), "min and max must be in the same world");
+
+        return queryPlaced(min.getWorld(),
+                min.getBlockX(), min.getBlockY(), min.getBlockZ(),
+                max.getBlockX(), max.getBlockY(), max.getBlockZ());
+    }
+
+    /**
+     * Returns the number of placed blocks, and of blocks with metadata, in chunk without loading any chunk stores.
+     * The first time the counts of a world are needed they may have to be counted in the background, and until
+     * then only the chunk sections loaded since the server started are counted, see isBlockCountsComplete.
+     */
+    public static BlockCounts getBlockCounts(Chunk chunk) {
+        return getChunkManager(chunk.getWorld()).getBlockCounts().getChunk(chunk.getX(), chunk.getZ());
+    }
+
+    /**
+     * Returns the block counts of the 16 by 64 by 16 block chunk section that contains location.
+     */
+    public static BlockCounts getSectionBlockCounts(Location location) {
+        return getChunkManager(location).getBlockCounts().getSection(ChunkLoc.fromLocation(location));
+    }
+
+    /**
+     * Returns the block counts of the region of 32 by 32 chunks, where chunk x and z are regionX * 32 and regionZ * 32.
+     */
+    public static BlockCounts getRegionBlockCounts(World world, int regionX, int regionZ) {
+        return getChunkManager(world).getBlockCounts().getRegion(regionX, regionZ);
+    }
+
+    /**
+     * Returns whether every chunk section in world has been counted, starting to count them if they have not.
+     */
+    public static boolean isBlockCountsComplete(World world) {
+        BlockCountSummary blockCounts = getChunkManager(world).getBlockCounts();
+
+        blockCounts.build();
+
+        return blockCounts.isComplete();
     }
 
     private static boolean areClassNamesSimilar(String s1, String s2) {
@@ -134,30 +243,117 @@ public class BlockStoreApi {
     }
 
     public static void retrieveIsPlaced(Plugin callingPlugin, Location location, Consumer<Boolean> consumer) {
+        int blockIndex = toBlockIndex(location);
+
         retrieveChunkStore(callingPlugin, location, chunkStore -> {
-            consumer.accept(isPlaced(location));
+            consumer.accept(chunkStore.isPlaced(blockIndex));
         });
     }
 
+    public static CompletableFuture<Boolean> isPlacedAsync(Block block) {
+        return isPlacedAsync(block.getLocation(), getMainThreadExecutor());
+    }
+
+    public static CompletableFuture<Boolean> isPlacedAsync(Block block, Executor executor) {
+        return isPlacedAsync(block.getLocation(), executor);
+    }
+
+    public static CompletableFuture<Boolean> isPlacedAsync(Location location) {
+        return isPlacedAsync(location, getMainThreadExecutor());
+    }
+
+    /**
+     * Returns a future that completes on executor with whether the block was placed, once its chunk store is loaded.
+     */
+    public static CompletableFuture<Boolean> isPlacedAsync(Location location, Executor executor) {
+        Checks.ensureNonNull(executor, "executor");
+
+        int blockIndex = toBlockIndex(location);
+
+        return loadChunkStore(location).thenApplyAsync(store -> store.isPlaced(blockIndex), executor);
+    }
+
+    public static CompletableFuture<Map<Location, Boolean>> isPlacedAll(Collection<Location> locations) {
+        return isPlacedAll(locations, getMainThreadExecutor());
+    }
+
+    /**
+     * Returns a future that completes on executor with whether each block was placed, once all of their chunk
+     * stores are loaded. Each chunk store is only retrieved once, and they are all loaded at the same time.
+     */
+    public static CompletableFuture<Map<Location, Boolean>> isPlacedAll(Collection<Location> locations,
+                                                                        Executor executor) {
+        Checks.ensureNonNull(locations, "locations");
+        Checks.ensureNonNull(executor, "executor");
+
+        List<Location> blocks = new ArrayList<>(locations);
+        Map<World, Map<ChunkLoc, CompletableFuture<ChunkStore>>> requested = new HashMap<>();
+        List<CompletableFuture<ChunkStore>> loads = new ArrayList<>();
+
+        for(Location location : blocks) {
+            World world = location.getWorld();
+            Map<ChunkLoc, CompletableFuture<ChunkStore>> worldLoads =
+                    requested.computeIfAbsent(world, key -> new HashMap<>());
+
+            worldLoads.computeIfAbsent(ChunkLoc.fromLocation(location), chunkLoc -> {
+                CompletableFuture<ChunkStore> load = loadChunkStore(world, chunkLoc);
+
+                loads.add(load);
+                return load;
+            });
+        }
+
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[0])).thenApplyAsync(ignored -> {
+            Map<Location, Boolean> placed = new LinkedHashMap<>();
+
+            for(Location location : blocks) {
+                ChunkStore store = requested.get(location.getWorld()).get(ChunkLoc.fromLocation(location)).join();
+
+                placed.put(location, store.isPlaced(toBlockIndex(location)));
+            }
+
+            return placed;
+        }, executor);
+    }
+
     public static void setPlaced(Block block, boolean placed) {
-        setPlaced(block.getLocation(), placed);
+        setPlaced(block.getWorld(), block.getX(), block.getY(), block.getZ(), placed);
     }
     
     public static void setPlaced(Location location, boolean placed) {
-        getChunkStore(location).setPlaced(location, placed);
+        setPlaced(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(), placed);
+    }
+
+    public static void setPlaced(World world, int x, int y, int z, boolean placed) {
+        getChunkManager(world).setPlaced(x, y, z, placed);
     }
 
     public static Object getBlockMeta(Block block, Plugin plugin, String key) {
-        return getBlockMeta(block.getLocation(), plugin, key);
+        return getBlockMeta(block.getWorld(), block.getX(), block.getY(), block.getZ(), plugin, key);
     }
     
     public static Object getBlockMeta(Location location, Plugin plugin, String key) {
-        NameStore names = getNameStore(location);
+        return getBlockMeta(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(),
+                plugin, key);
+    }
+
+    public static Object getBlockMeta(World world, int x, int y, int z, Plugin plugin, String key) {
+        ChunkManager manager = getChunkManager(world);
+        NameStore names = manager.getNameStore();
 
         int pluginId = names.toId(plugin.getName(), false);
         int keyId = names.toId(key, false);
 
-        return getChunkStore(location).getMetaValue(location, pluginId, keyId);
+        return manager.getMetaValue(x, y, z, pluginId, keyId);
+    }
+
+    private static Object getBlockMeta(ChunkStore store, int blockIndex, Plugin plugin, String key) {
+        NameStore names = getChunkManager(store.getWorld()).getNameStore();
+
+        int pluginId = names.toId(plugin.getName(), false);
+        int keyId = names.toId(key, false);
+
+        return store.getMetaValue(blockIndex, pluginId, keyId);
     }
 
     @Deprecated
@@ -179,21 +375,52 @@ public class BlockStoreApi {
     public static void retrieveBlockMeta(Plugin callingPlugin, Location location, Plugin plugin, String key,
                                          Consumer<Object> consumer) {
 
+        int blockIndex = toBlockIndex(location);
+
         retrieveChunkStore(callingPlugin, location, store -> {
-            consumer.accept(getBlockMeta(location, plugin, key));
+            consumer.accept(getBlockMeta(store, blockIndex, plugin, key));
         });
     }
 
+    public static CompletableFuture<Object> getBlockMetaAsync(Location location, Plugin plugin, String key) {
+        return getBlockMetaAsync(location, plugin, key, getMainThreadExecutor());
+    }
+
+    public static CompletableFuture<Object> getBlockMetaAsync(Location location, Plugin plugin, String key,
+                                                              Executor executor) {
+        Checks.ensureNonNull(executor, "executor");
+
+        int blockIndex = toBlockIndex(location);
+
+        return loadChunkStore(location).thenApplyAsync(store -> getBlockMeta(store, blockIndex, plugin, key), executor);
+    }
+
     public static Map<String, Object> getAllBlockMeta(Block block, Plugin plugin) {
-        return getAllBlockMeta(block.getLocation(), plugin);
+        return getAllBlockMeta(block.getWorld(), block.getX(), block.getY(), block.getZ(), plugin);
     }
 
     public static Map<String, Object> getAllBlockMeta(Location location, Plugin plugin) {
-        NameStore names = getNameStore(location);
+        return getAllBlockMeta(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(),
+                plugin);
+    }
+
+    public static Map<String, Object> getAllBlockMeta(World world, int x, int y, int z, Plugin plugin) {
+        ChunkManager manager = getChunkManager(world);
+        NameStore names = manager.getNameStore();
 
         int pluginId = names.toId(plugin.getName(), false);
 
-        Map<Integer, Object> metaValues = getChunkStore(location).getMetaValues(location, pluginId);
+        Map<Integer, Object> metaValues = manager.getMetaValues(x, y, z, pluginId);
+
+        return names.keysFromId(metaValues);
+    }
+
+    private static Map<String, Object> getAllBlockMeta(ChunkStore store, int blockIndex, Plugin plugin) {
+        NameStore names = getChunkManager(store.getWorld()).getNameStore();
+
+        int pluginId = names.toId(plugin.getName(), false);
+
+        Map<Integer, Object> metaValues = store.getMetaValues(blockIndex, pluginId);
 
         return names.keysFromId(metaValues);
     }
@@ -217,21 +444,46 @@ public class BlockStoreApi {
     public static void retrieveAllBlockMeta(Plugin callingPlugin, Location location, Plugin plugin,
                                             Consumer<Map<String, Object>> consumer) {
 
+        int blockIndex = toBlockIndex(location);
+
         retrieveChunkStore(callingPlugin, location, store -> {
-            consumer.accept(getAllBlockMeta(location, plugin));
+            consumer.accept(getAllBlockMeta(store, blockIndex, plugin));
         });
     }
 
+    public static CompletableFuture<Map<String, Object>> getAllBlockMetaAsync(Location location, Plugin plugin) {
+        return getAllBlockMetaAsync(location, plugin, getMainThreadExecutor());
+    }
+
+    public static CompletableFuture<Map<String, Object>> getAllBlockMetaAsync(Location location, Plugin plugin,
+                                                                              Executor executor) {
+        Checks.ensureNonNull(executor, "executor");
+
+        int blockIndex = toBlockIndex(location);
+
+        return loadChunkStore(location).thenApplyAsync(store -> getAllBlockMeta(store, blockIndex, plugin), executor);
+    }
+
     public static Map<String, Map<String, Object>> getAllBlockMeta(Block block) {
-        return getAllBlockMeta(block.getLocation());
+        return getAllBlockMeta(block.getWorld(), block.getX(), block.getY(), block.getZ());
     }
 
     public static Map<String, Map<String, Object>> getAllBlockMeta(Location location) {
-        NameStore names = getNameStore(location);
+        return getAllBlockMeta(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
 
-        Map<Integer, Map<Integer, Object>> metaValues = getChunkStore(location).getMetaValues(location);
+    public static Map<String, Map<String, Object>> getAllBlockMeta(World world, int x, int y, int z) {
+        ChunkManager manager = getChunkManager(world);
 
-        return names.deepKeysFromId(metaValues);
+        Map<Integer, Map<Integer, Object>> metaValues = manager.getMetaValues(x, y, z);
+
+        return manager.getNameStore().deepKeysFromId(metaValues);
+    }
+
+    private static Map<String, Map<String, Object>> getAllBlockMeta(ChunkStore store, int blockIndex) {
+        Map<Integer, Map<Integer, Object>> metaValues = store.getMetaValues(blockIndex);
+
+        return getChunkManager(store.getWorld()).getNameStore().deepKeysFromId(metaValues);
     }
 
     @Deprecated
@@ -253,19 +505,38 @@ public class BlockStoreApi {
     public static void retrieveAllBlockMeta(Plugin callingPlugin, Location location,
                                             Consumer<Map<String, Map<String, Object>>> consumer) {
 
+        int blockIndex = toBlockIndex(location);
+
         retrieveChunkStore(callingPlugin, location, store -> {
-            consumer.accept(getAllBlockMeta(location));
+            consumer.accept(getAllBlockMeta(store, blockIndex));
         });
     }
 
+    public static CompletableFuture<Map<String, Map<String, Object>>> getAllBlockMetaAsync(Location location) {
+        return getAllBlockMetaAsync(location, getMainThreadExecutor());
+    }
+
+    public static CompletableFuture<Map<String, Map<String, Object>>> getAllBlockMetaAsync(Location location,
+                                                                                           Executor executor) {
+        Checks.ensureNonNull(executor, "executor");
+
+        int blockIndex = toBlockIndex(location);
+
+        return loadChunkStore(location).thenApplyAsync(store -> getAllBlockMeta(store, blockIndex), executor);
+    }
+
     public static boolean containsBlockMeta(Block block, Plugin plugin, String key) {
-        return containsBlockMeta(block.getLocation(), plugin, key);
+        return getBlockMeta(block, plugin, key) != null;
     }
     
     public static boolean containsBlockMeta(Location location, Plugin plugin, String key) {
         return getBlockMeta(location, plugin, key) != null;
     }
 
+    public static boolean containsBlockMeta(World world, int x, int y, int z, Plugin plugin, String key) {
+        return getBlockMeta(world, x, y, z, plugin, key) != null;
+    }
+
     @Deprecated
     public static void retrieveContainsBlockMeta(Block block, Plugin plugin, String key, Consumer<Boolean> consumer) {
         retrieveContainsBlockMeta(guessCallingPlugin(), block.getLocation(), plugin, key, consumer);
@@ -290,11 +561,30 @@ public class BlockStoreApi {
         });
     }
 
+    public static CompletableFuture<Boolean> containsBlockMetaAsync(Location location, Plugin plugin, String key) {
+        return containsBlockMetaAsync(location, plugin, key, getMainThreadExecutor());
+    }
+
+    public static CompletableFuture<Boolean> containsBlockMetaAsync(Location location, Plugin plugin, String key,
+                                                                    Executor executor) {
+        Checks.ensureNonNull(executor, "executor");
+
+        int blockIndex = toBlockIndex(location);
+
+        return loadChunkStore(location).thenApplyAsync(store -> getBlockMeta(store, blockIndex, plugin, key) != null,
+                executor);
+    }
+
     public static void setBlockMeta(Block block, Plugin plugin, String key, Object value) {
-        setBlockMeta(block.getLocation(), plugin, key, value);
+        setBlockMeta(block.getWorld(), block.getX(), block.getY(), block.getZ(), plugin, key, value);
     }
     
     public static void setBlockMeta(Location location, Plugin plugin, String key, Object value) {
+        setBlockMeta(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(),
+                plugin, key, value);
+    }
+
+    static void checkMetaValue(Object value) {
         Checks.ensureNonNull(value, "value");
 
         Class<?> baseType = value.getClass();
@@ -305,25 +595,86 @@ public class BlockStoreApi {
         Checks.ensureTrue(classWhitelist.contains(baseType),
                 "value must be a value or array of type String, boolean, byte, short, int, long, float or double");
 
-        NameStore names = getNameStore(location);
+        int length = (value.getClass().isArray() ? Array.getLength(value)
+                : value instanceof String ? ((String) value).length() : 0);
+
+        Checks.ensureTrue(length <= ValueCodec.MAX_LENGTH,
+                "arrays and strings must not be longer than " + ValueCodec.MAX_LENGTH);
+    }
+
+    public static void setBlockMeta(World world, int x, int y, int z, Plugin plugin, String key, Object value) {
+        checkMetaValue(value);
+
+        ChunkManager manager = getChunkManager(world);
+        NameStore names = manager.getNameStore();
 
         int pluginId = names.toId(plugin.getName(), true);
         int keyId = names.toId(key, true);
 
-        getChunkStore(location).setMetaValue(location, pluginId, keyId, value);
+        manager.setMetaValue(x, y, z, pluginId, keyId, value);
+    }
+
+    /**
+     * Starts indexing the blocks in every world by their value of the plugin's metadata key, so that
+     * getBlocksWithMeta can find them without loading any chunk stores. Indexes are saved, and are built
+     * in the background the first time they are added. This should be called each time the plugin enables.
+     */
+    public static void addMetaIndex(Plugin plugin, String key) {
+        Checks.ensureNonNull(plugin, "plugin");
+        Checks.ensureNonNull(key, "key");
+
+        BlockStore.getInstance().addMetaIndex(plugin.getName(), key);
+    }
+
+    /**
+     * Returns whether the index of the plugin's metadata key in world has finished building,
+     * before which getBlocksWithMeta only finds some of the blocks.
+     */
+    public static boolean isMetaIndexComplete(World world, Plugin plugin, String key) {
+        MetaIndex index = getChunkManager(world).getMetaIndexes().get(plugin.getName(), key);
+
+        return index != null && index.isComplete();
+    }
+
+    /**
+     * Returns the location of every block in world with the value for the plugin's metadata key.
+     * The key must have been indexed using addMetaIndex. Values are compared using equals.
+     */
+    public static Set<Location> getBlocksWithMeta(World world, Plugin plugin, String key, Object value) {
+        Checks.ensureNonNull(value, "value");
+
+        MetaIndex index = getChunkManager(world).getMetaIndexes().get(plugin.getName(), key);
+
+        if(index == null)
+            throw new IllegalStateException("The metadata key " + key + " of " + plugin.getName() + " is not indexed");
+
+        Set<Location> locations = new HashSet<>();
+
+        for(long position : index.getBlocks(value)) {
+            locations.add(new Location(world,
+                    MetaIndex.unpackX(position), MetaIndex.unpackY(position), MetaIndex.unpackZ(position)));
+        }
+
+        return locations;
     }
 
     public static void removeBlockMeta(Block block, Plugin plugin, String key) {
-        removeBlockMeta(block.getLocation(), plugin, key);
+        removeBlockMeta(block.getWorld(), block.getX(), block.getY(), block.getZ(), plugin, key);
     }
     
     public static void removeBlockMeta(Location location, Plugin plugin, String key) {
-        NameStore names = getNameStore(location);
+        removeBlockMeta(location.getWorld(), location.getBlockX(), location.getBlockY(), location.getBlockZ(),
+                plugin, key);
+    }
+
+    public static void removeBlockMeta(World world, int x, int y, int z, Plugin plugin, String key) {
+        ChunkManager manager = getChunkManager(world);
+        NameStore names = manager.getNameStore();
 
         int pluginId = names.toId(plugin.getName(), false);
         int keyId = names.toId(key, false);
 
-        getChunkStore(location).removeMetaValue(location, pluginId, keyId);
+        manager.removeMetaValue(x, y, z, pluginId, keyId);
     }
     
 }
@@ -0,0 +1,132 @@
+package net.sothatsit.blockstore;
+
+import net.sothatsit.blockstore.chunkstore.BlockLoc;
+import net.sothatsit.blockstore.chunkstore.ChunkLoc;
+import net.sothatsit.blockstore.chunkstore.ChunkManager;
+import net.sothatsit.blockstore.chunkstore.NameStore;
+import net.sothatsit.blockstore.chunkstore.StoreChanges;
+import net.sothatsit.blockstore.util.Checks;
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.plugin.Plugin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects changes to the blocks of one world, grouped by chunk section, to be applied together with apply.
+ * Each chunk section's changes are applied under one lock, and as one queued change if its store is still loading.
+ * Batches are not thread safe, and should only be used by one thread at a time.
+ */
+public class BlockStoreBatch {
+
+    private final ChunkManager manager;
+    private final Map<Long, StoreChanges> changes = new LinkedHashMap<>();
+    private int size = 0;
+
+    // Consecutive changes are usually to the same chunk section
+    private long lastKey;
+    private StoreChanges lastChanges;
+
+    BlockStoreBatch(ChunkManager manager) {
+        Checks.ensureNonNull(manager, "manager");
+
+        this.manager = manager;
+    }
+
+    private StoreChanges getChanges(int x, int y, int z) {
+        Checks.ensureTrue(ChunkLoc.exists(manager.getWorld(), y >> 6), "y is outside of the world");
+
+        long key = ChunkLoc.pack(x >> 4, y >> 6, z >> 4);
+
+        if(lastChanges == null || lastKey != key) {
+            lastKey = key;
+            lastChanges = changes.computeIfAbsent(key, packed -> new StoreChanges());
+        }
+
+        size += 1;
+
+        return lastChanges;
+    }
+
+    public BlockStoreBatch setPlaced(Block block, boolean placed) {
+        return setPlaced(block.getX(), block.getY(), block.getZ(), placed);
+    }
+
+    public BlockStoreBatch setPlaced(Location location, boolean placed) {
+        return setPlaced(location.getBlockX(), location.getBlockY(), location.getBlockZ(), placed);
+    }
+
+    public BlockStoreBatch setPlaced(int x, int y, int z, boolean placed) {
+        getChanges(x, y, z).setPlaced(BlockLoc.toBlockIndex(x, y, z), placed);
+
+        return this;
+    }
+
+    public BlockStoreBatch setBlockMeta(Block block, Plugin plugin, String key, Object value) {
+        return setBlockMeta(block.getX(), block.getY(), block.getZ(), plugin, key, value);
+    }
+
+    public BlockStoreBatch setBlockMeta(Location location, Plugin plugin, String key, Object value) {
+        return setBlockMeta(location.getBlockX(), location.getBlockY(), location.getBlockZ(), plugin, key, value);
+    }
+
+    public BlockStoreBatch setBlockMeta(int x, int y, int z, Plugin plugin, String key, Object value) {
+        BlockStoreApi.checkMetaValue(value);
+
+        NameStore names = manager.getNameStore();
+
+        int pluginId = names.toId(plugin.getName(), true);
+        int keyId = names.toId(key, true);
+
+        getChanges(x, y, z).setMetaValue(BlockLoc.toBlockIndex(x, y, z), pluginId, keyId, value);
+
+        return this;
+    }
+
+    public BlockStoreBatch removeBlockMeta(Block block, Plugin plugin, String key) {
+        return removeBlockMeta(block.getX(), block.getY(), block.getZ(), plugin, key);
+    }
+
+    public BlockStoreBatch removeBlockMeta(Location location, Plugin plugin, String key) {
+        return removeBlockMeta(location.getBlockX(), location.getBlockY(), location.getBlockZ(), plugin, key);
+    }
+
+    public BlockStoreBatch removeBlockMeta(int x, int y, int z, Plugin plugin, String key) {
+        NameStore names = manager.getNameStore();
+
+        int pluginId = names.toId(plugin.getName(), false);
+        int keyId = names.toId(key, false);
+
+        // No block can have a value for a name that has never been used
+        if(pluginId < 0 || keyId < 0)
+            return this;
+
+        getChanges(x, y, z).removeMetaValue(BlockLoc.toBlockIndex(x, y, z), pluginId, keyId);
+
+        return this;
+    }
+
+    /**
+     * Returns the number of changes waiting to be applied.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Applies every change, one chunk section at a time, and empties this batch so it can be used again.
+     */
+    public void apply() {
+        for(Map.Entry<Long, StoreChanges> entry : changes.entrySet()) {
+            ChunkLoc chunkLoc = ChunkLoc.unpack(entry.getKey());
+
+            manager.applyChanges(chunkLoc.x, chunkLoc.y, chunkLoc.z, entry.getValue());
+        }
+
+        changes.clear();
+        size = 0;
+        lastChanges = null;
+    }
+
+}
@@ -109,11 +109,61 @@ public class BlockStoreCommand implements CommandExecutor {
 
             for (ChunkManager manager : BlockStore.getInstance().getChunkManagers().values()) {
                 String name = manager.getWorld().getName();
-                int stores = manager.getChunkStores().size();
+                int stores = manager.getLoadedStores().size();
                 int chunks = manager.getWorld().getLoadedChunks().length;
-                sender.sendMessage(colour("   &e" + name + ": &f" + stores + " stores loaded (" + chunks + " chunks loaded)"));
+                String memory = String.format("%.1f", manager.getStoreMemory() / (1024.0 * 1024.0));
+                String hitRate = String.format("%.1f", manager.getHitRate() * 100);
+
+                int saved = manager.getStoreIndex().size();
+
+                sender.sendMessage(colour("   &e" + name + ": &f" + stores + " stores loaded (" + chunks + " chunks loaded), "
+                        + saved + " saved"));
+                sender.sendMessage(colour("     &f~" + memory + "MB, " + hitRate + "% hits (" + manager.getHits() + " hits, "
+                        + manager.getMisses() + " misses), " + manager.getEvictions() + " evicted, "
+                        + manager.getPendingPreloads() + " preloads waiting"));
+            }
+
+            long maxMemory = BlockStore.getInstance().getBlockStoreConfig().getMaxStoreMemory();
+
+            if(maxMemory > 0) {
+                sender.sendMessage(colour("   &ememory limit: &f" + (maxMemory / (1024 * 1024)) + "MB"));
+            }
+
+            StoreCache cache = BlockStore.getInstance().getStoreCache();
+
+            if(cache.isEnabled()) {
+                String cacheMemory = String.format("%.1f", cache.getBytes() / (1024.0 * 1024.0));
+                String maxCacheMemory = String.format("%.1f", cache.getMaxBytes() / (1024.0 * 1024.0));
+
+                sender.sendMessage(colour("&6BlockStore Cache&8: &f" + cache.getSize() + " stores, " + cacheMemory
+                        + "MB of " + maxCacheMemory + "MB (" + cache.getDirtyCount() + " unsaved), "
+                        + cache.getHits() + " hits, " + cache.getMisses() + " misses, "
+                        + cache.getWriteBacks() + " written back"));
+            }
+
+            StorageScheduler scheduler = BlockStore.getInstance().getStorageScheduler();
+
+            sender.sendMessage(colour("&6BlockStore I/O &8(&7" + scheduler.getThreadCount() + " threads&8)&8:"));
+
+            for (StorageScheduler.Priority priority : StorageScheduler.Priority.values()) {
+                String name = priority.name().toLowerCase();
+                int queued = scheduler.getQueued(priority);
+                long completed = scheduler.getCompleted(priority);
+                long rejected = scheduler.getRejected(priority);
+                long cancelled = scheduler.getCancelled(priority);
+                String averageWait = String.format("%.1f", scheduler.getAverageWaitMillis(priority));
+                String maxWait = String.format("%.1f", scheduler.getMaxWaitMillis(priority));
+
+                sender.sendMessage(colour("   &e" + name + ": &f" + queued + " queued, " + completed + " done, "
+                        + rejected + " rejected, " + cancelled + " cancelled (wait " + averageWait + "ms avg, " + maxWait + "ms max)"));
             }
 
+            String averageAwait = String.format("%.2f", LoadingChunkStore.getAverageAwaitMillis());
+            String maxAwait = String.format("%.2f", LoadingChunkStore.getMaxAwaitMillis());
+
+            sender.sendMessage(colour("   &ewaiting for loads: &f" + LoadingChunkStore.getAwaitCount() + " times ("
+                    + averageAwait + "ms avg, " + maxAwait + "ms max)"));
+
             return true;
         }
 
@@ -7,9 +7,20 @@ import java.util.logging.Logger;
 
 public class BlockStoreConfig {
 
+    private static final long DEFAULT_STORE_CACHE_SIZE = 64 * 1024 * 1024;
+
     private PreloadStrategy preloadStrategy = PreloadStrategy.CLOSE;
     private double unloadTime = 60;
     private boolean hookWorldEdit = true;
+    private int ioThreads = 2;
+    private int ioQueueSize = 1024;
+    private int checkpointInterval = 300;
+    private int preloadBudget = 64;
+    private int warmStores = 512;
+    private long maxStoreMemory = 0;
+    private long storeCacheSize = DEFAULT_STORE_CACHE_SIZE;
+    private double predictiveLookahead = 3;
+    private double predictiveSpread = 0.25;
 
     public PreloadStrategy getPreloadStrategy() {
         return preloadStrategy;
@@ -27,7 +38,68 @@ public class BlockStoreConfig {
         return hookWorldEdit;
     }
 
+    public int getIOThreads() {
+        return ioThreads;
+    }
+
+    public int getIOQueueSize() {
+        return ioQueueSize;
+    }
+
+    public int getPreloadBudget() {
+        return preloadBudget;
+    }
+
+    /**
+     * Returns the number of the most used stores of each world to remember when the server stops and
+     * preload when it starts again, or 0 if none should be.
+     */
+    public int getWarmStores() {
+        return warmStores;
+    }
+
+    public long getCheckpointIntervalTicks() {
+        return checkpointInterval * 20L;
+    }
+
+    /**
+     * Returns the maximum number of bytes of memory loaded stores should use, or 0 if there is no limit.
+     */
+    public long getMaxStoreMemory() {
+        return maxStoreMemory;
+    }
+
+    /**
+     * Returns the maximum number of bytes of compressed, recently unloaded stores to keep in memory.
+     */
+    public long getStoreCacheSize() {
+        return storeCacheSize;
+    }
+
+    /**
+     * Returns how many seconds ahead of each player to preload using the PREDICTIVE preload strategy.
+     */
+    public double getPredictiveLookahead() {
+        return predictiveLookahead;
+    }
+
+    /**
+     * Returns how many blocks wider the cone of preloaded stores gets for each block ahead of a player.
+     */
+    public double getPredictiveSpread() {
+        return predictiveSpread;
+    }
+
     public void reload() {
+        load();
+
+        this.preloadStrategy.initialise();
+    }
+
+    /**
+     * Reads the config without initialising the preload strategy.
+     */
+    public void load() {
         getLogger().info("Reloading config...");
 
         BlockStore plugin = BlockStore.getInstance();
@@ -38,9 +110,21 @@ public class BlockStoreConfig {
         FileConfiguration config = plugin.getConfig();
 
         this.preloadStrategy = loadPreloadStrategy(config);
-        this.preloadStrategy.initialise();
         this.unloadTime = loadUnloadTime(config);
         this.hookWorldEdit = config.getBoolean("hook-world-edit", true);
+        this.ioThreads = loadPositiveInt(config, "io-threads", 2);
+        this.ioQueueSize = loadPositiveInt(config, "io-queue-size", 1024);
+        this.checkpointInterval = loadPositiveInt(config, "checkpoint-interval", 300);
+        this.preloadBudget = loadPositiveInt(config, "preload-budget", 64);
+        this.warmStores = loadNonNegativeInt(config, "warm-stores", 512);
+        this.maxStoreMemory = loadMemorySize(config, "max-store-memory", 0);
+        this.storeCacheSize = loadMemorySize(config, "store-cache-size", DEFAULT_STORE_CACHE_SIZE);
+        this.predictiveLookahead = loadNonNegativeDouble(config, "predictive-lookahead", 3);
+        this.predictiveSpread = loadNonNegativeDouble(config, "predictive-spread", 0.25);
+
+        if(maxStoreMemory > 0) {
+            info("Limiting loaded chunk stores to " + formatMemorySize(maxStoreMemory) + " of memory");
+        }
 
         getLogger().info("Config reloaded.");
     }
@@ -48,7 +132,7 @@ public class BlockStoreConfig {
     private PreloadStrategy loadPreloadStrategy(ConfigurationSection config) {
         if(!config.isSet("preload")) {
             error("'preload' not set."
-                    + " Should be set to 'all', 'close' or 'none'."
+                    + " Should be set to 'all', 'close', 'predictive' or 'none'."
                     + " Defaulting to 'close'.");
 
             return PreloadStrategy.CLOSE;
@@ -56,7 +140,7 @@ public class BlockStoreConfig {
 
         if(!config.isString("preload")) {
             error("'preload' not text."
-                    + " Should be set to 'all', 'close' or 'none'."
+                    + " Should be set to 'all', 'close', 'predictive' or 'none'."
                     + " Defaulting to 'close'.");
 
             return PreloadStrategy.CLOSE;
@@ -67,7 +151,7 @@ public class BlockStoreConfig {
 
         if(strategy == null) {
             error("unknown preload value '" + preload + "'."
-                    + " Should be set to 'all', 'close' or 'none'."
+                    + " Should be set to 'all', 'close', 'predictive' or 'none'."
                     + " Defaulting to 'close'.");
 
             return PreloadStrategy.CLOSE;
@@ -107,6 +191,121 @@ public class BlockStoreConfig {
         return unloadTime;
     }
 
+    private int loadPositiveInt(ConfigurationSection config, String key, int defaultValue) {
+        if(!config.isSet(key))
+            return defaultValue;
+
+        if(!config.isInt(key)) {
+            error("'" + key + "' must be a whole number."
+                    + " Defaulting to " + defaultValue + ".");
+
+            return defaultValue;
+        }
+
+        int value = config.getInt(key);
+
+        if(value <= 0) {
+            error("'" + key + "' must be greater than 0."
+                    + " Defaulting to " + defaultValue + ".");
+
+            return defaultValue;
+        }
+
+        return value;
+    }
+
+    private int loadNonNegativeInt(ConfigurationSection config, String key, int defaultValue) {
+        if(!config.isSet(key))
+            return defaultValue;
+
+        if(!config.isInt(key)) {
+            error("'" + key + "' must be a whole number."
+                    + " Defaulting to " + defaultValue + ".");
+
+            return defaultValue;
+        }
+
+        int value = config.getInt(key);
+
+        if(value < 0) {
+            error("'" + key + "' cannot be negative."
+                    + " Defaulting to " + defaultValue + ".");
+
+            return defaultValue;
+        }
+
+        return value;
+    }
+
+    private double loadNonNegativeDouble(ConfigurationSection config, String key, double defaultValue) {
+        if(!config.isSet(key))
+            return defaultValue;
+
+        if(!config.isInt(key) && !config.isDouble(key)) {
+            error("'" + key + "' must be a number."
+                    + " Defaulting to " + defaultValue + ".");
+
+            return defaultValue;
+        }
+
+        double value = config.getDouble(key);
+
+        if(value < 0) {
+            error("'" + key + "' cannot be negative."
+                    + " Defaulting to " + defaultValue + ".");
+
+            return defaultValue;
+        }
+
+        return value;
+    }
+
+    private long loadMemorySize(ConfigurationSection config, String key, long defaultValue) {
+        if(!config.isSet(key))
+            return defaultValue;
+
+        // Plain numbers are in megabytes
+        String value = config.getString(key).trim().toUpperCase();
+        long multiplier = 1024 * 1024;
+
+        if(value.endsWith("KB")) {
+            multiplier = 1024;
+        } else if(value.endsWith("GB")) {
+            multiplier = 1024 * 1024 * 1024;
+        }
+
+        if(value.endsWith("KB") || value.endsWith("MB") || value.endsWith("GB")) {
+            value = value.substring(0, value.length() - 2).trim();
+        }
+
+        long size;
+
+        try {
+            size = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            error("'" + key + "' must be a size such as 256MB or 2GB."
+                    + " Defaulting to " + formatMemorySize(defaultValue) + ".");
+
+            return defaultValue;
+        }
+
+        if(size < 0) {
+            error("'" + key + "' cannot be negative."
+                    + " Defaulting to " + formatMemorySize(defaultValue) + ".");
+
+            return defaultValue;
+        }
+
+        return size * multiplier;
+    }
+
+    private static String formatMemorySize(long bytes) {
+        if(bytes % (1024 * 1024) != 0)
+            return (bytes / 1024) + "KB";
+
+        return (bytes / (1024 * 1024)) + "MB";
+    }
+
     private Logger getLogger() {
         return BlockStore.getInstance().getLogger();
     }
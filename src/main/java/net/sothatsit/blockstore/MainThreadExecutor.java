@@ -0,0 +1,46 @@
+package net.sothatsit.blockstore;
+
+import net.sothatsit.blockstore.util.Checks;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on the server's main thread. Tasks are queued and all run by one scheduled task each tick,
+ * rather than scheduling a separate task for each.
+ */
+public class MainThreadExecutor implements Executor {
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void execute(Runnable task) {
+        Checks.ensureNonNull(task, "task");
+
+        tasks.add(task);
+    }
+
+    public int getQueued() {
+        return tasks.size();
+    }
+
+    /**
+     * Runs the tasks that were queued before this was called. Tasks queued while draining are left for the next drain.
+     */
+    public void drain() {
+        for(int remaining = tasks.size(); remaining > 0; --remaining) {
+            Runnable task = tasks.poll();
+
+            if(task == null)
+                return;
+
+            try {
+                task.run();
+            } catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+package net.sothatsit.blockstore;
+
+import net.sothatsit.blockstore.util.Checks;
+import org.bukkit.World;
+
+import java.util.Arrays;
+
+/**
+ * Which blocks in a cuboid of a world were placed by players, as one bit per block.
+ * The bits are ordered by x, then z, then y, so each row of blocks along the x axis is contiguous.
+ */
+public final class PlacedBitmap {
+
+    private static final long MAX_VOLUME = Integer.MAX_VALUE;
+
+    private final World world;
+    private final int minX;
+    private final int minY;
+    private final int minZ;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final long[] bits;
+
+    PlacedBitmap(World world, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        Checks.ensureNonNull(world, "world");
+        Checks.ensureTrue(minX <= maxX && minY <= maxY && minZ <= maxZ, "min cannot be greater than max");
+
+        long volume = ((long) maxX - minX + 1) * ((long) maxY - minY + 1) * ((long) maxZ - minZ + 1);
+
+        Checks.ensureTrue(volume <= MAX_VOLUME, "cuboid cannot contain more than " + MAX_VOLUME + " blocks");
+
+        this.world = world;
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.sizeX = maxX - minX + 1;
+        this.sizeY = maxY - minY + 1;
+        this.sizeZ = maxZ - minZ + 1;
+        this.bits = new long[(int) ((volume + 63) / 64)];
+    }
+
+    public World getWorld() {
+        return world;
+    }
+
+    public int getMinX() {
+        return minX;
+    }
+
+    public int getMinY() {
+        return minY;
+    }
+
+    public int getMinZ() {
+        return minZ;
+    }
+
+    public int getMaxX() {
+        return minX + sizeX - 1;
+    }
+
+    public int getMaxY() {
+        return minY + sizeY - 1;
+    }
+
+    public int getMaxZ() {
+        return minZ + sizeZ - 1;
+    }
+
+    public long getVolume() {
+        return (long) sizeX * sizeY * sizeZ;
+    }
+
+    public boolean contains(int x, int y, int z) {
+        return x >= minX && x - minX < sizeX
+                && y >= minY && y - minY < sizeY
+                && z >= minZ && z - minZ < sizeZ;
+    }
+
+    private long getIndex(int x, int y, int z) {
+        return (x - minX) + sizeX * ((z - minZ) + (long) sizeZ * (y - minY));
+    }
+
+    /**
+     * Returns whether the block was placed, or false if it is outside of this cuboid.
+     */
+    public boolean isPlaced(int x, int y, int z) {
+        if(!contains(x, y, z))
+            return false;
+
+        long index = getIndex(x, y, z);
+
+        return (bits[(int) (index >>> 6)] & (1L << index)) != 0;
+    }
+
+    public int getPlacedCount() {
+        int count = 0;
+
+        for(long word : bits) {
+            count += Long.bitCount(word);
+        }
+
+        return count;
+    }
+
+    public boolean isEmpty() {
+        for(long word : bits) {
+            if(word != 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Calls consumer with the coordinates of every placed block, in the order of the bits.
+     */
+    public void forEachPlaced(BlockConsumer consumer) {
+        Checks.ensureNonNull(consumer, "consumer");
+
+        for(int wordIndex = 0; wordIndex < bits.length; ++wordIndex) {
+            long word = bits[wordIndex];
+
+            while(word != 0) {
+                long index = wordIndex * 64L + Long.numberOfTrailingZeros(word);
+                int x = (int) (index % sizeX);
+                long row = index / sizeX;
+
+                consumer.accept(minX + x, minY + (int) (row / sizeZ), minZ + (int) (row % sizeZ));
+
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the bits, where the bit of a block is at index x + sizeX * (z + sizeZ * y)
+     * relative to the minimum corner.
+     */
+    public long[] toLongArray() {
+        return Arrays.copyOf(bits, bits.length);
+    }
+
+    /**
+     * Copies the rows of a chunk section that are inside this cuboid from the words of its placed blocks.
+     */
+    void copySection(int cx, int cy, int cz, long[] words) {
+        int x0 = Math.max(minX, cx << 4);
+        int x1 = Math.min(getMaxX(), (cx << 4) + 15);
+        int y0 = Math.max(minY, cy << 6);
+        int y1 = Math.min(getMaxY(), (cy << 6) + 63);
+        int z0 = Math.max(minZ, cz << 4);
+        int z1 = Math.min(getMaxZ(), (cz << 4) + 15);
+
+        if(x0 > x1 || y0 > y1 || z0 > z1)
+            return;
+
+        int width = x1 - x0 + 1;
+        long mask = (1L << width) - 1;
+
+        for(int y = y0; y <= y1; ++y) {
+            for(int z = z0; z <= z1; ++z) {
+                // Each word of a section holds four rows of 16 blocks along the x axis
+                int rowIndex = ((z & 15) << 4) | ((y & 63) << 8);
+                long row = (words[rowIndex >>> 6] >>> (rowIndex & 63) >>> (x0 & 15)) & mask;
+
+                if(row != 0) {
+                    setBits(getIndex(x0, y, z), row, width);
+                }
+            }
+        }
+    }
+
+    private void setBits(long index, long row, int width) {
+        int wordIndex = (int) (index >>> 6);
+        int shift = (int) (index & 63);
+
+        bits[wordIndex] |= row << shift;
+
+        if(shift + width > 64) {
+            bits[wordIndex + 1] |= row >>> (64 - shift);
+        }
+    }
+
+    public interface BlockConsumer {
+
+        public void accept(int x, int y, int z);
+
+    }
+
+}
@@ -0,0 +1,235 @@
+package net.sothatsit.blockstore;
+
+import net.sothatsit.blockstore.chunkstore.ChunkLoc;
+import net.sothatsit.blockstore.chunkstore.ChunkManager;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+
+/**
+ * Preloads the chunk stores ahead of each player using the PREDICTIVE preload strategy. Each player's
+ * velocity is smoothed over their recent movement, and the stores in a cone ahead of them that they
+ * would reach within the lookahead time are preloaded. Queued preloads that fall out of every player's
+ * cone, such as after a player turns around, are cancelled.
+ */
+public class PredictivePreloader {
+
+    // How much each movement contributes to a player's smoothed velocity
+    private static final double VELOCITY_SMOOTHING = 0.3;
+    // Players slower than this, in blocks per second, only have the stores around them preloaded
+    private static final double MIN_SPEED = 1.0;
+    // Movements further apart than this are not used to calculate velocity
+    private static final long MAX_MOVE_INTERVAL_MS = 1000;
+    private static final long PREDICT_INTERVAL_MS = 500;
+    private static final double STEP_BLOCKS = 8;
+    private static final double MIN_HALF_WIDTH = 8;
+    private static final double MAX_LOOKAHEAD_BLOCKS = 256;
+
+    private final Map<UUID, Motion> motions = new HashMap<>();
+
+    public void clear() {
+        motions.clear();
+    }
+
+    public void onMove(Player player, Location to) {
+        Motion motion = motions.get(player.getUniqueId());
+        long now = System.currentTimeMillis();
+
+        if(motion == null || motion.world != to.getWorld()) {
+            onTeleport(player, to);
+            return;
+        }
+
+        long elapsed = now - motion.lastMove;
+
+        if(elapsed <= 0)
+            return;
+
+        if(elapsed > MAX_MOVE_INTERVAL_MS) {
+            motion.vx = motion.vy = motion.vz = 0;
+        } else {
+            double seconds = elapsed / 1000.0;
+
+            motion.vx += VELOCITY_SMOOTHING * ((to.getX() - motion.x) / seconds - motion.vx);
+            motion.vy += VELOCITY_SMOOTHING * ((to.getY() - motion.y) / seconds - motion.vy);
+            motion.vz += VELOCITY_SMOOTHING * ((to.getZ() - motion.z) / seconds - motion.vz);
+        }
+
+        motion.moveTo(to, now);
+
+        ChunkLoc chunkLoc = ChunkLoc.fromLocation(to);
+
+        if(chunkLoc.equals(motion.chunkLoc) && now - motion.lastPrediction < PREDICT_INTERVAL_MS)
+            return;
+
+        motion.chunkLoc = chunkLoc;
+        predict(player.getUniqueId(), motion, now);
+    }
+
+    public void onTeleport(Player player, Location to) {
+        UUID uuid = player.getUniqueId();
+        Motion previous = motions.get(uuid);
+
+        if(previous != null && previous.world != to.getWorld()) {
+            remove(uuid);
+        }
+
+        // Teleports are not movement, so the velocity starts again from nothing
+        Motion motion = new Motion(to.getWorld());
+        long now = System.currentTimeMillis();
+
+        motion.moveTo(to, now);
+        motion.chunkLoc = ChunkLoc.fromLocation(to);
+
+        if(previous != null && previous.world == to.getWorld()) {
+            motion.requested = previous.requested;
+        }
+
+        motions.put(uuid, motion);
+        predict(uuid, motion, now);
+    }
+
+    public void remove(UUID uuid) {
+        Motion motion = motions.remove(uuid);
+
+        if(motion == null)
+            return;
+
+        ChunkManager manager = BlockStore.getInstance().getManager(motion.world);
+
+        manager.removePlayerStore(uuid);
+        cancelUnwanted(manager, motion.world, motion.requested, Collections.emptySet());
+    }
+
+    private void predict(UUID uuid, Motion motion, long now) {
+        BlockStoreConfig config = BlockStore.getInstance().getBlockStoreConfig();
+        ChunkManager manager = BlockStore.getInstance().getManager(motion.world);
+
+        Set<Long> wanted = predictStores(motion, config.getPredictiveLookahead(), config.getPredictiveSpread());
+
+        manager.updatePlayerStore(uuid, motion.chunkLoc);
+
+        // Stores that were already requested are requested again so that they are not unloaded
+        for(long packed : wanted) {
+            ChunkLoc chunkLoc = ChunkLoc.unpack(packed);
+
+            manager.preloadChunkStore(chunkLoc.x, chunkLoc.y, chunkLoc.z);
+        }
+
+        Set<Long> previous = motion.requested;
+
+        motion.requested = wanted;
+        motion.lastPrediction = now;
+
+        cancelUnwanted(manager, motion.world, previous, wanted);
+    }
+
+    private void cancelUnwanted(ChunkManager manager, World world, Set<Long> previous, Set<Long> wanted) {
+        for(long packed : previous) {
+            if(wanted.contains(packed) || isWanted(world, packed))
+                continue;
+
+            ChunkLoc chunkLoc = ChunkLoc.unpack(packed);
+
+            manager.cancelPreload(chunkLoc.x, chunkLoc.y, chunkLoc.z);
+        }
+    }
+
+    private boolean isWanted(World world, long packed) {
+        for(Motion motion : motions.values()) {
+            if(motion.world == world && motion.requested.contains(packed))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the stores around the player and in a cone ahead of them, nearest first.
+     */
+    private static Set<Long> predictStores(Motion motion, double lookahead, double spread) {
+        Set<Long> stores = new LinkedHashSet<>();
+        ChunkLoc chunkLoc = motion.chunkLoc;
+
+        for(int dx = -1; dx <= 1; ++dx) {
+            for(int dy = -1; dy <= 1; ++dy) {
+                for(int dz = -1; dz <= 1; ++dz) {
+                    addStore(stores, motion.world, chunkLoc.x + dx, chunkLoc.y + dy, chunkLoc.z + dz);
+                }
+            }
+        }
+
+        double speed = Math.sqrt(motion.vx * motion.vx + motion.vy * motion.vy + motion.vz * motion.vz);
+
+        if(speed < MIN_SPEED)
+            return stores;
+
+        double distance = Math.min(speed * lookahead, MAX_LOOKAHEAD_BLOCKS);
+        double dirX = motion.vx / speed;
+        double dirY = motion.vy / speed;
+        double dirZ = motion.vz / speed;
+
+        for(double step = STEP_BLOCKS; step <= distance; step += STEP_BLOCKS) {
+            double x = motion.x + dirX * step;
+            double y = motion.y + dirY * step;
+            double z = motion.z + dirZ * step;
+            double halfWidth = MIN_HALF_WIDTH + step * spread;
+
+            int minCX = (int) Math.floor(x - halfWidth) >> 4;
+            int maxCX = (int) Math.floor(x + halfWidth) >> 4;
+            int minCY = (int) Math.floor(y - halfWidth) >> 6;
+            int maxCY = (int) Math.floor(y + halfWidth) >> 6;
+            int minCZ = (int) Math.floor(z - halfWidth) >> 4;
+            int maxCZ = (int) Math.floor(z + halfWidth) >> 4;
+
+            for(int cx = minCX; cx <= maxCX; ++cx) {
+                for(int cy = minCY; cy <= maxCY; ++cy) {
+                    for(int cz = minCZ; cz <= maxCZ; ++cz) {
+                        addStore(stores, motion.world, cx, cy, cz);
+                    }
+                }
+            }
+        }
+
+        return stores;
+    }
+
+    private static void addStore(Set<Long> stores, World world, int cx, int cy, int cz) {
+        if(ChunkLoc.exists(world, cy)) {
+            stores.add(ChunkLoc.pack(cx, cy, cz));
+        }
+    }
+
+    private static final class Motion {
+
+        private final World world;
+        private double x;
+        private double y;
+        private double z;
+        private long lastMove;
+
+        // Smoothed velocity in blocks per second
+        private double vx;
+        private double vy;
+        private double vz;
+
+        private ChunkLoc chunkLoc;
+        private long lastPrediction;
+        private Set<Long> requested = Collections.emptySet();
+
+        private Motion(World world) {
+            this.world = world;
+        }
+
+        private void moveTo(Location location, long time) {
+            this.x = location.getX();
+            this.y = location.getY();
+            this.z = location.getZ();
+            this.lastMove = time;
+        }
+
+    }
+
+}
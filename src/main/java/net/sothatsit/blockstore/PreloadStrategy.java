@@ -23,6 +23,7 @@ public enum PreloadStrategy {
                 ChunkManager chunkManager = plugin.getManager(world);
 
                 chunkManager.preloadChunks();
+                chunkManager.prefetchWarmStores();
             }
         }
     },
@@ -30,18 +31,9 @@ public enum PreloadStrategy {
     CLOSE("Close") {
         @Override
         public boolean shouldRemainLoaded(ChunkStore store) {
-            ChunkLoc chunkLoc = store.getChunkLoc();
+            ChunkManager chunkManager = BlockStore.getInstance().getManager(store.getWorld());
 
-            for(Player player : store.getWorld().getPlayers()) {
-                ChunkLoc playerLoc = ChunkLoc.fromLocation(player.getLocation());
-
-                if(Math.abs(playerLoc.x - chunkLoc.x) <= 1
-                        || Math.abs(playerLoc.y - chunkLoc.y) <= 1
-                        || Math.abs(playerLoc.z - chunkLoc.z) <= 1)
-                    return true;
-            }
-
-            return false;
+            return chunkManager.isPinned(store.getChunkLoc());
         }
 
         @Override
@@ -51,11 +43,45 @@ public enum PreloadStrategy {
             for(World world : Bukkit.getWorlds()) {
                 ChunkManager chunkManager = plugin.getManager(world);
 
+                chunkManager.clearPlayerStores();
+
                 for(Player player : world.getPlayers()) {
                     ChunkLoc playerLocation = ChunkLoc.fromLocation(player.getLocation());
 
                     chunkManager.preloadStoresAround(playerLocation);
+                    chunkManager.updatePlayerStore(player.getUniqueId(), playerLocation);
                 }
+
+                chunkManager.prefetchWarmStores();
+            }
+        }
+    },
+
+    PREDICTIVE("Predictive") {
+        @Override
+        public boolean shouldRemainLoaded(ChunkStore store) {
+            ChunkManager chunkManager = BlockStore.getInstance().getManager(store.getWorld());
+
+            return chunkManager.isPinned(store.getChunkLoc());
+        }
+
+        @Override
+        public void initialise() {
+            BlockStore plugin = BlockStore.getInstance();
+            PredictivePreloader preloader = plugin.getPredictivePreloader();
+
+            preloader.clear();
+
+            for(World world : Bukkit.getWorlds()) {
+                ChunkManager chunkManager = plugin.getManager(world);
+
+                chunkManager.clearPlayerStores();
+
+                for(Player player : world.getPlayers()) {
+                    preloader.onTeleport(player, player.getLocation());
+                }
+
+                chunkManager.prefetchWarmStores();
             }
         }
     },
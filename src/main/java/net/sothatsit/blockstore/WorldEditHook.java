@@ -8,9 +8,7 @@ import com.sk89q.worldedit.extent.logging.AbstractLoggingExtent;
 import com.sk89q.worldedit.util.eventbus.Subscribe;
 
 import com.sk89q.worldedit.world.World;
-import net.sothatsit.blockstore.chunkstore.BlockLoc;
 import net.sothatsit.blockstore.chunkstore.ChunkManager;
-import net.sothatsit.blockstore.chunkstore.ChunkStore;
 
 public class WorldEditHook {
 
@@ -30,11 +28,7 @@ public class WorldEditHook {
         event.setExtent(new AbstractLoggingExtent(event.getExtent()) {
             @Override
             protected void onBlockChange(Vector pos, BaseBlock newBlock) {
-                BlockLoc blockLoc = BlockLoc.fromLocation(pos.getBlockX(), pos.getBlockY(), pos.getBlockZ());
-
-                ChunkStore store = manager.getChunkStore(blockLoc.chunkLoc, true);
-
-                store.setPlaced(blockLoc, false);
+                manager.setPlaced(pos.getBlockX(), pos.getBlockY(), pos.getBlockZ(), false);
             }
         });
     }
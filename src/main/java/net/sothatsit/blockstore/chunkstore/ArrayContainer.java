@@ -0,0 +1,151 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+final class ArrayContainer extends BlockContainer {
+
+    private final short[] values;
+    private final int runs;
+
+    ArrayContainer(short[] values, int runs) {
+        this.values = values;
+        this.runs = runs;
+    }
+
+    @Override
+    public boolean contains(int index) {
+        return Arrays.binarySearch(values, (short) index) >= 0;
+    }
+
+    @Override
+    public BlockContainer add(int index) {
+        checkIndex(index);
+
+        int position = Arrays.binarySearch(values, (short) index);
+
+        if(position >= 0)
+            return this;
+
+        position = -position - 1;
+
+        boolean joinsPrevious = (position > 0 && values[position - 1] == index - 1);
+        boolean joinsNext = (position < values.length && values[position] == index + 1);
+
+        short[] newValues = new short[values.length + 1];
+        System.arraycopy(values, 0, newValues, 0, position);
+        System.arraycopy(values, position, newValues, position + 1, values.length - position);
+        newValues[position] = (short) index;
+
+        int newRuns = runs + (joinsPrevious && joinsNext ? -1 : (joinsPrevious || joinsNext ? 0 : 1));
+
+        return new ArrayContainer(newValues, newRuns).optimise();
+    }
+
+    @Override
+    public BlockContainer remove(int index) {
+        checkIndex(index);
+
+        int position = Arrays.binarySearch(values, (short) index);
+
+        if(position < 0)
+            return this;
+
+        if(values.length == 1)
+            return empty();
+
+        boolean joinsPrevious = (position > 0 && values[position - 1] == index - 1);
+        boolean joinsNext = (position < values.length - 1 && values[position + 1] == index + 1);
+
+        short[] newValues = new short[values.length - 1];
+        System.arraycopy(values, 0, newValues, 0, position);
+        System.arraycopy(values, position + 1, newValues, position, values.length - position - 1);
+
+        int newRuns = runs + (joinsPrevious && joinsNext ? 1 : (joinsPrevious || joinsNext ? 0 : -1));
+
+        return new ArrayContainer(newValues, newRuns).optimise();
+    }
+
+    @Override
+    public int getCardinality() {
+        return values.length;
+    }
+
+    @Override
+    public int getRunCount() {
+        return runs;
+    }
+
+    @Override
+    protected int getType() {
+        return TYPE_ARRAY;
+    }
+
+    @Override
+    public void forEach(IntConsumer consumer) {
+        for(short value : values) {
+            consumer.accept(value);
+        }
+    }
+
+    @Override
+    public void copyWords(long[] words) {
+        Arrays.fill(words, 0);
+
+        for(short value : values) {
+            words[value >>> 6] |= 1L << value;
+        }
+    }
+
+    @Override
+    protected void writeContents(DataOutput out) throws IOException {
+        ValueCodec.writeVarInt(out, values.length);
+
+        for(short value : values) {
+            out.writeShort(value);
+        }
+    }
+
+    static ArrayContainer fromWords(long[] words, int cardinality, int runs) {
+        short[] values = new short[cardinality];
+        int position = 0;
+
+        for(int index = nextSetBit(words, 0); index >= 0; index = nextSetBit(words, index + 1)) {
+            values[position++] = (short) index;
+        }
+
+        return new ArrayContainer(values, runs);
+    }
+
+    static BlockContainer readContents(DataInput in) throws IOException {
+        int cardinality = ValueCodec.readVarInt(in);
+
+        if(cardinality < 0 || cardinality > CAPACITY)
+            throw new IOException("Invalid array container size " + cardinality);
+
+        if(cardinality == 0)
+            return empty();
+
+        short[] values = new short[cardinality];
+        int runs = 0;
+
+        for(int position = 0; position < cardinality; ++position) {
+            int value = in.readUnsignedShort();
+
+            if(value >= CAPACITY || (position > 0 && value <= values[position - 1]))
+                throw new IOException("Invalid or unsorted block index " + value + " in array container");
+
+            if(position == 0 || value != values[position - 1] + 1) {
+                runs += 1;
+            }
+
+            values[position] = (short) value;
+        }
+
+        return new ArrayContainer(values, runs);
+    }
+
+}
@@ -0,0 +1,121 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+
+final class BitmapContainer extends BlockContainer {
+
+    // Modified in place by a single writer at a time, while contains may be called from any thread without locking
+    private final AtomicLongArray words;
+    private volatile int cardinality;
+    private volatile int runs;
+
+    BitmapContainer(long[] words, int cardinality, int runs) {
+        this.words = new AtomicLongArray(words);
+        this.cardinality = cardinality;
+        this.runs = runs;
+    }
+
+    @Override
+    public boolean contains(int index) {
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    @Override
+    public BlockContainer add(int index) {
+        checkIndex(index);
+
+        if(contains(index))
+            return this;
+
+        boolean joinsPrevious = (index > 0 && contains(index - 1));
+        boolean joinsNext = (index < CAPACITY - 1 && contains(index + 1));
+
+        int wordIndex = index >>> 6;
+        words.set(wordIndex, words.get(wordIndex) | (1L << index));
+
+        cardinality += 1;
+        runs += (joinsPrevious && joinsNext ? -1 : (joinsPrevious || joinsNext ? 0 : 1));
+
+        return optimise();
+    }
+
+    @Override
+    public BlockContainer remove(int index) {
+        checkIndex(index);
+
+        if(!contains(index))
+            return this;
+
+        boolean joinsPrevious = (index > 0 && contains(index - 1));
+        boolean joinsNext = (index < CAPACITY - 1 && contains(index + 1));
+
+        int wordIndex = index >>> 6;
+        words.set(wordIndex, words.get(wordIndex) & ~(1L << index));
+
+        cardinality -= 1;
+        runs += (joinsPrevious && joinsNext ? 1 : (joinsPrevious || joinsNext ? 0 : -1));
+
+        return optimise();
+    }
+
+    @Override
+    public BlockContainer copy() {
+        return new BitmapContainer(toWords(), cardinality, runs);
+    }
+
+    @Override
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public int getRunCount() {
+        return runs;
+    }
+
+    @Override
+    protected int getType() {
+        return TYPE_BITMAP;
+    }
+
+    @Override
+    public void forEach(IntConsumer consumer) {
+        for(int wordIndex = 0; wordIndex < WORDS; ++wordIndex) {
+            long word = words.get(wordIndex);
+
+            while(word != 0) {
+                consumer.accept((wordIndex * 64) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+    }
+
+    @Override
+    public void copyWords(long[] words) {
+        for(int index = 0; index < WORDS; ++index) {
+            words[index] = this.words.get(index);
+        }
+    }
+
+    @Override
+    protected void writeContents(DataOutput out) throws IOException {
+        for(int index = 0; index < WORDS; ++index) {
+            out.writeLong(words.get(index));
+        }
+    }
+
+    static BlockContainer readContents(DataInput in) throws IOException {
+        long[] words = new long[WORDS];
+
+        for(int index = 0; index < WORDS; ++index) {
+            words[index] = in.readLong();
+        }
+
+        return fromWords(words);
+    }
+
+}
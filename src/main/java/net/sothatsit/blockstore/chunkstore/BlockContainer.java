@@ -0,0 +1,221 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.function.IntConsumer;
+
+public abstract class BlockContainer {
+
+    public static final int CAPACITY = 16 * 64 * 16;
+    public static final int WORDS = CAPACITY / 64;
+
+    protected static final int TYPE_ARRAY = 0;
+    protected static final int TYPE_BITMAP = 1;
+    protected static final int TYPE_RUN = 2;
+
+    private static final BlockContainer EMPTY = new ArrayContainer(new short[0], 0);
+
+    public abstract boolean contains(int index);
+
+    public abstract BlockContainer add(int index);
+
+    public abstract BlockContainer remove(int index);
+
+    public abstract int getCardinality();
+
+    public abstract int getRunCount();
+
+    protected abstract int getType();
+
+    public abstract void forEach(IntConsumer consumer);
+
+    public abstract void copyWords(long[] words);
+
+    protected abstract void writeContents(DataOutput out) throws IOException;
+
+    // Array and run containers are never modified in place, so only bitmaps need to be copied
+    public BlockContainer copy() {
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return getCardinality() == 0;
+    }
+
+    public BlockContainer set(int index, boolean value) {
+        return (value ? add(index) : remove(index));
+    }
+
+    public long[] toWords() {
+        long[] words = new long[WORDS];
+
+        copyWords(words);
+
+        return words;
+    }
+
+    public int getSizeInBytes() {
+        return getSizeInBytes(getType(), getCardinality(), getRunCount());
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(getType());
+        writeContents(out);
+    }
+
+    protected BlockContainer optimise() {
+        int cardinality = getCardinality();
+        int runs = getRunCount();
+        int type = getType();
+
+        int best = getBestType(cardinality, runs);
+
+        // Only switch type when it saves a quarter of the memory so that blocks being
+        // placed and broken at the boundary between two types don't cause repeated conversions
+        if(best == type || getSizeInBytes(best, cardinality, runs) * 4 >= getSizeInBytes(type, cardinality, runs) * 3)
+            return this;
+
+        return create(best, toWords(), cardinality, runs);
+    }
+
+    protected static int getSizeInBytes(int type, int cardinality, int runs) {
+        switch(type) {
+            case TYPE_ARRAY:
+                return 2 * cardinality;
+            case TYPE_BITMAP:
+                return 8 * WORDS;
+            case TYPE_RUN:
+                return 4 * runs;
+            default:
+                throw new IllegalArgumentException("Unknown container type " + type);
+        }
+    }
+
+    private static int getBestType(int cardinality, int runs) {
+        int best = TYPE_ARRAY;
+        int bestSize = getSizeInBytes(TYPE_ARRAY, cardinality, runs);
+
+        for(int type = TYPE_BITMAP; type <= TYPE_RUN; ++type) {
+            int size = getSizeInBytes(type, cardinality, runs);
+
+            if(size < bestSize) {
+                best = type;
+                bestSize = size;
+            }
+        }
+
+        return best;
+    }
+
+    protected static void checkIndex(int index) {
+        if(index < 0 || index >= CAPACITY)
+            throw new IllegalArgumentException("index out of bounds 0-" + (CAPACITY - 1) + " inclusive");
+    }
+
+    private static BlockContainer create(int type, long[] words, int cardinality, int runs) {
+        switch(type) {
+            case TYPE_ARRAY:
+                return ArrayContainer.fromWords(words, cardinality, runs);
+            case TYPE_BITMAP:
+                return new BitmapContainer(words, cardinality, runs);
+            case TYPE_RUN:
+                return RunContainer.fromWords(words, cardinality, runs);
+            default:
+                throw new IllegalArgumentException("Unknown container type " + type);
+        }
+    }
+
+    public static BlockContainer empty() {
+        return EMPTY;
+    }
+
+    public static BlockContainer fromWords(long[] words) {
+        long[] fullWords = new long[WORDS];
+        System.arraycopy(words, 0, fullWords, 0, Math.min(words.length, WORDS));
+
+        int cardinality = 0;
+        int runs = 0;
+        long carry = 0;
+
+        for(long word : fullWords) {
+            cardinality += Long.bitCount(word);
+            runs += Long.bitCount(word & ~((word << 1) | carry));
+            carry = word >>> 63;
+        }
+
+        if(cardinality == 0)
+            return EMPTY;
+
+        return create(getBestType(cardinality, runs), fullWords, cardinality, runs);
+    }
+
+    protected static boolean getBit(long[] words, int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    protected static int nextSetBit(long[] words, int from) {
+        if(from >= CAPACITY)
+            return -1;
+
+        int wordIndex = from >>> 6;
+        long word = words[wordIndex] & (-1L << from);
+
+        while(true) {
+            if(word != 0)
+                return (wordIndex * 64) + Long.numberOfTrailingZeros(word);
+
+            if(++wordIndex == WORDS)
+                return -1;
+
+            word = words[wordIndex];
+        }
+    }
+
+    protected static int nextClearBit(long[] words, int from) {
+        if(from >= CAPACITY)
+            return CAPACITY;
+
+        int wordIndex = from >>> 6;
+        long word = ~words[wordIndex] & (-1L << from);
+
+        while(true) {
+            if(word != 0)
+                return (wordIndex * 64) + Long.numberOfTrailingZeros(word);
+
+            if(++wordIndex == WORDS)
+                return CAPACITY;
+
+            word = ~words[wordIndex];
+        }
+    }
+
+    protected static void setRange(long[] words, int from, int to) {
+        for(int index = from; index < to; ) {
+            int wordIndex = index >>> 6;
+            int end = Math.min(to, (wordIndex + 1) * 64);
+            int length = end - index;
+
+            long mask = (length == 64 ? -1L : ((1L << length) - 1) << index);
+
+            words[wordIndex] |= mask;
+            index = end;
+        }
+    }
+
+    public static BlockContainer read(DataInput in) throws IOException {
+        int type = in.readUnsignedByte();
+
+        switch(type) {
+            case TYPE_ARRAY:
+                return ArrayContainer.readContents(in);
+            case TYPE_BITMAP:
+                return BitmapContainer.readContents(in);
+            case TYPE_RUN:
+                return RunContainer.readContents(in);
+            default:
+                throw new IOException("Unknown container type " + type);
+        }
+    }
+
+}
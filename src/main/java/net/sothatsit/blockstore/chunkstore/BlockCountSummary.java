@@ -0,0 +1,197 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import net.sothatsit.blockstore.BlockStore;
+import net.sothatsit.blockstore.util.Checks;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The number of placed blocks and blocks with metadata in each chunk section, chunk and region of a world,
+ * kept up to date as a store listener so they can be found without loading any chunk stores.
+ * The counts are saved to a file next to the stores. If there is no saved file they are counted in the
+ * background the first time they are needed, by retrieving every chunk store that has saved data.
+ */
+public class BlockCountSummary implements StoreListener {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final ChunkManager manager;
+    private final File file;
+
+    // Sections are keyed by their packed ChunkLoc, and chunks and regions by their packed x and z
+    private final Map<Long, BlockCounts> sections = new HashMap<>();
+    private final Map<Long, BlockCounts> chunks = new HashMap<>();
+    private final Map<Long, BlockCounts> regions = new HashMap<>();
+
+    private volatile boolean complete = false;
+    private boolean building = false;
+
+    public BlockCountSummary(ChunkManager manager, File file) {
+        Checks.ensureNonNull(manager, "manager");
+        Checks.ensureNonNull(file, "file");
+
+        this.manager = manager;
+        this.file = file;
+    }
+
+    private static long toKey(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private static void addCounts(Map<Long, BlockCounts> counts, long key, int placed, int metaBlocks) {
+        BlockCounts updated = counts.getOrDefault(key, BlockCounts.EMPTY).add(placed, metaBlocks);
+
+        if(updated.isEmpty()) {
+            counts.remove(key);
+        } else {
+            counts.put(key, updated);
+        }
+    }
+
+    @Override
+    public void onCounts(ChunkLoc chunkLoc, int placed, int metaBlocks) {
+        set(chunkLoc, new BlockCounts(placed, metaBlocks));
+    }
+
+    private synchronized void set(ChunkLoc chunkLoc, BlockCounts counts) {
+        BlockCounts previous = (counts.isEmpty() ? sections.remove(chunkLoc.pack()) : sections.put(chunkLoc.pack(), counts));
+
+        if(previous == null) {
+            previous = BlockCounts.EMPTY;
+        }
+
+        int placed = counts.getPlaced() - previous.getPlaced();
+        int metaBlocks = counts.getMetaBlocks() - previous.getMetaBlocks();
+
+        if(placed == 0 && metaBlocks == 0)
+            return;
+
+        addCounts(chunks, toKey(chunkLoc.x, chunkLoc.z), placed, metaBlocks);
+        addCounts(regions, toKey(Math.floorDiv(chunkLoc.x, RegionFile.REGION_SIZE),
+                Math.floorDiv(chunkLoc.z, RegionFile.REGION_SIZE)), placed, metaBlocks);
+    }
+
+    /**
+     * Returns whether every section with saved data has been counted, and not only those loaded since it was created.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public synchronized BlockCounts getSection(ChunkLoc chunkLoc) {
+        build();
+
+        return sections.getOrDefault(chunkLoc.pack(), BlockCounts.EMPTY);
+    }
+
+    public synchronized BlockCounts getChunk(int cx, int cz) {
+        build();
+
+        return chunks.getOrDefault(toKey(cx, cz), BlockCounts.EMPTY);
+    }
+
+    public synchronized BlockCounts getRegion(int regionX, int regionZ) {
+        build();
+
+        return regions.getOrDefault(toKey(regionX, regionZ), BlockCounts.EMPTY);
+    }
+
+    /**
+     * Starts counting the blocks in every section with saved data, unless they already are or have been counted.
+     */
+    public synchronized void build() {
+        if(complete || building)
+            return;
+
+        building = true;
+
+        BlockStore.getInstance().getLogger().info("Counting the placed blocks in " + manager.getWorld().getName());
+
+        // Every store reports its counts when it is loaded, so retrieving them is enough
+        manager.retrieveStoredStores(() -> false, store -> {}, () -> {
+            synchronized (this) {
+                complete = true;
+                building = false;
+            }
+
+            BlockStore.getInstance().getLogger().info("Counted the placed blocks in " + manager.getWorld().getName());
+        });
+    }
+
+    public void load() {
+        if(!file.exists())
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = in.readInt();
+
+            if(version != FORMAT_VERSION)
+                throw new IOException("Unknown block count summary version " + version);
+
+            int count = in.readInt();
+
+            synchronized (this) {
+                for(int index = 0; index < count; ++index) {
+                    ChunkLoc chunkLoc = ChunkLoc.unpack(in.readLong());
+                    int placed = ValueCodec.readVarInt(in);
+                    int metaBlocks = ValueCodec.readVarInt(in);
+
+                    set(chunkLoc, new BlockCounts(placed, metaBlocks));
+                }
+
+                complete = true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            synchronized (this) {
+                sections.clear();
+                chunks.clear();
+                regions.clear();
+            }
+
+            BlockStore.getInstance().getLogger().severe("Unable to read the BlockStore block count summary in " + file
+                    + ", the blocks will be counted again when they are next needed");
+        }
+    }
+
+    /**
+     * Saves the counts if every section has been counted, or otherwise deletes any old file. Returns whether it succeeded.
+     */
+    public boolean save() {
+        if(!complete)
+            return !file.exists() || file.delete();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        synchronized (file) {
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                    Map<Long, BlockCounts> sections;
+
+                    synchronized (this) {
+                        sections = new HashMap<>(this.sections);
+                    }
+
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeInt(sections.size());
+
+                    for(Map.Entry<Long, BlockCounts> entry : sections.entrySet()) {
+                        out.writeLong(entry.getKey());
+                        ValueCodec.writeVarInt(out, entry.getValue().getPlaced());
+                        ValueCodec.writeVarInt(out, entry.getValue().getMetaBlocks());
+                    }
+                }
+
+                ChunkManager.replaceFile(tempFile, file);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+}
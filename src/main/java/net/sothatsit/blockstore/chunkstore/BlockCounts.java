@@ -0,0 +1,54 @@
+package net.sothatsit.blockstore.chunkstore;
+
+/**
+ * The number of placed blocks, and of blocks with metadata, in a chunk section, chunk or region.
+ */
+public final class BlockCounts {
+
+    public static final BlockCounts EMPTY = new BlockCounts(0, 0);
+
+    private final int placed;
+    private final int metaBlocks;
+
+    public BlockCounts(int placed, int metaBlocks) {
+        this.placed = placed;
+        this.metaBlocks = metaBlocks;
+    }
+
+    public int getPlaced() {
+        return placed;
+    }
+
+    public int getMetaBlocks() {
+        return metaBlocks;
+    }
+
+    public boolean isEmpty() {
+        return placed == 0 && metaBlocks == 0;
+    }
+
+    public BlockCounts add(int placed, int metaBlocks) {
+        return new BlockCounts(this.placed + placed, this.metaBlocks + metaBlocks);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(!(obj instanceof BlockCounts))
+            return false;
+
+        BlockCounts other = (BlockCounts) obj;
+
+        return placed == other.placed && metaBlocks == other.metaBlocks;
+    }
+
+    @Override
+    public int hashCode() {
+        return placed * 31 + metaBlocks;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockCounts{placed=" + placed + ", metaBlocks=" + metaBlocks + "}";
+    }
+
+}
@@ -80,6 +80,10 @@ public final class BlockLoc {
         return relx + (16 * relz) + (16 * 16 * rely);
     }
 
+    public static int toBlockIndex(int x, int y, int z) {
+        return (x & 15) | ((z & 15) << 4) | ((y & 63) << 8);
+    }
+
     public static BlockLoc fromBlock(Block block) {
         return fromLocation(block.getX(), block.getY(), block.getZ());
     }
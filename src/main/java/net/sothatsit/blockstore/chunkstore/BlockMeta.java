@@ -1,80 +1,175 @@
 package net.sothatsit.blockstore.chunkstore;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import net.sothatsit.blockstore.util.Checks;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
 
 public class BlockMeta {
 
-    private final Map<MetaKey, Object> metadata = new ConcurrentHashMap<>();
+    private static final Entries EMPTY = new Entries(new long[0], new Object[0]);
+
+    // Sorted by packed key, replaced as a whole on every change so reads never need to lock
+    private volatile Entries entries = EMPTY;
+
+    public BlockMeta copy() {
+        BlockMeta copy = new BlockMeta();
+
+        copy.entries = entries;
+
+        return copy;
+    }
+
+    public boolean isEmpty() {
+        return entries.keys.length == 0;
+    }
+
+    // Assumes small values, such as boxed numbers and short strings
+    public long estimateSize() {
+        return 64 + entries.keys.length * 48L;
+    }
 
     public boolean containsPlugin(int plugin) {
-        return metadata.keySet().stream().anyMatch(key -> key.plugin == plugin);
+        Entries entries = this.entries;
+
+        return entries.findPluginStart(plugin) < entries.findPluginStart(plugin + 1L);
     }
 
     public boolean containsValue(int plugin, int key) {
-        return metadata.containsKey(new MetaKey(plugin, key));
+        return getValue(plugin, key) != null;
     }
 
     public Object getValue(int plugin, int key) {
-        return metadata.get(new MetaKey(plugin, key));
+        Entries entries = this.entries;
+        int index = Arrays.binarySearch(entries.keys, pack(plugin, key));
+
+        return (index >= 0 ? entries.values[index] : null);
     }
 
     public Map<Integer, Object> getAllValues(int plugin) {
+        Entries entries = this.entries;
+
+        int start = entries.findPluginStart(plugin);
+        int end = entries.findPluginStart(plugin + 1L);
+
+        if(start == end)
+            return ImmutableMap.of();
+
         ImmutableMap.Builder<Integer, Object> values = ImmutableMap.builder();
 
-        metadata.entrySet().stream()
-                .filter(entry -> entry.getKey().plugin == plugin)
-                .forEach(entry -> values.put(entry.getKey().key, entry.getValue()));
+        for(int index = start; index < end; ++index) {
+            values.put(unpackKey(entries.keys[index]), entries.values[index]);
+        }
 
         return values.build();
     }
 
     public Map<Integer, Map<Integer, Object>> getAllValues() {
-        Map<Integer, ImmutableMap.Builder<Integer, Object>> builders = new HashMap<>();
-
-        metadata.forEach((jointKey, value) -> {
-            int plugin = jointKey.plugin;
-            int key = jointKey.key;
+        Entries entries = this.entries;
+        ImmutableMap.Builder<Integer, Map<Integer, Object>> values = ImmutableMap.builder();
 
-            ImmutableMap.Builder<Integer, Object> builder = builders.get(plugin);
+        int start = 0;
 
-            if(builder == null) {
-                builder = ImmutableMap.builder();
-                builders.put(plugin, builder);
-            }
+        while(start < entries.keys.length) {
+            int plugin = unpackPlugin(entries.keys[start]);
+            int end = entries.findPluginStart(plugin + 1L);
 
-            builder.put(key, value);
-        });
+            ImmutableMap.Builder<Integer, Object> pluginValues = ImmutableMap.builder();
 
-        ImmutableMap.Builder<Integer, Map<Integer, Object>> values = ImmutableMap.builder();
+            for(int index = start; index < end; ++index) {
+                pluginValues.put(unpackKey(entries.keys[index]), entries.values[index]);
+            }
 
-        builders.forEach((plugin, valuesBuilder) -> values.put(plugin, valuesBuilder.build()));
+            values.put(plugin, pluginValues.build());
+            start = end;
+        }
 
         return values.build();
     }
 
     public Set<Integer> getPlugins() {
-        return metadata.keySet().stream().map(key -> key.plugin).collect(Collectors.toSet());
+        Entries entries = this.entries;
+        List<Integer> plugins = new ArrayList<>();
+
+        int start = 0;
+
+        while(start < entries.keys.length) {
+            int plugin = unpackPlugin(entries.keys[start]);
+
+            plugins.add(plugin);
+            start = entries.findPluginStart(plugin + 1L);
+        }
+
+        return ImmutableSet.copyOf(plugins);
     }
 
-    public void setValue(int plugin, int key, Object value) {
+    public synchronized void setValue(int plugin, int key, Object value) {
         Checks.ensureNonNull(value, "value");
 
-        metadata.put(new MetaKey(plugin, key), value);
+        Entries entries = this.entries;
+        long packed = pack(plugin, key);
+        int index = Arrays.binarySearch(entries.keys, packed);
+
+        if(index >= 0) {
+            Object[] newValues = entries.values.clone();
+            newValues[index] = value;
+
+            this.entries = new Entries(entries.keys, newValues);
+            return;
+        }
+
+        index = -index - 1;
+
+        int length = entries.keys.length;
+        long[] newKeys = new long[length + 1];
+        Object[] newValues = new Object[length + 1];
+
+        System.arraycopy(entries.keys, 0, newKeys, 0, index);
+        System.arraycopy(entries.values, 0, newValues, 0, index);
+        System.arraycopy(entries.keys, index, newKeys, index + 1, length - index);
+        System.arraycopy(entries.values, index, newValues, index + 1, length - index);
+
+        newKeys[index] = packed;
+        newValues[index] = value;
+
+        this.entries = new Entries(newKeys, newValues);
     }
-    
-    public Object removeValue(int plugin, int key) {
-        return metadata.remove(new MetaKey(plugin, key));
+
+    public synchronized Object removeValue(int plugin, int key) {
+        Entries entries = this.entries;
+        int index = Arrays.binarySearch(entries.keys, pack(plugin, key));
+
+        if(index < 0)
+            return null;
+
+        Object previous = entries.values[index];
+        int length = entries.keys.length;
+
+        if(length == 1) {
+            this.entries = EMPTY;
+            return previous;
+        }
+
+        long[] newKeys = new long[length - 1];
+        Object[] newValues = new Object[length - 1];
+
+        System.arraycopy(entries.keys, 0, newKeys, 0, index);
+        System.arraycopy(entries.values, 0, newValues, 0, index);
+        System.arraycopy(entries.keys, index + 1, newKeys, index, length - index - 1);
+        System.arraycopy(entries.values, index + 1, newValues, index, length - index - 1);
+
+        this.entries = new Entries(newKeys, newValues);
+
+        return previous;
     }
 
     public void read(ObjectInputStream stream, int plugin) throws IOException, ClassNotFoundException {
@@ -88,42 +183,78 @@ public class BlockMeta {
         }
     }
 
-    public void write(ObjectOutputStream stream, int plugin) throws IOException {
-        Map<Integer, Object> map = getAllValues(plugin);
+    public void read(DataInput stream) throws IOException {
+        int amount = ValueCodec.readVarInt(stream);
+
+        for (int i = 0; i < amount; i++) {
+            int plugin = ValueCodec.readVarInt(stream);
+            int key = ValueCodec.readVarInt(stream);
+            Object value = ValueCodec.readValue(stream);
 
-        stream.writeInt(map.size());
+            if(value == null)
+                throw new IOException("Missing value for plugin " + plugin + " and key " + key);
 
-        for (Entry<Integer, Object> entry : map.entrySet()) {
-            stream.writeInt(entry.getKey());
-            stream.writeObject(entry.getValue());
+            setValue(plugin, key, value);
         }
     }
 
-    private final static class MetaKey {
+    public void write(DataOutput stream) throws IOException {
+        Entries entries = this.entries;
 
-        private final int plugin;
-        private final int key;
+        ValueCodec.writeVarInt(stream, entries.keys.length);
 
-        public MetaKey(int plugin, int key) {
-            this.plugin = plugin;
-            this.key = key;
+        for (int index = 0; index < entries.keys.length; ++index) {
+            ValueCodec.writeVarInt(stream, unpackPlugin(entries.keys[index]));
+            ValueCodec.writeVarInt(stream, unpackKey(entries.keys[index]));
+            ValueCodec.writeValue(stream, entries.values[index]);
         }
+    }
+
+    private static long pack(int plugin, int key) {
+        return ((long) plugin << 32) | (key & 0xFFFFFFFFL);
+    }
+
+    private static int unpackPlugin(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    private static int unpackKey(long packed) {
+        return (int) packed;
+    }
 
-        @Override
-        public int hashCode() {
-            return Integer.hashCode(plugin) ^ Integer.hashCode(key);
+    private static final class Entries {
+
+        private final long[] keys;
+        private final Object[] values;
+
+        private Entries(long[] keys, Object[] values) {
+            this.keys = keys;
+            this.values = values;
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if(!(obj instanceof MetaKey))
-                return false;
+        // Finds the index of the first entry whose plugin is not less than plugin
+        private int findPluginStart(long plugin) {
+            if(plugin > Integer.MAX_VALUE)
+                return keys.length;
+
+            long packed = plugin << 32;
+
+            int low = 0;
+            int high = keys.length - 1;
 
-            MetaKey other = (MetaKey) obj;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
 
-            return other.plugin == plugin && other.key == key;
+                if(keys[mid] < packed) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            return low;
         }
 
     }
-    
+
 }
@@ -28,12 +28,22 @@ public final class ChunkLoc {
     }
 
     public boolean exists(World world) {
-        return y >= 0 && y * 64 < world.getMaxHeight();
+        return exists(world, y);
+    }
+
+    public boolean contains(int blockX, int blockY, int blockZ) {
+        return (blockX >> 4) == x && (blockY >> 6) == y && (blockZ >> 4) == z;
+    }
+
+    public long pack() {
+        return pack(x, y, z);
     }
 
     @Override
     public int hashCode() {
-        return Integer.hashCode(x) ^ Integer.hashCode(y) ^ Integer.hashCode(z);
+        long hash = pack() * 0x9E3779B97F4A7C15L;
+
+        return (int) (hash ^ (hash >>> 32));
     }
 
     @Override
@@ -56,7 +66,24 @@ public final class ChunkLoc {
     }
 
     public static ChunkLoc fromLocation(int x, int y, int z) {
-        return new ChunkLoc(x / 16, y / 64, z / 16);
+        return new ChunkLoc(x >> 4, y >> 6, z >> 4);
+    }
+
+    // 26 bits for x and z and 12 bits for y, which covers every chunk inside the world border
+    public static long pack(int x, int y, int z) {
+        return ((long) x << 38) | (((long) z & 0x3FFFFFFL) << 12) | ((long) y & 0xFFFL);
+    }
+
+    public static ChunkLoc unpack(long packed) {
+        int x = (int) (packed >> 38);
+        int z = (int) ((packed << 26) >> 38);
+        int y = (int) ((packed << 52) >> 52);
+
+        return new ChunkLoc(x, y, z);
+    }
+
+    public static boolean exists(World world, int chunkY) {
+        return chunkY >= 0 && chunkY * 64 < world.getMaxHeight();
     }
 
 }
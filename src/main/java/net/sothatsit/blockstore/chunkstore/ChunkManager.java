@@ -3,6 +3,7 @@ package net.sothatsit.blockstore.chunkstore;
 import net.sothatsit.blockstore.BlockStore;
 import net.sothatsit.blockstore.BlockStoreConfig;
 import net.sothatsit.blockstore.util.Checks;
+import net.sothatsit.blockstore.util.LongObjectMap;
 import net.sothatsit.blockstore.PreloadStrategy;
 import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
@@ -10,23 +11,82 @@ import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.zip.*;
 
 public class ChunkManager {
 
-    private static final ExecutorService executor = Executors.newCachedThreadPool();
+    private static final int UNLOAD_CHECKS_PER_TICK = 256;
+    private static final long UNLOAD_RETRY_MS = 1000;
+    private static final long SAVE_PROGRESS_INTERVAL_MS = 2000;
+    private static final double PROTECTED_MEMORY_RATIO = 0.8;
+    // The most chunk stores to retrieve each tick, and to be waiting on at once, when retrieving every stored section
+    private static final int RETRIEVE_STORES_PER_TICK = 32;
+    private static final int RETRIEVE_MAX_PENDING = 256;
 
     private final World world;
     private final NameStore nameStore;
-    private final Map<ChunkLoc, ChunkStore> storeMap = new ConcurrentHashMap<>();
+    private final LongObjectMap<ChunkStore> storeMap = new LongObjectMap<>();
+    private final File storeFolder;
+    private final RegionFileCache regionFiles;
+    private final StoreIndex storeIndex;
+
+    // Stores are added to newStores from any thread, and moved into the expiry queue on the main thread
+    private final Queue<Long> newStores = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>();
+
+    // Preloads requested during a tick, dispatched together at the start of the next
+    private final Set<Long> pendingPreloads = new LinkedHashSet<>();
+    // The most used stores when the server last stopped, most used first, until they are prefetched
+    private List<Long> warmStores;
+    private final MetaIndexes metaIndexes;
+    private final BlockCountSummary blockCounts;
+    private final StoreListener storeListener;
+
+    private final Map<UUID, Long> playerStores = new HashMap<>();
+    private volatile long[] pinnedStores = new long[0];
+
+    // Lookups of stores, not counting preloads
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // Only used on the main thread to choose which stores to evict when over the memory budget
+    private Map<Long, Residency> residency = new HashMap<>();
+    private volatile long storeMemory = 0;
+
+    private final StoreCache.WriteBack writeBack = this::writeEncoded;
+
+    private final MutationLog mutationLog;
+    private final AtomicBoolean checkpointing = new AtomicBoolean(false);
+    private final Object namesLock = new Object();
+    private volatile boolean namesSaveFailed = false;
 
     public ChunkManager(World world) {
         if (world == null)
@@ -34,6 +94,17 @@ public class ChunkManager {
         
         this.world = world;
         this.nameStore = new NameStore();
+        this.storeFolder = new File(world.getWorldFolder(), "block_place_store");
+
+        if (!storeFolder.exists()) {
+            storeFolder.mkdir();
+        }
+
+        this.regionFiles = new RegionFileCache(new File(storeFolder, "region"), (world.getMaxHeight() + 63) / 64);
+        this.storeIndex = new StoreIndex((world.getMaxHeight() + 63) / 64);
+
+        buildStoreIndex();
+
         {
             File namesFile = getNamesFile();
 
@@ -49,52 +120,654 @@ public class ChunkManager {
             }
         }
 
-        Bukkit.getScheduler().runTaskTimer(BlockStore.getInstance(), () -> {
-            BlockStoreConfig config = BlockStore.getInstance().getBlockStoreConfig();
+        this.warmStores = loadWarmStores();
+        this.metaIndexes = new MetaIndexes(this, new File(storeFolder, "meta_indexes.dat"));
+        this.blockCounts = new BlockCountSummary(this, new File(storeFolder, "block_counts.dat"));
+        this.storeListener = StoreListener.combine(metaIndexes, blockCounts);
+        this.mutationLog = new MutationLog(new File(getStoreFolder(), "mutations"));
 
-            long unloadTime = config.getUnloadTimeMS();
-            PreloadStrategy preloadStrategy = config.getPreloadStrategy();
+        // Counts are loaded before replaying so that the replayed stores report their recovered counts over them
+        blockCounts.load();
 
-            // Take a snapshot of the values at this point in time to loop over
-            new HashSet<>(storeMap.values()).forEach(store -> {
-                if(store.getTimeSinceUse() < unloadTime || preloadStrategy.shouldRemainLoaded(store))
-                    return;
+        Collection<LoadedChunkStore> replayed = replayMutations();
+
+        try {
+            mutationLog.start("BlockStore Log " + world.getName());
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            BlockStore.getInstance().getLogger().severe("Unable to open the BlockStore mutation log in "
+                    + mutationLog.getFolder() + ", changes will only be saved when stores are unloaded");
+        }
+
+        nameStore.setOnNameAdded((name, id) -> mutationLog.logName(id, name));
+
+        // Indexes are loaded after replaying so that every name they use has been restored
+        metaIndexes.load();
+
+        for(LoadedChunkStore store : replayed) {
+            metaIndexes.reindex(store);
+        }
+
+        long checkpointTicks = BlockStore.getInstance().getBlockStoreConfig().getCheckpointIntervalTicks();
+
+        Bukkit.getScheduler().runTaskTimer(BlockStore.getInstance(), this::checkUnloads, 1, 1);
+        Bukkit.getScheduler().runTaskTimer(BlockStore.getInstance(), this::dispatchPreloads, 1, 1);
+        Bukkit.getScheduler().runTaskTimerAsynchronously(BlockStore.getInstance(), this::checkpoint,
+                checkpointTicks, checkpointTicks);
+    }
+
+    private static final Pattern REGION_FILE_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.bsr");
+    private static final Pattern LEGACY_FOLDER_NAME = Pattern.compile("x(-?\\d+)");
+    private static final Pattern LEGACY_FILE_NAME = Pattern.compile("z(-?\\d+)_y(\\d+)(\\.data)?");
+
+    /**
+     * Finds every section with a store saved on disk, from the tables of the region files and the legacy store files.
+     */
+    private void buildStoreIndex() {
+        File[] regions = regionFiles.getFolder().listFiles();
+
+        if(regions != null) {
+            for(File file : regions) {
+                Matcher matcher = REGION_FILE_NAME.matcher(file.getName());
+
+                if(!matcher.matches())
+                    continue;
+
+                try (RegionFile region = new RegionFile(file, storeIndex.getYSections())) {
+                    storeIndex.addRegion(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+                            region.getEntries());
+                } catch (IOException | NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        File[] legacyFolders = storeFolder.listFiles();
+
+        if(legacyFolders == null)
+            return;
+
+        for(File folder : legacyFolders) {
+            Matcher folderMatcher = LEGACY_FOLDER_NAME.matcher(folder.getName());
+
+            if(!folderMatcher.matches())
+                continue;
+
+            String[] files = folder.list();
+
+            if(files == null)
+                continue;
+
+            try {
+                int cx = Integer.parseInt(folderMatcher.group(1));
+
+                for(String file : files) {
+                    Matcher fileMatcher = LEGACY_FILE_NAME.matcher(file);
+
+                    if(!fileMatcher.matches())
+                        continue;
 
-                Bukkit.getScheduler().runTaskAsynchronously(BlockStore.getInstance(), () -> {
-                    unloadStore(store);
+                    storeIndex.add(new ChunkLoc(cx, Integer.parseInt(fileMatcher.group(2)),
+                            Integer.parseInt(fileMatcher.group(1))));
+                }
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public StoreIndex getStoreIndex() {
+        return storeIndex;
+    }
+
+    public MetaIndexes getMetaIndexes() {
+        return metaIndexes;
+    }
+
+    public BlockCountSummary getBlockCounts() {
+        return blockCounts;
+    }
+
+    /**
+     * Returns the packed ChunkLoc of every section that has a store loaded, cached or saved.
+     */
+    public Set<Long> getStoredSections() {
+        Set<Long> sections = new LinkedHashSet<>();
+
+        storeIndex.forEach(sections::add);
+
+        for(long key : storeMap.keys()) {
+            sections.add(key);
+        }
+
+        for(long key : getStoreCache().getKeys(writeBack)) {
+            sections.add(key);
+        }
+
+        return sections;
+    }
+
+    /**
+     * Replays the mutation log, returning the stores that had changes replayed.
+     */
+    private Collection<LoadedChunkStore> replayMutations() {
+        Map<Long, LoadedChunkStore> stores = new HashMap<>();
+        int[] unknownNames = {0};
+
+        int records = mutationLog.replay(new MutationLog.Handler() {
+            private LoadedChunkStore getStore(long chunkKey) {
+                return stores.computeIfAbsent(chunkKey, key -> {
+                    ChunkLoc chunkLoc = ChunkLoc.unpack(key);
+
+                    return (chunkLoc.exists(world) ? loadStoreSync(chunkLoc) : null);
                 });
-            });
-        }, 100, 100);
+            }
+
+            @Override
+            public void onName(int id, String name) {
+                if(!nameStore.restoreName(id, name)) {
+                    unknownNames[0] += 1;
+                }
+            }
+
+            @Override
+            public void onPlaced(long chunkKey, int blockIndex, boolean placed) {
+                LoadedChunkStore store = getStore(chunkKey);
+
+                if(store != null) {
+                    store.setPlaced(blockIndex, placed);
+                }
+            }
+
+            @Override
+            public void onMetaSet(long chunkKey, int blockIndex, int plugin, int key, Object value) {
+                LoadedChunkStore store = getStore(chunkKey);
+
+                if(store != null) {
+                    store.setMetaValue(blockIndex, plugin, key, value);
+                }
+            }
+
+            @Override
+            public void onMetaRemove(long chunkKey, int blockIndex, int plugin, int key) {
+                LoadedChunkStore store = getStore(chunkKey);
+
+                if(store != null) {
+                    store.removeMetaValue(blockIndex, plugin, key);
+                }
+            }
+
+            @Override
+            public void onBlockState(long chunkKey, int blockIndex, BlockMeta state) {
+                LoadedChunkStore store = getStore(chunkKey);
+
+                if(store != null) {
+                    store.setBlockState(blockIndex, state);
+                }
+            }
+        });
+
+        if(records == 0) {
+            mutationLog.deleteSegmentsBefore(mutationLog.getSegment());
+            return Collections.emptyList();
+        }
+
+        Logger logger = BlockStore.getInstance().getLogger();
+
+        if(unknownNames[0] > 0) {
+            logger.severe(unknownNames[0] + " names in the BlockStore mutation log of " + world.getName()
+                    + " do not match names.dat");
+        }
+
+        boolean saved = true;
+
+        for(LoadedChunkStore store : stores.values()) {
+            if(store == null)
+                continue;
+
+            try {
+                writeStore(store);
+            } catch (IOException e) {
+                e.printStackTrace();
+                saved = false;
+            }
+        }
+
+        saved &= saveNames();
+        saved &= regionFiles.forceAll();
+
+        if(saved) {
+            mutationLog.deleteSegmentsBefore(mutationLog.getSegment());
+        } else {
+            logger.severe("Unable to save all changes replayed from the BlockStore mutation log of "
+                    + world.getName() + ", the log will be replayed again on the next start");
+        }
+
+        logger.info("Replayed " + records + " changes to " + stores.size() + " stores in " + world.getName()
+                + " from the BlockStore mutation log");
+
+        stores.values().removeIf(Objects::isNull);
+
+        return stores.values();
+    }
+
+    public void checkpoint() {
+        if(!checkpointing.compareAndSet(false, true))
+            return;
+
+        try {
+            long segment = mutationLog.rotate();
+
+            // Names are saved first so that every name the saved stores refer to is already in names.dat
+            boolean saved = saveNames();
+
+            // Every change logged before the rotation is already in the indexes
+            saved &= metaIndexes.save();
+            saved &= blockCounts.save();
+
+            // Every change logged before the rotation has already been made to its store
+            for(ChunkStore store : storeMap.values()) {
+                if(!store.isDirty())
+                    continue;
+
+                try {
+                    writeStore(store);
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    saved = false;
+                }
+            }
+
+            // Stores that were unloaded into the cache before they were saved
+            saved &= getStoreCache().flush(writeBack);
+
+            // The segments are the only copy of the changes until the region files are on disk
+            saved &= regionFiles.forceAll();
+
+            if(saved) {
+                mutationLog.deleteSegmentsBefore(segment);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            checkpointing.set(false);
+        }
+    }
+
+    public MutationLog getMutationLog() {
+        return mutationLog;
+    }
+
+    private void checkUnloads() {
+        BlockStoreConfig config = BlockStore.getInstance().getBlockStoreConfig();
+        StorageScheduler scheduler = BlockStore.getInstance().getStorageScheduler();
+
+        long now = System.currentTimeMillis();
+        long unloadTime = config.getUnloadTimeMS();
+        PreloadStrategy preloadStrategy = config.getPreloadStrategy();
+
+        Long newStore;
+        while((newStore = newStores.poll()) != null) {
+            expiries.add(new Expiry(newStore, now + unloadTime));
+        }
+
+        // Only look at the stores that are due, and only a limited number of them each tick
+        for(int checked = 0; checked < UNLOAD_CHECKS_PER_TICK; ++checked) {
+            Expiry expiry = expiries.peek();
+
+            if(expiry == null || expiry.deadline > now)
+                break;
+
+            expiries.poll();
+
+            ChunkStore store = storeMap.get(expiry.key);
+
+            if(store == null)
+                continue;
+
+            if(store instanceof LoadingChunkStore && !((LoadingChunkStore) store).hasLoaded()) {
+                requeue(expiry, now + UNLOAD_RETRY_MS);
+                continue;
+            }
+
+            long timeSinceUse = store.getTimeSinceUse();
+
+            if(timeSinceUse < unloadTime) {
+                requeue(expiry, now + unloadTime - timeSinceUse);
+                continue;
+            }
+
+            if(preloadStrategy.shouldRemainLoaded(store)) {
+                requeue(expiry, now + unloadTime);
+                continue;
+            }
+
+            // Stores that don't fit in the save queue are left loaded and checked again shortly
+            if(scheduler.submit(store, StorageScheduler.Priority.SAVE, () -> unloadStore(store)) == null) {
+                requeue(expiry, now + UNLOAD_RETRY_MS);
+            }
+        }
+    }
+
+    private void requeue(Expiry expiry, long deadline) {
+        expiry.deadline = deadline;
+        expiries.add(expiry);
+    }
+
+    public void updatePlayerStore(UUID player, ChunkLoc chunkLoc) {
+        long packed = chunkLoc.pack();
+        Long previous = playerStores.put(player, packed);
+
+        if(previous == null || previous != packed) {
+            updatePinnedStores();
+        }
+    }
+
+    public void removePlayerStore(UUID player) {
+        if(playerStores.remove(player) != null) {
+            updatePinnedStores();
+        }
+    }
+
+    public void clearPlayerStores() {
+        playerStores.clear();
+        updatePinnedStores();
+    }
+
+    private void updatePinnedStores() {
+        long[] pinned = new long[playerStores.size() * 27];
+        int count = 0;
+
+        for(long packed : playerStores.values()) {
+            ChunkLoc chunkLoc = ChunkLoc.unpack(packed);
+
+            for(int dx = -1; dx <= 1; ++dx) {
+                for(int dy = -1; dy <= 1; ++dy) {
+                    for(int dz = -1; dz <= 1; ++dz) {
+                        pinned[count++] = ChunkLoc.pack(chunkLoc.x + dx, chunkLoc.y + dy, chunkLoc.z + dz);
+                    }
+                }
+            }
+        }
+
+        Arrays.sort(pinned);
+
+        this.pinnedStores = pinned;
+    }
+
+    public boolean isPinned(ChunkLoc chunkLoc) {
+        return Arrays.binarySearch(pinnedStores, chunkLoc.pack()) >= 0;
+    }
+
+    /**
+     * Re-estimates the memory used by the loaded stores. Stores that have been used again since the last
+     * update are moved from the probation segment into the protected segment. Must be called on the main thread.
+     */
+    public long updateStoreMemory() {
+        Map<Long, Residency> updated = new HashMap<>();
+        long total = 0;
+
+        for(ChunkStore store : storeMap.values()) {
+            long key = store.getChunkLoc().pack();
+            long lastUse = store.getLastUse();
+            Residency entry = residency.get(key);
+
+            if(entry == null) {
+                entry = new Residency(lastUse);
+            } else if(entry.lastUse != lastUse) {
+                entry.lastUse = lastUse;
+                entry.isProtected = true;
+            }
+
+            entry.size = store.estimateSize();
+            total += entry.size;
+
+            updated.put(key, entry);
+        }
+
+        this.residency = updated;
+        this.storeMemory = total;
+
+        return total;
+    }
+
+    /**
+     * Evicts stores until roughly bytes of memory have been freed, using the estimates from the last call to
+     * updateStoreMemory. Clean stores are evicted before dirty stores, which are saved before they are removed.
+     * Within each, stores in the probation segment go before protected stores, and the least recently used first.
+     * Stores near players are never evicted. Must be called on the main thread. Returns the number of bytes freed.
+     */
+    public long evictStores(long bytes) {
+        StorageScheduler scheduler = BlockStore.getInstance().getStorageScheduler();
+        List<Residency> protectedStores = new ArrayList<>();
+        List<Residency> candidates = new ArrayList<>();
+        long protectedSize = 0;
+
+        for(Map.Entry<Long, Residency> entry : residency.entrySet()) {
+            Residency candidate = entry.getValue();
+
+            candidate.store = storeMap.get(entry.getKey());
+
+            if(candidate.store == null)
+                continue;
+
+            if(candidate.isProtected) {
+                protectedStores.add(candidate);
+                protectedSize += candidate.size;
+            }
+
+            if(candidate.store instanceof LoadingChunkStore && !((LoadingChunkStore) candidate.store).hasLoaded())
+                continue;
+
+            if(isPinned(candidate.store.getChunkLoc()))
+                continue;
+
+            candidate.dirty = candidate.store.isDirty();
+            candidates.add(candidate);
+        }
+
+        // Keep the protected segment within its share of memory by demoting its least recently used stores
+        protectedStores.sort(Comparator.comparingLong(candidate -> candidate.lastUse));
+
+        for(Residency candidate : protectedStores) {
+            if(protectedSize <= storeMemory * PROTECTED_MEMORY_RATIO)
+                break;
+
+            candidate.isProtected = false;
+            protectedSize -= candidate.size;
+        }
+
+        candidates.sort(Comparator.<Residency, Boolean>comparing(candidate -> candidate.dirty)
+                .thenComparing(candidate -> candidate.isProtected)
+                .thenComparingLong(candidate -> candidate.lastUse));
+
+        long freed = 0;
+
+        for(Residency candidate : candidates) {
+            if(freed >= bytes)
+                break;
+
+            ChunkStore store = candidate.store;
+
+            // Unloading into the cache compresses the store, which is left to the I/O threads
+            if(!candidate.dirty && !getStoreCache().isEnabled()) {
+                unloadStore(store);
+
+                if(storeMap.get(store.getChunkLoc().pack()) == store)
+                    continue;
+            } else if(scheduler.submit(store, StorageScheduler.Priority.SAVE, () -> unloadStore(store)) == null) {
+                // The save queue is full
+                break;
+            }
+
+            freed += candidate.size;
+            evictions.increment();
+        }
+
+        for(Residency candidate : residency.values()) {
+            candidate.store = null;
+        }
+
+        return freed;
+    }
+
+    private static StoreCache getStoreCache() {
+        return BlockStore.getInstance().getStoreCache();
+    }
+
+    public long getStoreMemory() {
+        return storeMemory;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+
+        return (total == 0 ? 1 : hits / (double) total);
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
     }
 
     public File getNamesFile() {
         return new File(getStoreFolder(), "names.dat");
     }
 
-    public void saveNames() {
+    public boolean saveNames() {
         File namesFile = getNamesFile();
-        
-        if (!namesFile.exists()) {
+        File tempFile = new File(namesFile.getPath() + ".tmp");
+
+        synchronized (namesLock) {
             try {
-                namesFile.createNewFile();
-            } catch (IOException e) {
+                try (ObjectOutputStream stream = new ObjectOutputStream(new FileOutputStream(tempFile))) {
+                    nameStore.write(stream);
+                }
+
+                // Replace names.dat in one step so that a crash can't leave it partly written
+                replaceFile(tempFile, namesFile);
+
+                namesSaveFailed = false;
+                return true;
+            } catch (Exception e) {
                 e.printStackTrace();
+
+                namesSaveFailed = true;
+                return false;
             }
         }
-        
+    }
+    
+    static void replaceFile(File from, File to) throws IOException {
+        // Forced to disk first, so that a crash after the move cannot leave an empty or partly written file
+        try (FileChannel channel = FileChannel.open(from.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+
         try {
-            FileOutputStream fileStream = new FileOutputStream(namesFile);
-            ObjectOutputStream stream = new ObjectOutputStream(fileStream);
-            
-            nameStore.write(stream);
-            
-            stream.flush();
-            stream.close();
-        } catch (Exception e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public File getWarmStoresFile() {
+        return new File(getStoreFolder(), "warm.dat");
+    }
+
+    private List<Long> loadWarmStores() {
+        File file = getWarmStoresFile();
+
+        if(!file.exists())
+            return Collections.emptyList();
+
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int count = stream.readInt();
+            List<Long> stores = new ArrayList<>(Math.min(count, 4096));
+
+            for(int index = 0; index < count; ++index) {
+                stores.add(stream.readLong());
+            }
+
+            return stores;
+        } catch (IOException e) {
             e.printStackTrace();
+            return Collections.emptyList();
         }
     }
-    
+
+    /**
+     * Saves the most used of stores, most used first, to be prefetched when the server next starts.
+     */
+    private void saveWarmStores(List<ChunkStore> stores) {
+        int limit = BlockStore.getInstance().getBlockStoreConfig().getWarmStores();
+        File file = getWarmStoresFile();
+
+        if(limit == 0) {
+            file.delete();
+            return;
+        }
+
+        List<ChunkStore> ranked = new ArrayList<>(stores);
+
+        // Stores that are still loading are kept rather than waiting for them to check whether they are empty
+        ranked.removeIf(store -> store.getUses() == 0 || (store instanceof LoadedChunkStore && store.isEmpty()));
+        ranked.sort(Comparator.comparingInt(ChunkStore::getUses).reversed());
+
+        if(ranked.size() > limit) {
+            ranked = ranked.subList(0, limit);
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        try {
+            try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                stream.writeInt(ranked.size());
+
+                for(ChunkStore store : ranked) {
+                    stream.writeLong(store.getChunkLoc().pack());
+                }
+            }
+
+            replaceFile(tempFile, file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Queues preloads of the stores that were most used when the server last stopped. They are loaded a
+     * preload budget at a time, after any stores that were already waiting to be preloaded. Only runs once.
+     */
+    public void prefetchWarmStores() {
+        List<Long> stores = warmStores;
+
+        warmStores = Collections.emptyList();
+
+        for(long key : stores) {
+            ChunkLoc chunkLoc = ChunkLoc.unpack(key);
+
+            if(!hasSavedStore(chunkLoc))
+                continue;
+
+            preloadChunkStore(chunkLoc.x, chunkLoc.y, chunkLoc.z);
+        }
+
+        if(!stores.isEmpty()) {
+            BlockStore.getInstance().getLogger().info("Prefetching up to " + stores.size()
+                    + " chunk stores used before the last restart in " + world.getName());
+        }
+    }
+
     public NameStore getNameStore() {
         return nameStore;
     }
@@ -103,42 +776,50 @@ public class ChunkManager {
         return world;
     }
     
+    /**
+     * Returns a copy of the loaded stores by their location. getLoadedStores avoids building the map.
+     */
     public Map<ChunkLoc, ChunkStore> getChunkStores() {
-        return storeMap;
+        Map<ChunkLoc, ChunkStore> stores = new HashMap<>();
+
+        for(ChunkStore store : storeMap.values()) {
+            stores.put(store.getChunkLoc(), store);
+        }
+
+        return stores;
+    }
+
+    /**
+     * Returns a snapshot of the loaded stores.
+     */
+    public List<ChunkStore> getLoadedStores() {
+        return storeMap.values();
     }
     
     public File getStoreFolder() {
-        File f = new File(world.getWorldFolder(), "block_place_store");
-        
-        if (!f.exists()) {
-            f.mkdir();
-        }
-        
-        return f;
+        return storeFolder;
     }
     
-    public File getChunkXFolder(int cx) {
-        File f = new File(getStoreFolder(), "x" + cx);
-        
-        if (!f.exists()) {
-            f.mkdir();
-        }
-        
-        return f;
+    private File getLegacyChunkXFolder(int cx) {
+        return new File(getStoreFolder(), "x" + cx);
     }
 
     public File getLegacyStoreFile(ChunkLoc chunkLoc) {
         if(!chunkLoc.exists(world))
             return null;
 
-        return new File(getChunkXFolder(chunkLoc.x), "z" + chunkLoc.z + "_y" + chunkLoc.y);
+        return new File(getLegacyChunkXFolder(chunkLoc.x), "z" + chunkLoc.z + "_y" + chunkLoc.y);
     }
     
     public File getStoreFile(ChunkLoc chunkLoc) {
         if(!chunkLoc.exists(world))
             return null;
 
-        return new File(getChunkXFolder(chunkLoc.x), "z" + chunkLoc.z + "_y" + chunkLoc.y + ".data");
+        return new File(getLegacyChunkXFolder(chunkLoc.x), "z" + chunkLoc.z + "_y" + chunkLoc.y + ".data");
+    }
+
+    public RegionFileCache getRegionFiles() {
+        return regionFiles;
     }
 
     public ChunkStore getChunkStore(Location location) {
@@ -146,21 +827,201 @@ public class ChunkManager {
     }
 
     public ChunkStore getChunkStore(ChunkLoc chunkLoc, boolean load) {
-        if(!chunkLoc.exists(world))
-            throw new IllegalArgumentException("chunkLoc " + chunkLoc + " does not exist in this world");
+        return getChunkStore(chunkLoc.x, chunkLoc.y, chunkLoc.z, load);
+    }
+
+    public ChunkStore getChunkStore(int cx, int cy, int cz, boolean load) {
+        if(!load) {
+            if(!ChunkLoc.exists(world, cy))
+                throw new IllegalArgumentException("chunkLoc " + new ChunkLoc(cx, cy, cz) + " does not exist in this world");
+
+            return storeMap.get(ChunkLoc.pack(cx, cy, cz));
+        }
+
+        return getChunkStore(cx, cy, cz, StorageScheduler.Priority.RETRIEVE);
+    }
+
+    private ChunkStore getChunkStore(int cx, int cy, int cz, StorageScheduler.Priority priority) {
+        if(!ChunkLoc.exists(world, cy))
+            throw new IllegalArgumentException("chunkLoc " + new ChunkLoc(cx, cy, cz) + " does not exist in this world");
+
+        long key = ChunkLoc.pack(cx, cy, cz);
+        ChunkStore store = storeMap.get(key);
+
+        if(store != null) {
+            if(priority != StorageScheduler.Priority.PRELOAD) {
+                hits.increment();
+
+                if(store instanceof LoadingChunkStore) {
+                    ((LoadingChunkStore) store).promote(priority);
+                }
+            }
+
+            return store;
+        }
+
+        if(priority != StorageScheduler.Priority.PRELOAD) {
+            misses.increment();
+        }
+
+        return storeMap.computeIfAbsent(key, packed -> {
+            ChunkLoc chunkLoc = new ChunkLoc(cx, cy, cz);
+
+            // Sections that have nothing saved are created empty straight away instead of being loaded
+            if(!hasSavedStore(chunkLoc)) {
+                newStores.add(key);
+
+                return createStore(chunkLoc);
+            }
+
+            // The map is thread safe, so the loaded store is swapped in straight away on the thread that loaded it
+            LoadingChunkStore chunkStore = loadStore(chunkLoc, priority,
+                    (loadingStore, loadedStore) -> replaceLoadedStore(key, loadingStore, loadedStore));
+
+            newStores.add(key);
+
+            return chunkStore;
+        });
+    }
+
+    private void replaceLoadedStore(long key, LoadingChunkStore loadingStore, LoadedChunkStore loadedStore) {
+        if(storeMap.replace(key, loadingStore, loadedStore))
+            return;
+
+        // A store whose preload was cancelled may still have been changed by something that had already got it.
+        // It is put back so that the change is saved, unless a newer copy of the store has been loaded or cached since.
+        if(loadedStore.isDirty() && !getStoreCache().contains(writeBack, key)) {
+            if(storeMap.computeIfAbsent(key, packed -> loadedStore) == loadedStore) {
+                newStores.add(key);
+            }
+        }
+    }
+
+    /**
+     * Cancels the preload of the given section if it is still queued and nothing is waiting for it.
+     */
+    public boolean cancelPreload(int cx, int cy, int cz) {
+        if(!ChunkLoc.exists(world, cy))
+            return false;
+
+        long key = ChunkLoc.pack(cx, cy, cz);
+
+        synchronized (pendingPreloads) {
+            if(pendingPreloads.remove(key))
+                return true;
+        }
+
+        ChunkStore store = storeMap.get(key);
+
+        if(!(store instanceof LoadingChunkStore))
+            return false;
+
+        LoadingChunkStore loadingStore = (LoadingChunkStore) store;
+
+        return loadingStore.cancelPreload(() -> storeMap.remove(key, loadingStore));
+    }
+
+    /**
+     * Drops the pending preloads, and cancels the preload of every store that has not started loading.
+     */
+    public void cancelPreloads() {
+        synchronized (pendingPreloads) {
+            pendingPreloads.clear();
+        }
+
+        for(ChunkStore store : storeMap.values()) {
+            if(!(store instanceof LoadingChunkStore))
+                continue;
+
+            LoadingChunkStore loadingStore = (LoadingChunkStore) store;
+            long key = store.getChunkLoc().pack();
+
+            loadingStore.cancelPreload(() -> storeMap.remove(key, loadingStore));
+        }
+    }
+
+    /**
+     * Returns whether the store of the given section may be saved on disk or in the cache of unloaded stores.
+     */
+    private boolean hasSavedStore(ChunkLoc chunkLoc) {
+        // The cache is checked first, as stores are added to the index before they leave the cache
+        return getStoreCache().contains(writeBack, chunkLoc.pack()) || storeIndex.contains(chunkLoc);
+    }
+
+    /**
+     * Copies the placed blocks of a chunk section into words, loading its store if it has saved data.
+     * Returns false if no blocks are placed in the section, without creating a store for it.
+     */
+    public boolean copyPlacedWords(int cx, int cy, int cz, long[] words) {
+        if(!ChunkLoc.exists(world, cy))
+            return false;
+
+        ChunkStore store = storeMap.get(ChunkLoc.pack(cx, cy, cz));
+
+        if(store == null) {
+            if(!hasSavedStore(new ChunkLoc(cx, cy, cz)))
+                return false;
+
+            store = getChunkStore(cx, cy, cz, StorageScheduler.Priority.RETRIEVE);
+        }
+
+        return store.copyPlacedWords(words);
+    }
+
+    private ChunkStore getChunkStoreAt(int x, int y, int z) {
+        return getChunkStore(x >> 4, y >> 6, z >> 4, true);
+    }
+
+    public boolean isPlaced(int x, int y, int z) {
+        return getChunkStoreAt(x, y, z).isPlaced(BlockLoc.toBlockIndex(x, y, z));
+    }
+
+    public void setPlaced(int x, int y, int z, boolean value) {
+        int blockIndex = BlockLoc.toBlockIndex(x, y, z);
+
+        getChunkStoreAt(x, y, z).setPlaced(blockIndex, value);
+        mutationLog.logPlaced(getChunkKey(x, y, z), blockIndex, value);
+    }
+
+    public Object getMetaValue(int x, int y, int z, int plugin, int key) {
+        return getChunkStoreAt(x, y, z).getMetaValue(BlockLoc.toBlockIndex(x, y, z), plugin, key);
+    }
+
+    public Map<Integer, Object> getMetaValues(int x, int y, int z, int plugin) {
+        return getChunkStoreAt(x, y, z).getMetaValues(BlockLoc.toBlockIndex(x, y, z), plugin);
+    }
+
+    public Map<Integer, Map<Integer, Object>> getMetaValues(int x, int y, int z) {
+        return getChunkStoreAt(x, y, z).getMetaValues(BlockLoc.toBlockIndex(x, y, z));
+    }
+
+    /**
+     * Applies every change in changes to the store of a chunk section under one lock, and logs them together.
+     */
+    public void applyChanges(int cx, int cy, int cz, StoreChanges changes) {
+        if(changes.isEmpty())
+            return;
+
+        getChunkStore(cx, cy, cz, true).applyChanges(changes);
+        mutationLog.logChanges(ChunkLoc.pack(cx, cy, cz), changes);
+    }
 
-        if(!load)
-            return storeMap.get(chunkLoc);
+    public void setMetaValue(int x, int y, int z, int plugin, int key, Object value) {
+        int blockIndex = BlockLoc.toBlockIndex(x, y, z);
 
-        return storeMap.computeIfAbsent(chunkLoc, key -> {
-            LoadingChunkStore chunkStore = loadStore(chunkLoc);
+        getChunkStoreAt(x, y, z).setMetaValue(blockIndex, plugin, key, value);
+        mutationLog.logMetaSet(getChunkKey(x, y, z), blockIndex, plugin, key, value);
+    }
 
-            chunkStore.onLoad(loadedChunkStore -> Bukkit.getScheduler().runTask(BlockStore.getInstance(), () -> {
-                storeMap.replace(chunkLoc, chunkStore, loadedChunkStore);
-            }));
+    public void removeMetaValue(int x, int y, int z, int plugin, int key) {
+        int blockIndex = BlockLoc.toBlockIndex(x, y, z);
 
-            return chunkStore;
-        });
+        getChunkStoreAt(x, y, z).removeMetaValue(blockIndex, plugin, key);
+        mutationLog.logMetaRemove(getChunkKey(x, y, z), blockIndex, plugin, key);
+    }
+
+    private static long getChunkKey(int x, int y, int z) {
+        return ChunkLoc.pack(x >> 4, y >> 6, z >> 4);
     }
 
     public void retrieveChunkStore(Location location, Consumer<ChunkStore> consumer) {
@@ -177,12 +1038,50 @@ public class ChunkManager {
         }
     }
 
+    /**
+     * Retrieves the store of every section with saved data a few at a time from the main thread, passing each to
+     * consumer, and then runs onComplete once they all have been. Stops without completing if cancelled returns true.
+     */
+    public void retrieveStoredStores(BooleanSupplier cancelled, Consumer<ChunkStore> consumer, Runnable onComplete) {
+        Iterator<Long> sections = getStoredSections().iterator();
+        AtomicInteger pending = new AtomicInteger();
+        BukkitTask[] task = {null};
+
+        task[0] = Bukkit.getScheduler().runTaskTimer(BlockStore.getInstance(), () -> {
+            if(cancelled.getAsBoolean()) {
+                task[0].cancel();
+                return;
+            }
+
+            for(int count = 0; count < RETRIEVE_STORES_PER_TICK && pending.get() < RETRIEVE_MAX_PENDING; ++count) {
+                if(!sections.hasNext())
+                    break;
+
+                pending.incrementAndGet();
+
+                retrieveChunkStore(ChunkLoc.unpack(sections.next()), store -> {
+                    try {
+                        consumer.accept(store);
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                });
+            }
+
+            if(sections.hasNext() || pending.get() > 0)
+                return;
+
+            task[0].cancel();
+            onComplete.run();
+        }, 1, 1);
+    }
+
     public void moveBlocksAsync(Collection<Block> blocks, BlockFace direction) {
         Set<BlockLoc> blockLocs = blocks.stream()
                 .map(BlockLoc::fromBlock)
                 .collect(Collectors.toSet());
 
-        executor.execute(() -> {
+        Bukkit.getScheduler().runTaskAsynchronously(BlockStore.getInstance(), () -> {
             moveBlocks(blockLocs, direction);
         });
     }
@@ -201,13 +1100,16 @@ public class ChunkManager {
                 continue;
 
             getChunkStore(location.chunkLoc, true).setPlaced(location, false);
+            mutationLog.logPlaced(location.chunkLoc.pack(), location.blockIndex, false);
         }
 
         newStates.forEach((location, state) -> {
             if(state != null) {
                 getChunkStore(location.chunkLoc, true).setBlockState(location, state);
+                mutationLog.logBlockState(location.chunkLoc.pack(), location.blockIndex, state);
             } else {
                 getChunkStore(location.chunkLoc, true).setPlaced(location, false);
+                mutationLog.logPlaced(location.chunkLoc.pack(), location.blockIndex, false);
             }
         });
     }
@@ -220,7 +1122,7 @@ public class ChunkManager {
 
     public void preloadChunk(Chunk chunk) {
         for(int y = 0; y < (world.getMaxHeight() + 63) / 64; ++y) {
-            preloadChunkStore(new ChunkLoc(chunk.getX(), y, chunk.getZ()));
+            preloadChunkStore(chunk.getX(), y, chunk.getZ());
         }
     }
 
@@ -228,44 +1130,212 @@ public class ChunkManager {
         for(int dx = -1; dx <= 1; ++dx) {
             for(int dy = -1; dy <= 1; ++dy) {
                 for(int dz = -1; dz <= 1; ++dz) {
-                    ChunkLoc relative = new ChunkLoc(chunkLoc.x + dx, chunkLoc.y + dy, chunkLoc.z + dz);
-
-                    preloadChunkStore(relative);
+                    preloadChunkStore(chunkLoc.x + dx, chunkLoc.y + dy, chunkLoc.z + dz);
                 }
             }
         }
     }
 
     public void preloadChunkStore(ChunkLoc chunkLoc) {
-        if(!chunkLoc.exists(world))
+        preloadChunkStore(chunkLoc.x, chunkLoc.y, chunkLoc.z);
+    }
+
+    public void preloadChunkStore(int cx, int cy, int cz) {
+        if(!ChunkLoc.exists(world, cy))
             return;
 
-        ChunkStore store = getChunkStore(chunkLoc, true);
+        long key = ChunkLoc.pack(cx, cy, cz);
+        ChunkStore store = storeMap.get(key);
+
+        // Preloads only keep stores loaded, so that the stores counted as most used at shutdown are the ones really used
+        if(store != null) {
+            store.touch();
+            return;
+        }
+
+        synchronized (pendingPreloads) {
+            pendingPreloads.add(key);
+        }
+    }
+
+    /**
+     * Submits up to the preload budget of the preloads requested since the last tick, in the order they were
+     * requested. Each batch is submitted in the order the stores are laid out on disk so that they are read in order.
+     */
+    private void dispatchPreloads() {
+        int budget = BlockStore.getInstance().getBlockStoreConfig().getPreloadBudget();
+        List<PreloadRequest> batch;
+
+        synchronized (pendingPreloads) {
+            if(pendingPreloads.isEmpty())
+                return;
+
+            batch = new ArrayList<>(Math.min(budget, pendingPreloads.size()));
+            Iterator<Long> iterator = pendingPreloads.iterator();
+
+            while(batch.size() < budget && iterator.hasNext()) {
+                ChunkLoc chunkLoc = ChunkLoc.unpack(iterator.next());
 
-        store.setLastUse();
+                iterator.remove();
+                batch.add(new PreloadRequest(chunkLoc, regionFiles.getSectorHint(chunkLoc)));
+            }
+        }
+
+        batch.sort(null);
+
+        StorageScheduler scheduler = BlockStore.getInstance().getStorageScheduler();
+
+        for(int index = 0; index < batch.size(); ++index) {
+            ChunkLoc chunkLoc = batch.get(index).chunkLoc;
+            ChunkStore store = storeMap.get(chunkLoc.pack());
+
+            if(store == null) {
+                if(!scheduler.hasCapacity(StorageScheduler.Priority.PRELOAD)) {
+                    requeuePreloads(batch.subList(index, batch.size()));
+                    return;
+                }
+
+                store = getChunkStore(chunkLoc.x, chunkLoc.y, chunkLoc.z, StorageScheduler.Priority.PRELOAD);
+            }
+
+            store.touch();
+        }
+    }
+
+    private void requeuePreloads(List<PreloadRequest> requests) {
+        synchronized (pendingPreloads) {
+            for(PreloadRequest request : requests) {
+                pendingPreloads.add(request.chunkLoc.pack());
+            }
+        }
+    }
+
+    public int getPendingPreloads() {
+        synchronized (pendingPreloads) {
+            return pendingPreloads.size();
+        }
     }
 
     public LoadingChunkStore loadStore(ChunkLoc chunkLoc) {
+        return loadStore(chunkLoc, StorageScheduler.Priority.RETRIEVE);
+    }
+
+    public LoadingChunkStore loadStore(ChunkLoc chunkLoc, StorageScheduler.Priority priority) {
+        return loadStore(chunkLoc, priority, null);
+    }
+
+    private LoadingChunkStore loadStore(ChunkLoc chunkLoc, StorageScheduler.Priority priority,
+                                        BiConsumer<LoadingChunkStore, LoadedChunkStore> onLoaded) {
         Checks.ensureTrue(chunkLoc.exists(world), "chunkLoc does not exist in this world");
 
         LoadingChunkStore loadingChunkStore = new LoadingChunkStore(world, chunkLoc);
+        StorageScheduler scheduler = BlockStore.getInstance().getStorageScheduler();
+        Runnable load = () -> {
+            LoadedChunkStore loadedChunkStore = loadStoreSync(chunkLoc, loadingChunkStore::setPlacedBlocks);
 
-        executor.execute(() -> {
-            loadingChunkStore.setDelegate(loadStoreSync(chunkLoc));
-        });
+            loadingChunkStore.setDelegate(loadedChunkStore);
+
+            if(onLoaded != null) {
+                onLoaded.accept(loadingChunkStore, loadedChunkStore);
+            }
+        };
+
+        StorageScheduler.Task task = scheduler.submit(null, priority, load);
+
+        // The store has already been handed out, so it must load even if the preload queue filled up
+        if(task == null) {
+            task = scheduler.submit(null, StorageScheduler.Priority.RETRIEVE, load);
+        }
+
+        loadingChunkStore.setLoadTask(task);
 
         return loadingChunkStore;
     }
 
     public LoadedChunkStore loadStoreSync(ChunkLoc chunkLoc) {
+        return loadStoreSync(chunkLoc, null);
+    }
+
+    private LoadedChunkStore createStore(ChunkLoc chunkLoc) {
+        LoadedChunkStore store = new LoadedChunkStore(world, chunkLoc);
+
+        store.setListener(storeListener);
+
+        return store;
+    }
+
+    private LoadedChunkStore loadStoreSync(ChunkLoc chunkLoc, Consumer<BlockContainer> onPlacedRead) {
+        LoadedChunkStore store = readStoreSync(chunkLoc, onPlacedRead);
+
+        // Set before the store is handed out so that no change to it is missed
+        store.setListener(storeListener);
+
+        return store;
+    }
+
+    private LoadedChunkStore readStoreSync(ChunkLoc chunkLoc, Consumer<BlockContainer> onPlacedRead) {
         Checks.ensureTrue(chunkLoc.exists(world), "chunkLoc does not exist in this world");
 
+        try {
+            StoreCache.Entry cached = getStoreCache().take(writeBack, chunkLoc.pack());
+
+            if(cached != null)
+                return loadCachedStore(chunkLoc, cached, onPlacedRead);
+
+            if(!storeIndex.contains(chunkLoc))
+                return new LoadedChunkStore(world, chunkLoc);
+
+            byte[] entry = regionFiles.read(chunkLoc);
+
+            if(entry == null)
+                return migrateLegacyStore(chunkLoc);
+
+            LoadedChunkStore store = decodeStore(chunkLoc, entry, onPlacedRead);
+
+            if (store == null)
+                return new LoadedChunkStore(world, chunkLoc);
+
+            return store;
+        } catch (IOException | ClassNotFoundException e) {
+            e.printStackTrace();
+
+            BlockStore.getInstance().getLogger().severe("Possibly corrupted BlockStore store " + chunkLoc
+                    + " in " + regionFiles.getRegionFile(
+                    RegionFile.toRegionCoord(chunkLoc.x), RegionFile.toRegionCoord(chunkLoc.z)));
+
+            return new LoadedChunkStore(world, chunkLoc);
+        }
+    }
+
+    private LoadedChunkStore loadCachedStore(ChunkLoc chunkLoc, StoreCache.Entry cached,
+                                             Consumer<BlockContainer> onPlacedRead) throws IOException, ClassNotFoundException {
+        LoadedChunkStore store = null;
+
+        if(cached.getData() != null) {
+            store = decodeStore(chunkLoc, cached.getData(), onPlacedRead);
+        }
+
+        if(store == null) {
+            store = new LoadedChunkStore(world, chunkLoc);
+        }
+
+        // The region file does not have the cached changes until the store is saved again
+        if(cached.isDirty()) {
+            store.markDirty();
+        }
+
+        return store;
+    }
+
+    private LoadedChunkStore migrateLegacyStore(ChunkLoc chunkLoc) {
         File legacyFile = getLegacyStoreFile(chunkLoc);
         File file = getStoreFile(chunkLoc);
 
         if (!legacyFile.exists() && !file.exists())
             return new LoadedChunkStore(world, chunkLoc);
 
+        LoadedChunkStore store;
+
         try {
             ObjectInputStream stream;
             int version;
@@ -281,14 +1351,9 @@ public class ChunkManager {
                 version = 1;
             }
 
-            LoadedChunkStore store = LoadedChunkStore.read(stream, version);
-
-            if (store == null)
-                return new LoadedChunkStore(world, chunkLoc);
+            store = LoadedChunkStore.read(stream, version);
 
             stream.close();
-
-            return store;
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
 
@@ -296,56 +1361,370 @@ public class ChunkManager {
 
             return new LoadedChunkStore(world, chunkLoc);
         }
+
+        if (store == null)
+            return new LoadedChunkStore(world, chunkLoc);
+
+        // Move the store into its region file so that the legacy files are no longer needed
+        try {
+            writeStore(store);
+
+            legacyFile.delete();
+            file.delete();
+
+            File xFolder = getLegacyChunkXFolder(chunkLoc.x);
+            String[] remaining = xFolder.list();
+
+            if(remaining != null && remaining.length == 0) {
+                xFolder.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            BlockStore.getInstance().getLogger().severe("Unable to migrate BlockStore file " + file + " to its region file");
+        }
+
+        return store;
+    }
+
+    private LoadedChunkStore decodeStore(ChunkLoc chunkLoc, byte[] entry,
+                                         Consumer<BlockContainer> onPlacedRead) throws IOException, ClassNotFoundException {
+        int version = entry[0];
+
+        ByteArrayInputStream byteStream = new ByteArrayInputStream(entry, 1, entry.length - 1);
+        GZIPInputStream zipStream = new GZIPInputStream(byteStream);
+
+        if(version <= 2) {
+            try (ObjectInputStream stream = new ObjectInputStream(zipStream)) {
+                return LoadedChunkStore.read(stream, version);
+            }
+        }
+
+        try (DataInputStream stream = new DataInputStream(new BufferedInputStream(zipStream))) {
+            switch (version) {
+                case 3:
+                    return LoadedChunkStore.readVersion3(world, chunkLoc, stream, onPlacedRead);
+                case 4:
+                    return LoadedChunkStore.readVersion4(world, chunkLoc, stream, onPlacedRead);
+                default:
+                    throw new IOException("Unknown store version " + version);
+            }
+        }
+    }
+
+    private static LoadedChunkStore getLoadedStore(ChunkStore store) {
+        if(store instanceof LoadingChunkStore) {
+            LoadingChunkStore loadingStore = (LoadingChunkStore) store;
+
+            loadingStore.await();
+            store = loadingStore.getDelegate();
+        }
+
+        return (LoadedChunkStore) store;
     }
-    
-    public void unloadStore(ChunkStore store) {
-        if(store == null)
-            return;
 
+    /**
+     * Returns the number of bytes written to the store's region file.
+     */
+    private int writeStore(ChunkStore store) throws IOException {
+        LoadedChunkStore loadedStore = getLoadedStore(store);
         ChunkLoc chunkLoc = store.getChunkLoc();
+        Lock saveLock = loadedStore.getSaveLock();
 
-        storeMap.remove(store.getChunkLoc(), store);
+        // Saves of the same store from a checkpoint and an unload are not run at once, so an older
+        // snapshot can never be written over a newer one that has already been marked as saved
+        try {
+            saveLock.lock();
 
-        if(!store.isDirty())
-            return;
+            // Only the snapshot is taken under the store's lock, so changes can still be made while it is written.
+            // Those changes have a newer version than the snapshot, so the store stays dirty until they are saved.
+            LoadedChunkStore.Snapshot snapshot = loadedStore.snapshot();
 
-        boolean empty = store.isEmpty();
+            if(snapshot.getVersion() < loadedStore.getSavedVersion())
+                return 0;
 
-        File file = getStoreFile(chunkLoc);
-        File legacyFile = getLegacyStoreFile(chunkLoc);
-        
-        if (!file.exists() && !empty) {
-            try {
-                file.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
+            // An older copy of the store that was evicted from the cache may still be being written back
+            getStoreCache().awaitWriteBack(writeBack, chunkLoc.pack());
+
+            if(snapshot.isEmpty()) {
+                regionFiles.delete(chunkLoc);
+                storeIndex.remove(chunkLoc);
+                loadedStore.markSaved(snapshot.getVersion());
+                return 0;
             }
-        } else if (file.exists() && empty) {
-            file.delete();
+
+            ExposedByteArrayOutputStream byteStream = encodeStore(snapshot);
+
+            // Added before writing so that the index never misses a store that is on disk
+            storeIndex.add(chunkLoc);
+            regionFiles.write(chunkLoc, byteStream.getBuffer(), byteStream.size());
+            loadedStore.markSaved(snapshot.getVersion());
+
+            return byteStream.size();
+        } finally {
+            saveLock.unlock();
         }
-        
+    }
+
+    private static ExposedByteArrayOutputStream encodeStore(LoadedChunkStore.Snapshot snapshot) throws IOException {
+        ExposedByteArrayOutputStream byteStream = new ExposedByteArrayOutputStream();
+        byteStream.write(LoadedChunkStore.FORMAT_VERSION);
+
+        GZIPOutputStream zipStream = new GZIPOutputStream(byteStream);
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(zipStream));
+
+        snapshot.write(stream);
+
+        stream.flush();
+        stream.close();
+
+        return byteStream;
+    }
+
+    private void writeEncoded(long key, byte[] data) throws IOException {
+        ChunkLoc chunkLoc = ChunkLoc.unpack(key);
+
+        if(data == null) {
+            regionFiles.delete(chunkLoc);
+            storeIndex.remove(chunkLoc);
+        } else {
+            storeIndex.add(chunkLoc);
+            regionFiles.write(chunkLoc, data, data.length);
+        }
+    }
+
+    /**
+     * Moves the store into the cache of unloaded stores, where it is written to its region file later if it was changed.
+     * Returns the number of bytes of changes cached.
+     */
+    private int cacheStore(ChunkStore store) throws IOException {
+        LoadedChunkStore loadedStore = getLoadedStore(store);
+        long key = store.getChunkLoc().pack();
+        Lock saveLock = loadedStore.getSaveLock();
+
+        // A save that is still writing an older snapshot finishes before this one is cached
         try {
-            FileOutputStream fileStream = new FileOutputStream(file);
-            GZIPOutputStream zipStream = new GZIPOutputStream(fileStream);
-            ObjectOutputStream stream = new ObjectOutputStream(zipStream);
-
-            stream.writeInt(2);
-            store.write(stream);
-            
-            stream.flush();
-            stream.close();
+            saveLock.lock();
+
+            LoadedChunkStore.Snapshot snapshot = loadedStore.snapshot();
+            boolean dirty = (snapshot.getVersion() != loadedStore.getSavedVersion());
+            byte[] data = (snapshot.isEmpty() ? null : encodeStore(snapshot).toByteArray());
+
+            // The store is only cached and marked as saved together, so a checkpoint sees it in one or the other
+            boolean cached = loadedStore.runIfUnchanged(snapshot.getVersion(), () -> {
+                getStoreCache().put(writeBack, key, data, dirty);
+                storeMap.remove(key, store);
+            });
+
+            return (cached && dirty && data != null ? data.length : 0);
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to save the store, or 0 if it did not need saving.
+     */
+    public int unloadStore(ChunkStore store) {
+        return unloadStore(store, getStoreCache().isEnabled());
+    }
 
-            if(legacyFile.exists()) {
-                legacyFile.delete();
+    private int unloadStore(ChunkStore store, boolean cache) {
+        if(store == null)
+            return 0;
+
+        long key = store.getChunkLoc().pack();
+        int written = 0;
+
+        try {
+            if(cache) {
+                written = cacheStore(store);
+            } else {
+                if(store.isDirty()) {
+                    written = writeStore(store);
+                }
+
+                // The store is only removed once it has been saved, and is kept loaded if it was changed during the save
+                getLoadedStore(store).runIfSaved(() -> storeMap.remove(key, store));
             }
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             e.printStackTrace();
         }
+
+        // Anything left loaded has to be checked again later
+        if(storeMap.get(key) != null) {
+            newStores.add(key);
+        }
+
+        return written;
     }
     
     public void saveAll() {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        try {
+            saveAll(pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Saves the names and then unloads every store, saving the stores of different regions in parallel on pool.
+     * Returns once every store has been saved, logging progress every few seconds while it waits.
+     */
+    public void saveAll(ForkJoinPool pool) {
+        Logger logger = BlockStore.getInstance().getLogger();
+
+        saveNames();
+
         // Take a snapshot of the values at this point in time to loop over
-        new HashSet<>(storeMap.values()).forEach(this::unloadStore);
+        List<ChunkStore> stores = storeMap.values();
+
+        saveWarmStores(stores);
+
+        if(stores.isEmpty())
+            return;
+
+        // Each region file only allows one write at a time, so the stores of a region are saved by one task.
+        // Compressing a store while other tasks are writing to their region files overlaps compression and I/O.
+        Map<Long, List<ChunkStore>> regions = new HashMap<>();
+
+        for(ChunkStore store : stores) {
+            ChunkLoc chunkLoc = store.getChunkLoc();
+            long region = ((long) RegionFile.toRegionCoord(chunkLoc.x) << 32)
+                    | (RegionFile.toRegionCoord(chunkLoc.z) & 0xFFFFFFFFL);
+
+            regions.computeIfAbsent(region, key -> new ArrayList<>()).add(store);
+        }
+
+        AtomicInteger saved = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        List<Future<?>> tasks = new ArrayList<>(regions.size());
+        long start = System.nanoTime();
+
+        for(List<ChunkStore> regionStores : regions.values()) {
+            tasks.add(pool.submit(() -> {
+                for(ChunkStore store : regionStores) {
+                    bytes.addAndGet(unloadStore(store, false));
+                    saved.incrementAndGet();
+                }
+            }));
+        }
+
+        for(Future<?> task : tasks) {
+            while(true) {
+                try {
+                    task.get(SAVE_PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    logger.info("Saved " + saved.get() + " of " + stores.size() + " BlockStore stores in "
+                            + world.getName() + "...");
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        double seconds = Math.max(System.nanoTime() - start, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+        double megabytes = bytes.get() / (1024.0 * 1024.0);
+
+        logger.info(String.format("Saved %d BlockStore stores in %s across %d regions in %.2fs (%.0f stores/s, %.2f MB/s)",
+                saved.get(), world.getName(), regions.size(), seconds, saved.get() / seconds, megabytes / seconds));
+    }
+
+    public void close() {
+        synchronized (pendingPreloads) {
+            pendingPreloads.clear();
+        }
+
+        boolean cacheSaved = getStoreCache().clear(writeBack);
+        boolean indexesSaved = metaIndexes.save() & blockCounts.save();
+        boolean regionsForced = regionFiles.forceAll();
+
+        try {
+            mutationLog.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        // Stores that could not be saved are left loaded or cached, and need the log to be recovered
+        if(!namesSaveFailed && cacheSaved && indexesSaved && regionsForced && storeMap.isEmpty()) {
+            mutationLog.deleteSegmentsBefore(Long.MAX_VALUE);
+        } else {
+            BlockStore.getInstance().getLogger().severe("Unable to save all BlockStore changes in " + world.getName()
+                    + ", they will be recovered from the mutation log on the next start");
+        }
+
+        regionFiles.closeAll();
+    }
+
+    private static final class Expiry implements Comparable<Expiry> {
+
+        private final long key;
+        private long deadline;
+
+        private Expiry(long key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Expiry other) {
+            return Long.compare(deadline, other.deadline);
+        }
+
+    }
+
+    private static final class PreloadRequest implements Comparable<PreloadRequest> {
+
+        private final ChunkLoc chunkLoc;
+        private final long region;
+        private final int sector;
+
+        private PreloadRequest(ChunkLoc chunkLoc, int sector) {
+            this.chunkLoc = chunkLoc;
+            this.region = ((long) RegionFile.toRegionCoord(chunkLoc.x) << 32)
+                    | (RegionFile.toRegionCoord(chunkLoc.z) & 0xFFFFFFFFL);
+            this.sector = sector;
+        }
+
+        // Orders by region file, and then by where the store is in the region file if known
+        @Override
+        public int compareTo(PreloadRequest other) {
+            int compare = Long.compare(region, other.region);
+
+            return (compare != 0 ? compare : Integer.compare(sector, other.sector));
+        }
+
+    }
+
+    private static final class Residency {
+
+        private long lastUse;
+        private boolean isProtected = false;
+        private long size;
+
+        // Only set while choosing which stores to evict
+        private ChunkStore store;
+        private boolean dirty;
+
+        private Residency(long lastUse) {
+            this.lastUse = lastUse;
+        }
+
+    }
+
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+
     }
     
 }
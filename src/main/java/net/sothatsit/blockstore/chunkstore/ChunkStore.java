@@ -4,17 +4,17 @@ import net.sothatsit.blockstore.util.Checks;
 import org.bukkit.Location;
 import org.bukkit.World;
 
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class ChunkStore {
 
     private final World world;
     private final ChunkLoc chunkLoc;
 
-    private AtomicLong lastUse;
+    private volatile long lastUse;
+    private volatile int uses;
 
     public ChunkStore(World world, ChunkLoc chunkLoc) {
         Checks.ensureNonNull(world, "world");
@@ -22,7 +22,7 @@ public abstract class ChunkStore {
 
         this.world = world;
         this.chunkLoc = chunkLoc;
-        this.lastUse = new AtomicLong(System.currentTimeMillis());
+        this.lastUse = System.currentTimeMillis();
     }
 
     public World getWorld() {
@@ -37,68 +37,168 @@ public abstract class ChunkStore {
         return location.chunkLoc.equals(chunkLoc);
     }
 
+    protected int getBlockIndex(BlockLoc location) {
+        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+
+        return location.blockIndex;
+    }
+
+    protected int getBlockIndex(Location location) {
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+
+        Checks.ensureTrue(chunkLoc.contains(x, y, z), "location is not in this chunk");
+
+        return BlockLoc.toBlockIndex(x, y, z);
+    }
+
+    protected static void checkBlockIndex(int blockIndex) {
+        if(blockIndex < 0 || blockIndex >= BlockContainer.CAPACITY)
+            throw new IllegalArgumentException("blockIndex out of bounds 0-" + (BlockContainer.CAPACITY - 1) + " inclusive");
+    }
+
     public boolean isChunkLoaded() {
         return world.isChunkLoaded(chunkLoc.x, chunkLoc.z);
     }
 
     protected void setLastUse() {
-        this.lastUse.set(System.currentTimeMillis());
+        long now = System.currentTimeMillis();
+
+        // Avoid writing to the shared field on every read when it would not change
+        if(lastUse != now) {
+            this.lastUse = now;
+
+            // Uses are only counted once per millisecond, and may miss concurrent uses, so this is only a rough count
+            this.uses += 1;
+        }
+    }
+
+    /**
+     * Keeps this store from expiring without counting as a use, for stores that are only expected to be used soon.
+     */
+    protected void touch() {
+        long now = System.currentTimeMillis();
+
+        if(lastUse != now) {
+            this.lastUse = now;
+        }
+    }
+
+    public long getLastUse() {
+        return lastUse;
+    }
+
+    public int getUses() {
+        return uses;
     }
 
     public long getTimeSinceUse() {
-        return System.currentTimeMillis() - lastUse.get();
+        return System.currentTimeMillis() - getLastUse();
     }
 
     public final boolean isPlaced(Location location) {
-        return isPlaced(BlockLoc.fromLocation(location));
+        return isPlaced(getBlockIndex(location));
     }
 
     public final void setPlaced(Location location, boolean value) {
-        setPlaced(BlockLoc.fromLocation(location), value);
+        setPlaced(getBlockIndex(location), value);
     }
 
     public final Object getMetaValue(Location location, int plugin, int key) {
-        return getMetaValue(BlockLoc.fromLocation(location), plugin, key);
+        return getMetaValue(getBlockIndex(location), plugin, key);
     }
 
     public final Map<Integer, Object> getMetaValues(Location location, int plugin) {
-        return getMetaValues(BlockLoc.fromLocation(location), plugin);
+        return getMetaValues(getBlockIndex(location), plugin);
     }
 
     public final Map<Integer, Map<Integer, Object>> getMetaValues(Location location) {
-        return getMetaValues(BlockLoc.fromLocation(location));
+        return getMetaValues(getBlockIndex(location));
     }
 
     public final void setMetaValue(Location location, int plugin, int key, Object value) {
-        setMetaValue(BlockLoc.fromLocation(location), plugin, key, value);
+        setMetaValue(getBlockIndex(location), plugin, key, value);
     }
 
     public final void removeMetaValue(Location location, int plugin, int key) {
-        removeMetaValue(BlockLoc.fromLocation(location), plugin, key);
+        removeMetaValue(getBlockIndex(location), plugin, key);
+    }
+
+    public final boolean isPlaced(BlockLoc location) {
+        return isPlaced(getBlockIndex(location));
+    }
+
+    public final void setPlaced(BlockLoc location, boolean value) {
+        setPlaced(getBlockIndex(location), value);
+    }
+
+    public final Object getMetaValue(BlockLoc location, int plugin, int key) {
+        return getMetaValue(getBlockIndex(location), plugin, key);
+    }
+
+    public final Map<Integer, Object> getMetaValues(BlockLoc location, int plugin) {
+        return getMetaValues(getBlockIndex(location), plugin);
+    }
+
+    public final Map<Integer, Map<Integer, Object>> getMetaValues(BlockLoc location) {
+        return getMetaValues(getBlockIndex(location));
+    }
+
+    public final void setMetaValue(BlockLoc location, int plugin, int key, Object value) {
+        setMetaValue(getBlockIndex(location), plugin, key, value);
+    }
+
+    public final void removeMetaValue(BlockLoc location, int plugin, int key) {
+        removeMetaValue(getBlockIndex(location), plugin, key);
+    }
+
+    protected final BlockMeta getBlockState(BlockLoc location) {
+        return getBlockState(getBlockIndex(location));
+    }
+
+    protected final void setBlockState(BlockLoc location, BlockMeta meta) {
+        setBlockState(getBlockIndex(location), meta);
     }
 
     public abstract boolean isDirty();
 
-    public abstract boolean isPlaced(BlockLoc location);
+    public abstract boolean isPlaced(int blockIndex);
+
+    public abstract void setPlaced(int blockIndex, boolean value);
 
-    public abstract void setPlaced(BlockLoc location, boolean value);
+    public abstract Object getMetaValue(int blockIndex, int plugin, int key);
 
-    public abstract Object getMetaValue(BlockLoc location, int plugin, int key);
+    public abstract Map<Integer, Object> getMetaValues(int blockIndex, int plugin);
 
-    public abstract Map<Integer, Object> getMetaValues(BlockLoc location, int plugin);
+    public abstract Map<Integer, Map<Integer, Object>> getMetaValues(int blockIndex);
 
-    public abstract Map<Integer, Map<Integer, Object>> getMetaValues(BlockLoc location);
+    public abstract void setMetaValue(int blockIndex, int plugin, int key, Object value);
 
-    public abstract void setMetaValue(BlockLoc location, int plugin, int key, Object value);
+    public abstract void removeMetaValue(int blockIndex, int plugin, int key);
 
-    public abstract void removeMetaValue(BlockLoc location, int plugin, int key);
+    protected abstract BlockMeta getBlockState(int blockIndex);
 
-    protected abstract BlockMeta getBlockState(BlockLoc location);
+    protected abstract void setBlockState(int blockIndex, BlockMeta meta);
 
-    protected abstract void setBlockState(BlockLoc location, BlockMeta meta);
+    /**
+     * Applies every change in changes, in order, as one change to this store.
+     */
+    public abstract void applyChanges(StoreChanges changes);
 
     public abstract boolean isEmpty();
 
-    public abstract void write(ObjectOutputStream stream) throws IOException;
+    /**
+     * Copies the placed blocks of this store into words, indexed by block index.
+     * Returns false without copying if no blocks are placed.
+     */
+    public abstract boolean copyPlacedWords(long[] words);
+
+    /**
+     * Returns a rough estimate of the number of bytes of memory used by this store.
+     */
+    public abstract long estimateSize();
+
+    public abstract void write(DataOutput stream) throws IOException;
 
 }
@@ -1,155 +1,316 @@
 package net.sothatsit.blockstore.chunkstore;
 
+import com.google.common.collect.ImmutableMap;
 import net.sothatsit.blockstore.util.Checks;
+import net.sothatsit.blockstore.util.IntObjectMap;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
 
 public class LoadedChunkStore extends ChunkStore {
 
+    public static final int FORMAT_VERSION = 4;
+
+    // The store itself, its locks and the metadata table
+    private static final long BASE_SIZE = 256;
+    private static final long META_ENTRY_SIZE = 16;
+
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     private final Lock readLock = readWriteLock.readLock();
     private final Lock writeLock = readWriteLock.writeLock();
+    // Held for the whole of each save, so snapshots of the store are written one at a time and in version order
+    private final Lock saveLock = new ReentrantLock();
+
+    // Writers hold the write lock, while reads of the placed blocks and versions go without locking
+    private final IntObjectMap<BlockMeta> metadata = new IntObjectMap<>();
+    private volatile BlockContainer store;
+    private volatile long version = 0;
+    private volatile long savedVersion = 0;
+
+    // Notified of changes while the write lock is held
+    private volatile StoreListener listener;
+    // The number of blocks with non-empty metadata, counted when first reported and then kept up to date
+    private int metaBlocks = -1;
 
-    private final Map<Integer, BlockMeta> metadata = new ConcurrentHashMap<>();
-    private final BitSet store;
-    private boolean dirty = false;
+    // Recalculated when the store has changed since the last estimate
+    private volatile long estimatedSize = -1;
+    private volatile long estimatedVersion = -1;
 
     public LoadedChunkStore(World world, ChunkLoc loc) {
-        this(world, loc, new BitSet(16 * 64 * 16));
+        this(world, loc, BlockContainer.empty());
     }
     
-    public LoadedChunkStore(World world, ChunkLoc chunkLoc, BitSet store) {
+    public LoadedChunkStore(World world, ChunkLoc chunkLoc, BlockContainer store) {
         super(world, chunkLoc);
 
         this.store = store;
     }
 
-    @Override
-    public boolean isDirty() {
+    public void setListener(StoreListener listener) {
         try {
-            readLock.lock();
-            return dirty;
+            writeLock.lock();
+
+            this.listener = listener;
+
+            reportCounts();
         } finally {
-            readLock.unlock();
+            writeLock.unlock();
+        }
+    }
+
+    private void reportCounts() {
+        StoreListener listener = this.listener;
+
+        if(listener == null)
+            return;
+
+        if(metaBlocks < 0) {
+            int[] count = {0};
+
+            metadata.forEach((blockIndex, meta) -> {
+                if(!meta.isEmpty()) {
+                    count[0] += 1;
+                }
+            });
+
+            metaBlocks = count[0];
+        }
+
+        listener.onCounts(getChunkLoc(), store.getCardinality(), metaBlocks);
+    }
+
+    private void countMetaBlocks(int change) {
+        if(metaBlocks >= 0) {
+            metaBlocks += change;
         }
     }
 
     @Override
-    public boolean isPlaced(BlockLoc location) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public boolean isDirty() {
+        return version != savedVersion;
+    }
 
-        setLastUse();
+    public long getVersion() {
+        return version;
+    }
+
+    public Lock getSaveLock() {
+        return saveLock;
+    }
 
+    public long getSavedVersion() {
+        return savedVersion;
+    }
+
+    public void markDirty() {
         try {
-            readLock.lock();
-            return store.get(location.blockIndex);
+            writeLock.lock();
+
+            version += 1;
         } finally {
-            readLock.unlock();
+            writeLock.unlock();
+        }
+    }
+
+    public void markSaved(long version) {
+        try {
+            writeLock.lock();
+
+            if(version > savedVersion) {
+                savedVersion = version;
+            }
+        } finally {
+            writeLock.unlock();
         }
     }
 
     @Override
-    public void setPlaced(BlockLoc location, boolean value) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public boolean copyPlacedWords(long[] words) {
+        Checks.ensureTrue(words.length >= BlockContainer.WORDS, "words must have room for every block");
+
+        setLastUse();
+
+        BlockContainer store = this.store;
+
+        if(store.isEmpty())
+            return false;
+
+        store.copyWords(words);
+        return true;
+    }
+
+    @Override
+    public boolean isPlaced(int blockIndex) {
+        checkBlockIndex(blockIndex);
+
+        setLastUse();
+
+        return store.contains(blockIndex);
+    }
+
+    @Override
+    public void setPlaced(int blockIndex, boolean value) {
+        checkBlockIndex(blockIndex);
 
         setLastUse();
 
         try {
             writeLock.lock();
 
-            store.set(location.blockIndex, value);
+            store = store.set(blockIndex, value);
 
             if (!value) {
-                metadata.remove(location.blockIndex);
+                removeMeta(blockIndex);
             }
 
-            dirty = true;
+            reportCounts();
+
+            version += 1;
         } finally {
             writeLock.unlock();
         }
     }
 
-    private BlockMeta getMeta(BlockLoc location) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    private void removeMeta(int blockIndex) {
+        StoreListener listener = this.listener;
+
+        BlockMeta removed = metadata.remove(blockIndex);
+
+        if(removed == null)
+            return;
+
+        if(!removed.isEmpty()) {
+            countMetaBlocks(-1);
+        }
+
+        if(listener != null) {
+            listener.onBlockMeta(getChunkLoc(), blockIndex, null);
+        }
+    }
+
+    private void onMetaValue(int blockIndex, int plugin, int key, Object value) {
+        StoreListener listener = this.listener;
+
+        if(listener != null) {
+            listener.onMetaValue(getChunkLoc(), blockIndex, plugin, key, value);
+        }
+    }
+
+    private BlockMeta getMeta(int blockIndex) {
+        checkBlockIndex(blockIndex);
 
         setLastUse();
 
-        return metadata.computeIfAbsent(location.blockIndex, blockIndex -> new BlockMeta());
+        return metadata.computeIfAbsent(blockIndex, index -> new BlockMeta());
+    }
+
+    private BlockMeta findMeta(int blockIndex) {
+        checkBlockIndex(blockIndex);
+
+        setLastUse();
+
+        return metadata.get(blockIndex);
     }
 
     @Override
-    public Object getMetaValue(BlockLoc location, int plugin, int key) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public Object getMetaValue(int blockIndex, int plugin, int key) {
+        BlockMeta meta = findMeta(blockIndex);
 
-        return getMeta(location).getValue(plugin, key);
+        return (meta != null ? meta.getValue(plugin, key) : null);
     }
 
     @Override
-    public Map<Integer, Object> getMetaValues(BlockLoc location, int plugin) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public Map<Integer, Object> getMetaValues(int blockIndex, int plugin) {
+        BlockMeta meta = findMeta(blockIndex);
 
-        return getMeta(location).getAllValues(plugin);
+        return (meta != null ? meta.getAllValues(plugin) : ImmutableMap.of());
     }
 
     @Override
-    public Map<Integer, Map<Integer, Object>> getMetaValues(BlockLoc location) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public Map<Integer, Map<Integer, Object>> getMetaValues(int blockIndex) {
+        BlockMeta meta = findMeta(blockIndex);
 
-        return getMeta(location).getAllValues();
+        return (meta != null ? meta.getAllValues() : ImmutableMap.of());
     }
 
     @Override
-    public void setMetaValue(BlockLoc location, int plugin, int key, Object value) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public void setMetaValue(int blockIndex, int plugin, int key, Object value) {
+        checkBlockIndex(blockIndex);
 
         try {
             writeLock.lock();
 
-            getMeta(location).setValue(plugin, key, value);
+            BlockMeta meta = getMeta(blockIndex);
+            boolean wasEmpty = meta.isEmpty();
+
+            meta.setValue(plugin, key, value);
+            onMetaValue(blockIndex, plugin, key, value);
 
-            dirty = true;
+            if(wasEmpty && !meta.isEmpty()) {
+                countMetaBlocks(1);
+                reportCounts();
+            }
+
+            version += 1;
         } finally {
             writeLock.unlock();
         }
     }
 
     @Override
-    public void removeMetaValue(BlockLoc location, int plugin, int key) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public void removeMetaValue(int blockIndex, int plugin, int key) {
+        checkBlockIndex(blockIndex);
 
         try {
             writeLock.lock();
 
-            getMeta(location).removeValue(plugin, key);
+            BlockMeta meta = findMeta(blockIndex);
+
+            if(meta == null)
+                return;
+
+            boolean wasEmpty = meta.isEmpty();
+
+            meta.removeValue(plugin, key);
+            onMetaValue(blockIndex, plugin, key, null);
+
+            if(!wasEmpty && meta.isEmpty()) {
+                countMetaBlocks(-1);
+                reportCounts();
+            }
 
-            dirty = true;
+            version += 1;
         } finally {
             writeLock.unlock();
         }
     }
 
     @Override
-    protected BlockMeta getBlockState(BlockLoc location) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    protected BlockMeta getBlockState(int blockIndex) {
+        if(!isPlaced(blockIndex))
+            return null;
 
-        return (isPlaced(location) ? getMeta(location) : null);
+        // Reading the state must not insert metadata, as that would change the store without its lock
+        BlockMeta meta = findMeta(blockIndex);
+
+        return (meta != null ? meta : new BlockMeta());
     }
 
     @Override
-    protected void setBlockState(BlockLoc location, BlockMeta meta) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    protected void setBlockState(int blockIndex, BlockMeta meta) {
+        checkBlockIndex(blockIndex);
         Checks.ensureNonNull(meta, "meta");
 
         setLastUse();
@@ -157,69 +318,224 @@ public class LoadedChunkStore extends ChunkStore {
         try {
             writeLock.lock();
 
-            store.set(location.blockIndex, true);
-            metadata.put(location.blockIndex, meta);
+            store = store.add(blockIndex);
+
+            BlockMeta previous = metadata.put(blockIndex, meta);
+
+            countMetaBlocks((meta.isEmpty() ? 0 : 1) - (previous != null && !previous.isEmpty() ? 1 : 0));
+
+            StoreListener listener = this.listener;
+
+            if(listener != null) {
+                listener.onBlockMeta(getChunkLoc(), blockIndex, meta);
+            }
+
+            reportCounts();
+
+            version += 1;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void applyChanges(StoreChanges changes) {
+        Checks.ensureNonNull(changes, "changes");
+
+        if(changes.isEmpty())
+            return;
+
+        setLastUse();
+
+        try {
+            writeLock.lock();
+
+            changes.forEach(new StoreChanges.Handler() {
+                @Override
+                public void onPlaced(int blockIndex, boolean placed) {
+                    store = store.set(blockIndex, placed);
+
+                    if (!placed) {
+                        removeMeta(blockIndex);
+                    }
+                }
+
+                @Override
+                public void onMetaSet(int blockIndex, int plugin, int key, Object value) {
+                    BlockMeta meta = metadata.computeIfAbsent(blockIndex, index -> new BlockMeta());
+                    boolean wasEmpty = meta.isEmpty();
+
+                    meta.setValue(plugin, key, value);
+                    onMetaValue(blockIndex, plugin, key, value);
+
+                    if(wasEmpty && !meta.isEmpty()) {
+                        countMetaBlocks(1);
+                    }
+                }
+
+                @Override
+                public void onMetaRemove(int blockIndex, int plugin, int key) {
+                    BlockMeta meta = metadata.get(blockIndex);
+
+                    if(meta != null) {
+                        boolean wasEmpty = meta.isEmpty();
+
+                        meta.removeValue(plugin, key);
+                        onMetaValue(blockIndex, plugin, key, null);
+
+                        if(!wasEmpty && meta.isEmpty()) {
+                            countMetaBlocks(-1);
+                        }
+                    }
+                }
+            });
+
+            reportCounts();
 
-            dirty = true;
+            version += 1;
         } finally {
             writeLock.unlock();
         }
     }
 
+    /**
+     * Passes the block index and value of every block with a value for the plugin and key to consumer.
+     * The write lock is held throughout, so no changes to this store can happen part way through.
+     */
+    public void forEachMetaValue(int plugin, int key, MetaValueConsumer consumer) {
+        try {
+            writeLock.lock();
+
+            metadata.forEach((blockIndex, meta) -> {
+                Object value = meta.getValue(plugin, key);
+
+                if(value != null) {
+                    consumer.accept(blockIndex, value);
+                }
+            });
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether there are no placed blocks and no blocks with metadata, matching Snapshot.isEmpty.
+     */
     @Override
     public boolean isEmpty() {
+        // Only a store with no placed blocks but some metadata entries has to take the lock
+        if(!store.isEmpty())
+            return false;
+
+        if(metadata.isEmpty())
+            return true;
+
         try {
             readLock.lock();
-            return store.isEmpty();
+
+            if(!store.isEmpty())
+                return false;
+
+            boolean[] hasMeta = {false};
+
+            metadata.forEach((blockIndex, meta) -> {
+                if(!meta.isEmpty()) {
+                    hasMeta[0] = true;
+                }
+            });
+
+            return !hasMeta[0];
         } finally {
             readLock.unlock();
         }
     }
 
     @Override
-    public void write(ObjectOutputStream stream) throws IOException {
+    public long estimateSize() {
+        long version = this.version;
+
+        if(version == estimatedVersion)
+            return estimatedSize;
+
+        long[] size = {BASE_SIZE + store.getSizeInBytes()};
+
+        metadata.forEach((blockIndex, meta) -> size[0] += META_ENTRY_SIZE + meta.estimateSize());
+
+        this.estimatedSize = size[0];
+        this.estimatedVersion = version;
+
+        return size[0];
+    }
+
+    public boolean runIfSaved(Runnable action) {
         try {
-            readLock.lock();
+            writeLock.lock();
 
-            ChunkLoc chunkLoc = getChunkLoc();
+            if(isDirty())
+                return false;
 
-            stream.writeUTF(getWorld().getName());
-            stream.writeInt(chunkLoc.x);
-            stream.writeInt(chunkLoc.z);
-            stream.writeInt(chunkLoc.y);
-            stream.writeObject(store);
+            action.run();
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-            Set<Integer> plugins = metadata.values().stream()
-                    .flatMap(meta -> meta.getPlugins().stream())
-                    .collect(Collectors.toSet());
+    /**
+     * If this store has not changed since version, runs action and then marks the store as saved at version,
+     * both while holding the lock so that no changes can be made in between.
+     */
+    public boolean runIfUnchanged(long version, Runnable action) {
+        try {
+            writeLock.lock();
 
-            stream.writeInt(plugins.size());
+            if(this.version != version)
+                return false;
 
-            for (Integer plugin : plugins) {
-                stream.writeInt(plugin);
+            action.run();
 
-                int blockCount = (int) metadata.values().stream()
-                        .filter(meta -> meta.containsPlugin(plugin))
-                        .count();
+            if(version > savedVersion) {
+                savedVersion = version;
+            }
 
-                stream.writeInt(blockCount);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
 
-                for (Map.Entry<Integer, BlockMeta> entry : metadata.entrySet()) {
-                    int blockIndex = entry.getKey();
-                    BlockMeta meta = entry.getValue();
+    /**
+     * Copies the current state of this store under the lock so that it can be written without holding it.
+     */
+    public Snapshot snapshot() {
+        try {
+            readLock.lock();
 
-                    if(!meta.containsPlugin(plugin))
-                        continue;
+            int[] blocks = metadata.keys();
+            BlockMeta[] metas = new BlockMeta[blocks.length];
+            int blockCount = 0;
 
-                    stream.writeInt(blockIndex);
-                    meta.write(stream, plugin);
+            for (int blockIndex : blocks) {
+                BlockMeta meta = metadata.get(blockIndex);
+
+                if(meta != null && !meta.isEmpty()) {
+                    blocks[blockCount] = blockIndex;
+                    metas[blockCount] = meta.copy();
+                    blockCount += 1;
                 }
             }
+
+            return new Snapshot(version, store.copy(), blocks, metas, blockCount);
         } finally {
             readLock.unlock();
         }
     }
 
+    @Override
+    public void write(DataOutput stream) throws IOException {
+        snapshot().write(stream);
+    }
+
     public static LoadedChunkStore read(ObjectInputStream stream, int version) throws IOException, ClassNotFoundException {
         switch (version) {
             case 1:
@@ -231,6 +547,64 @@ public class LoadedChunkStore extends ChunkStore {
         }
     }
 
+    public static LoadedChunkStore readVersion3(World world, ChunkLoc chunkLoc, DataInput stream) throws IOException {
+        return readVersion3(world, chunkLoc, stream, null);
+    }
+
+    public static LoadedChunkStore readVersion3(World world, ChunkLoc chunkLoc, DataInput stream,
+                                                Consumer<BlockContainer> onPlacedRead) throws IOException {
+        int wordCount = ValueCodec.readVarInt(stream);
+
+        if(wordCount < 0 || wordCount > BlockContainer.WORDS)
+            throw new IOException("Invalid placed block word count " + wordCount);
+
+        long[] words = new long[wordCount];
+
+        for(int index = 0; index < wordCount; ++index) {
+            words[index] = stream.readLong();
+        }
+
+        return readStore(world, chunkLoc, BlockContainer.fromWords(words), stream, onPlacedRead);
+    }
+
+    public static LoadedChunkStore readVersion4(World world, ChunkLoc chunkLoc, DataInput stream) throws IOException {
+        return readVersion4(world, chunkLoc, stream, null);
+    }
+
+    public static LoadedChunkStore readVersion4(World world, ChunkLoc chunkLoc, DataInput stream,
+                                                Consumer<BlockContainer> onPlacedRead) throws IOException {
+        return readStore(world, chunkLoc, BlockContainer.read(stream), stream, onPlacedRead);
+    }
+
+    private static LoadedChunkStore readStore(World world, ChunkLoc chunkLoc, BlockContainer placed,
+                                                 DataInput stream, Consumer<BlockContainer> onPlacedRead) throws IOException {
+        if(onPlacedRead != null) {
+            onPlacedRead.accept(placed);
+        }
+
+        LoadedChunkStore store = new LoadedChunkStore(world, chunkLoc, placed);
+
+        store.readMetadata(stream);
+
+        return store;
+    }
+
+    private void readMetadata(DataInput stream) throws IOException {
+        int blocks = ValueCodec.readVarInt(stream);
+
+        if(blocks < 0 || blocks > BlockContainer.CAPACITY)
+            throw new IOException("Invalid metadata block count " + blocks);
+
+        for(int i = 0; i < blocks; ++i) {
+            int blockIndex = stream.readUnsignedShort();
+
+            if(blockIndex >= BlockContainer.CAPACITY)
+                throw new IOException("Invalid block index " + blockIndex);
+
+            getMeta(blockIndex).read(stream);
+        }
+    }
+
     public static LoadedChunkStore readVersion2(ObjectInputStream stream) throws IOException, ClassNotFoundException {
         String worldName = stream.readUTF();
         World world = Bukkit.getWorld(worldName);
@@ -242,7 +616,7 @@ public class LoadedChunkStore extends ChunkStore {
 
         BitSet values = (BitSet) stream.readObject();
 
-        LoadedChunkStore store = new LoadedChunkStore(world, chunkLoc, values);
+        LoadedChunkStore store = new LoadedChunkStore(world, chunkLoc, BlockContainer.fromWords(values.toLongArray()));
 
         int plugins = stream.readInt();
 
@@ -251,9 +625,11 @@ public class LoadedChunkStore extends ChunkStore {
             int blocks = stream.readInt();
 
             for (int w = 0; w < blocks; w++) {
-                BlockLoc location = BlockLoc.fromBlockIndex(chunkLoc, stream.readInt());
+                int blockIndex = stream.readInt();
+
+                checkBlockIndex(blockIndex);
 
-                store.getMeta(location).read(stream, plugin);
+                store.getMeta(blockIndex).read(stream, plugin);
             }
         }
 
@@ -271,7 +647,7 @@ public class LoadedChunkStore extends ChunkStore {
 
         BitSet values = convertToBitSet((boolean[][][]) stream.readObject());
         
-        LoadedChunkStore store = new LoadedChunkStore(world, chunkLoc, values);
+        LoadedChunkStore store = new LoadedChunkStore(world, chunkLoc, BlockContainer.fromWords(values.toLongArray()));
         
         int plugins = stream.readInt();
         
@@ -281,15 +657,55 @@ public class LoadedChunkStore extends ChunkStore {
             
             for (int w = 0; w < blocks; w++) {
                 byte[] loc = unpackInt(stream.readInt());
-                BlockLoc location = new BlockLoc(chunkLoc, loc[0], loc[1], loc[2]);
+                int blockIndex = BlockLoc.calcBlockIndex(loc[0], loc[1], loc[2]);
 
-                store.getMeta(location).read(stream, plugin);
+                store.getMeta(blockIndex).read(stream, plugin);
             }
         }
         
         return store;
     }
 
+    public static final class Snapshot {
+
+        private final long version;
+        private final BlockContainer store;
+        private final int[] blocks;
+        private final BlockMeta[] metas;
+        private final int blockCount;
+
+        private Snapshot(long version, BlockContainer store, int[] blocks, BlockMeta[] metas, int blockCount) {
+            this.version = version;
+            this.store = store;
+            this.blocks = blocks;
+            this.metas = metas;
+            this.blockCount = blockCount;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns whether there are no placed blocks and no blocks with metadata, so nothing needs to be saved.
+         */
+        public boolean isEmpty() {
+            return store.isEmpty() && blockCount == 0;
+        }
+
+        public void write(DataOutput stream) throws IOException {
+            store.write(stream);
+
+            ValueCodec.writeVarInt(stream, blockCount);
+
+            for (int i = 0; i < blockCount; ++i) {
+                stream.writeShort(blocks[i]);
+                metas[i].write(stream);
+            }
+        }
+
+    }
+
     private static BitSet convertToBitSet(boolean[][][] values) {
         BitSet bitSet = new BitSet(16 * 64 * 16);
 
@@ -308,4 +724,10 @@ public class LoadedChunkStore extends ChunkStore {
         return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(num).array();
     }
     
+    public interface MetaValueConsumer {
+
+        public void accept(int blockIndex, Object value);
+
+    }
+
 }
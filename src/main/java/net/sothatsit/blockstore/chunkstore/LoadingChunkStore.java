@@ -3,30 +3,79 @@ package net.sothatsit.blockstore.chunkstore;
 import net.sothatsit.blockstore.util.Checks;
 import org.bukkit.World;
 
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 public class LoadingChunkStore extends ChunkStore {
 
+    private static final LongAdder awaitCount = new LongAdder();
+    private static final LongAdder awaitNanos = new LongAdder();
+    private static final AtomicLong maxAwaitNanos = new AtomicLong();
+
     private final Object lock = new Object();
     private final CountDownLatch latch = new CountDownLatch(1);
 
     private final AtomicReference<ChunkStore> delegate = new AtomicReference<>();
     private List<Action> pendingActions = new ArrayList<>();
     private List<Consumer<ChunkStore>> onLoad = new ArrayList<>();
+    private volatile StorageScheduler.Task loadTask;
+
+    // The placed blocks are published before the metadata has been read so that isPlaced doesn't have to wait for it
+    private volatile BlockContainer placedBlocks;
+    private volatile boolean hasPendingActions = false;
 
     public LoadingChunkStore(World world, ChunkLoc chunkLoc) {
         super(world, chunkLoc);
     }
 
+    protected void setLoadTask(StorageScheduler.Task loadTask) {
+        this.loadTask = loadTask;
+    }
+
+    public void promote(StorageScheduler.Priority priority) {
+        StorageScheduler.Task loadTask = this.loadTask;
+
+        if(loadTask != null && !hasLoaded()) {
+            loadTask.promote(priority);
+        }
+    }
+
+    /**
+     * Cancels the preload of this store if it has not started, and nothing has been queued on it or is waiting
+     * for it to load. action is run before any changes can be queued on the store. Returns whether it was cancelled.
+     */
+    public boolean cancelPreload(Runnable action) {
+        synchronized (lock) {
+            StorageScheduler.Task loadTask = this.loadTask;
+
+            if(hasLoaded() || loadTask == null || !pendingActions.isEmpty() || !onLoad.isEmpty())
+                return false;
+
+            if(!loadTask.cancel(StorageScheduler.Priority.PRELOAD))
+                return false;
+
+            action.run();
+            return true;
+        }
+    }
+
     public void await() {
+        if(hasLoaded())
+            return;
+
+        promote(StorageScheduler.Priority.BLOCKING);
+
+        long start = System.nanoTime();
+
         try {
             boolean success = latch.await(1, TimeUnit.SECONDS);
 
@@ -34,9 +83,45 @@ public class LoadingChunkStore extends ChunkStore {
                 throw new RuntimeException("Over one second elapsed waiting for the store to load");
         } catch (InterruptedException e) {
             throw new RuntimeException("Thread interrupted waiting for store to load", e);
+        } finally {
+            long waited = System.nanoTime() - start;
+
+            awaitCount.increment();
+            awaitNanos.add(waited);
+            maxAwaitNanos.accumulateAndGet(waited, Math::max);
         }
     }
 
+    public static long getAwaitCount() {
+        return awaitCount.sum();
+    }
+
+    public static double getAverageAwaitMillis() {
+        long count = awaitCount.sum();
+
+        if(count == 0)
+            return 0;
+
+        return awaitNanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    public static double getMaxAwaitMillis() {
+        return maxAwaitNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    protected void setPlacedBlocks(BlockContainer placedBlocks) {
+        Checks.ensureNonNull(placedBlocks, "placedBlocks");
+
+        this.placedBlocks = placedBlocks;
+    }
+
+    // Returns the placed blocks if they can be read before the store has finished loading
+    private BlockContainer getEarlyPlacedBlocks() {
+        BlockContainer placedBlocks = this.placedBlocks;
+
+        return (placedBlocks != null && !hasPendingActions ? placedBlocks : null);
+    }
+
     public boolean hasLoaded() {
         return delegate.get() != null;
     }
@@ -56,6 +141,9 @@ public class LoadingChunkStore extends ChunkStore {
 
         if(run) {
             consumer.accept(getDelegate());
+        } else {
+            // Queues the load again if this store's preload was cancelled
+            promote(StorageScheduler.Priority.PRELOAD);
         }
     }
 
@@ -69,23 +157,21 @@ public class LoadingChunkStore extends ChunkStore {
         Checks.ensureTrue(getWorld() == delegate.getWorld(), "Must be in the same world");
         Checks.ensureTrue(getChunkLoc().equals(delegate.getChunkLoc()), "Must be the same chunk");
 
-        List<Action> pendingActions;
         List<Consumer<ChunkStore>> onLoad;
 
         synchronized (lock) {
-            this.delegate.set(delegate);
+            // Applied before the delegate is visible, so a read that sees it also sees every change queued before it
+            for(Action action : pendingActions) {
+                action.apply(delegate);
+            }
 
-            pendingActions = this.pendingActions;
             this.pendingActions = null;
+            this.delegate.set(delegate);
 
             onLoad = this.onLoad;
             this.onLoad = null;
         }
 
-        for(Action action : pendingActions) {
-            action.apply(delegate);
-        }
-
         latch.countDown();
 
         for(Consumer<ChunkStore> consumer : onLoad) {
@@ -105,26 +191,49 @@ public class LoadingChunkStore extends ChunkStore {
             }
 
             pendingActions.add(action);
+            hasPendingActions = true;
         }
+
+        // Queues the load again if this store's preload was cancelled, so that the change is applied
+        promote(StorageScheduler.Priority.PRELOAD);
     }
 
     @Override
     protected void setLastUse() {
-        synchronized (lock) {
-            if(hasLoaded()) {
-                getDelegate().setLastUse();
-                return;
-            }
+        ChunkStore delegate = getDelegate();
 
-            super.setLastUse();
+        if(delegate != null) {
+            delegate.setLastUse();
+            return;
         }
+
+        super.setLastUse();
     }
 
     @Override
-    public long getTimeSinceUse() {
-        synchronized (lock) {
-            return (hasLoaded() ? getDelegate().getTimeSinceUse() : super.getTimeSinceUse());
+    protected void touch() {
+        ChunkStore delegate = getDelegate();
+
+        if(delegate != null) {
+            delegate.touch();
+            return;
         }
+
+        super.touch();
+    }
+
+    @Override
+    public long getLastUse() {
+        ChunkStore delegate = getDelegate();
+
+        return (delegate != null ? delegate.getLastUse() : super.getLastUse());
+    }
+
+    @Override
+    public int getUses() {
+        ChunkStore delegate = getDelegate();
+
+        return (delegate != null ? delegate.getUses() : super.getUses());
     }
 
     @Override
@@ -135,96 +244,152 @@ public class LoadingChunkStore extends ChunkStore {
     }
 
     @Override
-    public boolean isPlaced(BlockLoc location) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public boolean isPlaced(int blockIndex) {
+        checkBlockIndex(blockIndex);
+
+        BlockContainer placedBlocks = getEarlyPlacedBlocks();
+
+        if(placedBlocks != null && !hasLoaded()) {
+            setLastUse();
+            return placedBlocks.contains(blockIndex);
+        }
 
         await();
 
-        return getDelegate().isPlaced(location);
+        return getDelegate().isPlaced(blockIndex);
     }
 
     @Override
-    public void setPlaced(BlockLoc location, boolean value) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public void setPlaced(int blockIndex, boolean value) {
+        checkBlockIndex(blockIndex);
 
         setLastUse();
 
-        queueAction(new SetPlacedAction(location, value));
+        queueAction(new SetPlacedAction(blockIndex, value));
     }
 
     @Override
-    public Object getMetaValue(BlockLoc location, int plugin, int key) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public Object getMetaValue(int blockIndex, int plugin, int key) {
+        checkBlockIndex(blockIndex);
 
         await();
 
-        return getDelegate().getMetaValue(location, plugin, key);
+        return getDelegate().getMetaValue(blockIndex, plugin, key);
     }
 
     @Override
-    public Map<Integer, Object> getMetaValues(BlockLoc location, int plugin) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public Map<Integer, Object> getMetaValues(int blockIndex, int plugin) {
+        checkBlockIndex(blockIndex);
 
         await();
 
-        return getDelegate().getMetaValues(location, plugin);
+        return getDelegate().getMetaValues(blockIndex, plugin);
     }
 
     @Override
-    public Map<Integer, Map<Integer, Object>> getMetaValues(BlockLoc location) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public Map<Integer, Map<Integer, Object>> getMetaValues(int blockIndex) {
+        checkBlockIndex(blockIndex);
 
         await();
 
-        return getDelegate().getMetaValues(location);
+        return getDelegate().getMetaValues(blockIndex);
     }
 
     @Override
-    public void setMetaValue(BlockLoc location, int plugin, int key, Object value) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public void setMetaValue(int blockIndex, int plugin, int key, Object value) {
+        checkBlockIndex(blockIndex);
 
         setLastUse();
 
-        queueAction(new SetMetaValueAction(location, plugin, key, value));
+        queueAction(new SetMetaValueAction(blockIndex, plugin, key, value));
     }
 
     @Override
-    public void removeMetaValue(BlockLoc location, int plugin, int key) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    public void removeMetaValue(int blockIndex, int plugin, int key) {
+        checkBlockIndex(blockIndex);
 
         setLastUse();
 
-        queueAction(new RemoveMetaValueAction(location, plugin, key));
+        queueAction(new RemoveMetaValueAction(blockIndex, plugin, key));
     }
 
     @Override
-    protected BlockMeta getBlockState(BlockLoc location) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    protected BlockMeta getBlockState(int blockIndex) {
+        checkBlockIndex(blockIndex);
 
         await();
 
-        return getDelegate().getBlockState(location);
+        return getDelegate().getBlockState(blockIndex);
     }
 
     @Override
-    protected void setBlockState(BlockLoc location, BlockMeta meta) {
-        Checks.ensureTrue(isInChunk(location), "location is not in this chunk");
+    protected void setBlockState(int blockIndex, BlockMeta meta) {
+        checkBlockIndex(blockIndex);
         Checks.ensureNonNull(meta, "meta");
 
         setLastUse();
 
-        queueAction(new SetBlockStateAction(location, meta));
+        queueAction(new SetBlockStateAction(blockIndex, meta));
+    }
+
+    @Override
+    public boolean copyPlacedWords(long[] words) {
+        BlockContainer placedBlocks = getEarlyPlacedBlocks();
+
+        if(placedBlocks != null && !hasLoaded()) {
+            Checks.ensureTrue(words.length >= BlockContainer.WORDS, "words must have room for every block");
+
+            setLastUse();
+
+            if(placedBlocks.isEmpty())
+                return false;
+
+            placedBlocks.copyWords(words);
+            return true;
+        }
+
+        await();
+
+        return getDelegate().copyPlacedWords(words);
+    }
+
+    @Override
+    public void applyChanges(StoreChanges changes) {
+        Checks.ensureNonNull(changes, "changes");
+
+        setLastUse();
+
+        // All of the changes are queued as one action rather than one per change
+        queueAction(new ApplyChangesAction(changes));
     }
 
     @Override
     public boolean isEmpty() {
+        BlockContainer placedBlocks = getEarlyPlacedBlocks();
+
+        // The metadata has to be loaded to know that a store with no placed blocks is empty
+        if(placedBlocks != null && !hasLoaded() && !placedBlocks.isEmpty())
+            return false;
+
         await();
 
         return getDelegate().isEmpty();
     }
 
     @Override
-    public void write(ObjectOutputStream stream) throws IOException {
+    public long estimateSize() {
+        ChunkStore delegate = getDelegate();
+
+        if(delegate != null)
+            return delegate.estimateSize();
+
+        BlockContainer placedBlocks = getEarlyPlacedBlocks();
+
+        return (placedBlocks != null ? placedBlocks.getSizeInBytes() : 0);
+    }
+
+    @Override
+    public void write(DataOutput stream) throws IOException {
         await();
 
         getDelegate().write(stream);
@@ -238,30 +403,30 @@ public class LoadingChunkStore extends ChunkStore {
 
     private class SetPlacedAction implements Action {
 
-        private final BlockLoc location;
+        private final int blockIndex;
         private final boolean value;
 
-        public SetPlacedAction(BlockLoc location, boolean value) {
-            this.location = location;
+        public SetPlacedAction(int blockIndex, boolean value) {
+            this.blockIndex = blockIndex;
             this.value = value;
         }
 
         @Override
         public void apply(ChunkStore store) {
-            store.setPlaced(location, value);
+            store.setPlaced(blockIndex, value);
         }
 
     }
 
     private class SetMetaValueAction implements Action {
 
-        private final BlockLoc location;
+        private final int blockIndex;
         private final int plugin;
         private final int key;
         private final Object value;
 
-        public SetMetaValueAction(BlockLoc location, int plugin, int key, Object value) {
-            this.location = location;
+        public SetMetaValueAction(int blockIndex, int plugin, int key, Object value) {
+            this.blockIndex = blockIndex;
             this.plugin = plugin;
             this.key = key;
             this.value = value;
@@ -269,43 +434,58 @@ public class LoadingChunkStore extends ChunkStore {
 
         @Override
         public void apply(ChunkStore store) {
-            store.setMetaValue(location, plugin, key, value);
+            store.setMetaValue(blockIndex, plugin, key, value);
         }
 
     }
 
     private class RemoveMetaValueAction implements Action {
 
-        private final BlockLoc location;
+        private final int blockIndex;
         private final int plugin;
         private final int key;
 
-        public RemoveMetaValueAction(BlockLoc location, int plugin, int key) {
-            this.location = location;
+        public RemoveMetaValueAction(int blockIndex, int plugin, int key) {
+            this.blockIndex = blockIndex;
             this.plugin = plugin;
             this.key = key;
         }
 
         @Override
         public void apply(ChunkStore store) {
-            store.removeMetaValue(location, plugin, key);
+            store.removeMetaValue(blockIndex, plugin, key);
+        }
+
+    }
+
+    private class ApplyChangesAction implements Action {
+
+        private final StoreChanges changes;
+
+        public ApplyChangesAction(StoreChanges changes) {
+            this.changes = changes;
+        }
+
+        @Override
+        public void apply(ChunkStore store) {
+            store.applyChanges(changes);
         }
 
     }
 
     private class SetBlockStateAction implements Action {
 
-        private final BlockLoc location;
+        private final int blockIndex;
         private final BlockMeta state;
 
-        public SetBlockStateAction(BlockLoc location, BlockMeta state) {
-            this.location = location;
+        public SetBlockStateAction(int blockIndex, BlockMeta state) {
+            this.blockIndex = blockIndex;
             this.state = state;
         }
 
         @Override
         public void apply(ChunkStore store) {
-            store.setBlockState(location, state);
+            store.setBlockState(blockIndex, state);
         }
 
     }
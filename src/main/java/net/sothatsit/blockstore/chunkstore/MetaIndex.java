@@ -0,0 +1,188 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import net.sothatsit.blockstore.util.Checks;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * An index from the values of one plugin's metadata key to the blocks in a world that have each value.
+ * Blocks are kept as packed block positions, see {@link #pack(int, int, int)}. Array values are not indexed.
+ */
+public class MetaIndex {
+
+    private final String plugin;
+    private final String key;
+
+    private final Map<Long, Object> values = new HashMap<>();
+    private final Map<Object, Set<Long>> blocks = new HashMap<>();
+    // The positions with values in each chunk section, keyed by ChunkLoc.pack, so a section can be cleared quickly
+    private final Map<Long, Set<Long>> sections = new HashMap<>();
+    private volatile boolean complete;
+
+    public MetaIndex(String plugin, String key, boolean complete) {
+        Checks.ensureNonNull(plugin, "plugin");
+        Checks.ensureNonNull(key, "key");
+
+        this.plugin = plugin;
+        this.key = key;
+        this.complete = complete;
+    }
+
+    public String getPlugin() {
+        return plugin;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns whether every block with a value has been added, and not only the blocks changed since it was created.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    public synchronized int size() {
+        return values.size();
+    }
+
+    /**
+     * Sets the value of a block, or removes it if value is null.
+     */
+    public synchronized void set(long position, Object value) {
+        if(value != null && value.getClass().isArray()) {
+            value = null;
+        }
+
+        Object previous = (value != null ? values.put(position, value) : values.remove(position));
+
+        if(previous != null) {
+            Set<Long> previousBlocks = blocks.get(previous);
+
+            if(previousBlocks != null && previousBlocks.remove(position) && previousBlocks.isEmpty()) {
+                blocks.remove(previous);
+            }
+        }
+
+        if(value != null) {
+            blocks.computeIfAbsent(value, v -> new HashSet<>()).add(position);
+        }
+
+        if(value != null && previous == null) {
+            sections.computeIfAbsent(toSectionKey(position), section -> new HashSet<>()).add(position);
+        } else if(value == null && previous != null) {
+            long sectionKey = toSectionKey(position);
+            Set<Long> sectionBlocks = sections.get(sectionKey);
+
+            if(sectionBlocks != null && sectionBlocks.remove(position) && sectionBlocks.isEmpty()) {
+                sections.remove(sectionKey);
+            }
+        }
+    }
+
+    public void set(ChunkLoc chunkLoc, int blockIndex, Object value) {
+        set(pack(chunkLoc, blockIndex), value);
+    }
+
+    /**
+     * Removes the values of every block in a chunk section.
+     */
+    public synchronized void clearSection(ChunkLoc chunkLoc) {
+        Set<Long> positions = sections.remove(chunkLoc.pack());
+
+        if(positions == null)
+            return;
+
+        for(long position : positions) {
+            Object previous = values.remove(position);
+            Set<Long> previousBlocks = blocks.get(previous);
+
+            if(previousBlocks != null && previousBlocks.remove(position) && previousBlocks.isEmpty()) {
+                blocks.remove(previous);
+            }
+        }
+    }
+
+    /**
+     * Returns the packed positions of every block with the value.
+     */
+    public synchronized long[] getBlocks(Object value) {
+        Set<Long> positions = blocks.get(value);
+
+        if(positions == null)
+            return new long[0];
+
+        long[] result = new long[positions.size()];
+        int index = 0;
+
+        for(long position : positions) {
+            result[index++] = position;
+        }
+
+        return result;
+    }
+
+    public synchronized void write(DataOutput out) throws IOException {
+        out.writeUTF(plugin);
+        out.writeUTF(key);
+        ValueCodec.writeVarInt(out, values.size());
+
+        for(Map.Entry<Long, Object> entry : values.entrySet()) {
+            out.writeLong(entry.getKey());
+            ValueCodec.writeValue(out, entry.getValue());
+        }
+    }
+
+    public static MetaIndex read(DataInput in) throws IOException {
+        MetaIndex index = new MetaIndex(in.readUTF(), in.readUTF(), true);
+        int size = ValueCodec.readVarInt(in);
+
+        for(int entry = 0; entry < size; ++entry) {
+            long position = in.readLong();
+
+            index.set(position, ValueCodec.readValue(in));
+        }
+
+        return index;
+    }
+
+    /**
+     * Packs block coordinates into a long, with 26 bits for x and z and 12 bits for y.
+     */
+    public static long pack(int x, int y, int z) {
+        return ((x & 0x3FFFFFFL) << 38) | ((z & 0x3FFFFFFL) << 12) | (y & 0xFFFL);
+    }
+
+    public static long pack(ChunkLoc chunkLoc, int blockIndex) {
+        int x = (chunkLoc.x << 4) | (blockIndex & 15);
+        int y = (chunkLoc.y << 6) | (blockIndex >>> 8);
+        int z = (chunkLoc.z << 4) | ((blockIndex >>> 4) & 15);
+
+        return pack(x, y, z);
+    }
+
+    private static long toSectionKey(long position) {
+        return ChunkLoc.pack(unpackX(position) >> 4, unpackY(position) >> 6, unpackZ(position) >> 4);
+    }
+
+    public static int unpackX(long position) {
+        return (int) (position >> 38);
+    }
+
+    public static int unpackY(long position) {
+        return (int) (position & 0xFFF);
+    }
+
+    public static int unpackZ(long position) {
+        return (int) (position << 26 >> 38);
+    }
+
+}
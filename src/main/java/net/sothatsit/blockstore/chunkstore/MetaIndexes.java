@@ -0,0 +1,234 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import net.sothatsit.blockstore.BlockStore;
+import net.sothatsit.blockstore.util.Checks;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The metadata indexes of one world, kept up to date as a store listener and saved to a file next to its stores.
+ * An index added for a plugin and key that has no saved index is built in the background, by retrieving every
+ * chunk store that has saved data a few at a time and adding the values in them.
+ */
+public class MetaIndexes implements StoreListener {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final ChunkManager manager;
+    private final File file;
+    private final Object lock = new Object();
+
+    // Keyed by the packed plugin and key ids, replaced as a whole on changes so that listeners never lock
+    private volatile Map<Long, MetaIndex> indexes = Collections.emptyMap();
+
+    public MetaIndexes(ChunkManager manager, File file) {
+        Checks.ensureNonNull(manager, "manager");
+        Checks.ensureNonNull(file, "file");
+
+        this.manager = manager;
+        this.file = file;
+    }
+
+    private static long toId(int plugin, int key) {
+        return ((long) plugin << 32) | (key & 0xFFFFFFFFL);
+    }
+
+    private long toId(String plugin, String key) {
+        NameStore names = manager.getNameStore();
+
+        return toId(names.toId(plugin, true), names.toId(key, true));
+    }
+
+    public boolean isEmpty() {
+        return indexes.isEmpty();
+    }
+
+    public Collection<MetaIndex> getIndexes() {
+        return indexes.values();
+    }
+
+    public MetaIndex get(String plugin, String key) {
+        NameStore names = manager.getNameStore();
+        int pluginId = names.toId(plugin, false);
+        int keyId = names.toId(key, false);
+
+        if(pluginId < 0 || keyId < 0)
+            return null;
+
+        return indexes.get(toId(pluginId, keyId));
+    }
+
+    /**
+     * Returns the index for the plugin and key, adding it and starting to build it if there is not one.
+     */
+    public MetaIndex add(String plugin, String key) {
+        long id = toId(plugin, key);
+        MetaIndex index;
+
+        synchronized (lock) {
+            index = indexes.get(id);
+
+            if(index != null)
+                return index;
+
+            index = new MetaIndex(plugin, key, false);
+
+            Map<Long, MetaIndex> updated = new HashMap<>(indexes);
+            updated.put(id, index);
+            indexes = updated;
+        }
+
+        // Changes from this point on are added by the listener, so building only needs to add what is already stored
+        build(id, index);
+
+        return index;
+    }
+
+    public boolean remove(String plugin, String key) {
+        MetaIndex index = get(plugin, key);
+
+        if(index == null)
+            return false;
+
+        synchronized (lock) {
+            Map<Long, MetaIndex> updated = new HashMap<>(indexes);
+            updated.values().remove(index);
+            indexes = updated;
+        }
+
+        return true;
+    }
+
+    @Override
+    public void onMetaValue(ChunkLoc chunkLoc, int blockIndex, int plugin, int key, Object value) {
+        MetaIndex index = indexes.get(toId(plugin, key));
+
+        if(index != null) {
+            index.set(chunkLoc, blockIndex, value);
+        }
+    }
+
+    @Override
+    public void onBlockMeta(ChunkLoc chunkLoc, int blockIndex, BlockMeta meta) {
+        Map<Long, MetaIndex> indexes = this.indexes;
+
+        if(indexes.isEmpty())
+            return;
+
+        for(Map.Entry<Long, MetaIndex> entry : indexes.entrySet()) {
+            long id = entry.getKey();
+            Object value = (meta != null ? meta.getValue((int) (id >> 32), (int) id) : null);
+
+            entry.getValue().set(chunkLoc, blockIndex, value);
+        }
+    }
+
+    /**
+     * Replaces the values of every index in the section of store with the values in it.
+     */
+    public void reindex(LoadedChunkStore store) {
+        ChunkLoc chunkLoc = store.getChunkLoc();
+
+        for(Map.Entry<Long, MetaIndex> entry : indexes.entrySet()) {
+            long id = entry.getKey();
+            MetaIndex index = entry.getValue();
+
+            index.clearSection(chunkLoc);
+            store.forEachMetaValue((int) (id >> 32), (int) id,
+                    (blockIndex, value) -> index.set(chunkLoc, blockIndex, value));
+        }
+    }
+
+    private void build(long id, MetaIndex index) {
+        int plugin = (int) (id >> 32);
+        int key = (int) id;
+
+        BlockStore.getInstance().getLogger().info("Building the index of " + index.getPlugin() + "'s "
+                + index.getKey() + " metadata in " + manager.getWorld().getName());
+
+        // Stop if the index was removed while it was being built
+        manager.retrieveStoredStores(() -> indexes.get(id) != index, store -> {
+            if(store instanceof LoadedChunkStore) {
+                ChunkLoc chunkLoc = store.getChunkLoc();
+
+                ((LoadedChunkStore) store).forEachMetaValue(plugin, key,
+                        (blockIndex, value) -> index.set(chunkLoc, blockIndex, value));
+            }
+        }, () -> {
+            index.setComplete(true);
+
+            BlockStore.getInstance().getLogger().info("Built the index of " + index.getPlugin() + "'s "
+                    + index.getKey() + " metadata in " + manager.getWorld().getName()
+                    + " with " + index.size() + " blocks");
+        });
+    }
+
+    public void load() {
+        if(!file.exists())
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = in.readInt();
+
+            if(version != FORMAT_VERSION)
+                throw new IOException("Unknown metadata index version " + version);
+
+            int count = in.readInt();
+            Map<Long, MetaIndex> loaded = new HashMap<>();
+
+            for(int index = 0; index < count; ++index) {
+                MetaIndex metaIndex = MetaIndex.read(in);
+
+                loaded.put(toId(metaIndex.getPlugin(), metaIndex.getKey()), metaIndex);
+            }
+
+            synchronized (lock) {
+                indexes = loaded;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            BlockStore.getInstance().getLogger().severe("Unable to read the BlockStore metadata indexes in " + file
+                    + ", they will be built again when they are next added");
+        }
+    }
+
+    /**
+     * Saves every index that has finished building. Returns whether they were saved.
+     */
+    public boolean save() {
+        List<MetaIndex> complete = new ArrayList<>();
+
+        for(MetaIndex index : indexes.values()) {
+            if(index.isComplete()) {
+                complete.add(index);
+            }
+        }
+
+        if(complete.isEmpty())
+            return !file.exists() || file.delete();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        synchronized (file) {
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeInt(complete.size());
+
+                    for(MetaIndex index : complete) {
+                        index.write(out);
+                    }
+                }
+
+                ChunkManager.replaceFile(tempFile, file);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+}
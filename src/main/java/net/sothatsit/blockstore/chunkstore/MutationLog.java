@@ -0,0 +1,441 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import net.sothatsit.blockstore.util.Checks;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only log of every change made to the stores of a world, so that changes which have not
+ * yet been saved to the region files can be replayed after a crash. Each record holds the new state
+ * of what it changes, so replaying a record that has already been saved has no effect.
+ *
+ * Records are buffered in memory as they are logged and written to the current segment file in groups
+ * by a writer thread. A checkpoint rotates to a new segment, saves every changed store, and then deletes
+ * the older segments.
+ */
+public class MutationLog {
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long FLUSH_INTERVAL_MS = 50;
+
+    private static final int NAME = 0;
+    private static final int PLACED = 1;
+    private static final int META_SET = 2;
+    private static final int META_REMOVE = 3;
+    private static final int BLOCK_STATE = 4;
+
+    private final File folder;
+
+    // Guards the buffer that records are logged into
+    private final Object bufferLock = new Object();
+    private RecordBuffer buffer = new RecordBuffer();
+
+    // Guards the segment file that buffered records are written to
+    private final Object fileLock = new Object();
+    private FileOutputStream output;
+    private long segment;
+
+    private Thread writer;
+    private volatile boolean closed = false;
+
+    public MutationLog(File folder) {
+        Checks.ensureNonNull(folder, "folder");
+
+        this.folder = folder;
+
+        long lastSegment = 0;
+
+        for(long existing : listSegments()) {
+            lastSegment = Math.max(lastSegment, existing);
+        }
+
+        this.segment = lastSegment + 1;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(folder, segment + SEGMENT_SUFFIX);
+    }
+
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<>();
+        String[] files = folder.list();
+
+        if(files == null)
+            return segments;
+
+        for(String file : files) {
+            if(!file.endsWith(SEGMENT_SUFFIX))
+                continue;
+
+            try {
+                segments.add(Long.parseLong(file.substring(0, file.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                // Not a segment
+            }
+        }
+
+        segments.sort(null);
+
+        return segments;
+    }
+
+    /**
+     * Opens a new segment to log into and starts the writer thread.
+     * Segments left over from before this was started should be replayed first.
+     */
+    public void start(String name) throws IOException {
+        synchronized (fileLock) {
+            Checks.ensureTrue(writer == null, "Already started");
+
+            if(!folder.exists() && !folder.mkdirs())
+                throw new IOException("Unable to create folder " + folder);
+
+            output = new FileOutputStream(getSegmentFile(segment), true);
+
+            writer = new Thread(this::runWriter, name);
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private void runWriter() {
+        while(!closed) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void flush() throws IOException {
+        synchronized (fileLock) {
+            RecordBuffer full;
+
+            synchronized (bufferLock) {
+                if(buffer.size() == 0)
+                    return;
+
+                full = buffer;
+                buffer = new RecordBuffer();
+            }
+
+            // Records are dropped if the log could not be started, as there is nowhere to write them
+            if(output != null) {
+                full.writeTo(output);
+                output.getFD().sync();
+            }
+        }
+    }
+
+    /**
+     * Writes out everything logged so far and switches to a new segment.
+     * Returns the new segment, all records in earlier segments have been logged before this returns.
+     */
+    public long rotate() throws IOException {
+        synchronized (fileLock) {
+            flush();
+
+            if(output != null) {
+                output.close();
+                output = new FileOutputStream(getSegmentFile(segment + 1), true);
+            }
+
+            segment += 1;
+
+            return segment;
+        }
+    }
+
+    public boolean deleteSegmentsBefore(long segment) {
+        boolean deleted = true;
+
+        for(long existing : listSegments()) {
+            if(existing >= segment)
+                continue;
+
+            if(!getSegmentFile(existing).delete()) {
+                deleted = false;
+            }
+        }
+
+        return deleted;
+    }
+
+    public long getSegment() {
+        synchronized (fileLock) {
+            return segment;
+        }
+    }
+
+    public void close() throws IOException {
+        closed = true;
+
+        Thread writer = this.writer;
+
+        if(writer != null) {
+            writer.interrupt();
+
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (fileLock) {
+            flush();
+
+            if(output != null) {
+                output.close();
+                output = null;
+            }
+        }
+    }
+
+    public void logName(int id, String name) {
+        synchronized (bufferLock) {
+            int start = buffer.size();
+
+            try {
+                buffer.stream.writeByte(NAME);
+                ValueCodec.writeVarInt(buffer.stream, id);
+                buffer.stream.writeUTF(name);
+            } catch (IOException e) {
+                buffer.truncate(start);
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public void logPlaced(long chunkKey, int blockIndex, boolean placed) {
+        synchronized (bufferLock) {
+            int start = buffer.size();
+
+            try {
+                writeBlock(PLACED, chunkKey, blockIndex);
+                buffer.stream.writeBoolean(placed);
+            } catch (IOException e) {
+                buffer.truncate(start);
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public void logMetaSet(long chunkKey, int blockIndex, int plugin, int key, Object value) {
+        synchronized (bufferLock) {
+            int start = buffer.size();
+
+            try {
+                writeBlock(META_SET, chunkKey, blockIndex);
+                ValueCodec.writeVarInt(buffer.stream, plugin);
+                ValueCodec.writeVarInt(buffer.stream, key);
+                ValueCodec.writeValue(buffer.stream, value);
+            } catch (IOException e) {
+                buffer.truncate(start);
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public void logMetaRemove(long chunkKey, int blockIndex, int plugin, int key) {
+        synchronized (bufferLock) {
+            int start = buffer.size();
+
+            try {
+                writeBlock(META_REMOVE, chunkKey, blockIndex);
+                ValueCodec.writeVarInt(buffer.stream, plugin);
+                ValueCodec.writeVarInt(buffer.stream, key);
+            } catch (IOException e) {
+                buffer.truncate(start);
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Logs every change to a store in changes as one append, so that they are never split by other records.
+     */
+    public void logChanges(long chunkKey, StoreChanges changes) {
+        synchronized (bufferLock) {
+            int start = buffer.size();
+
+            try {
+                changes.forEach(new StoreChanges.Handler() {
+                    @Override
+                    public void onPlaced(int blockIndex, boolean placed) {
+                        try {
+                            writeBlock(PLACED, chunkKey, blockIndex);
+                            buffer.stream.writeBoolean(placed);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+
+                    @Override
+                    public void onMetaSet(int blockIndex, int plugin, int key, Object value) {
+                        try {
+                            writeBlock(META_SET, chunkKey, blockIndex);
+                            ValueCodec.writeVarInt(buffer.stream, plugin);
+                            ValueCodec.writeVarInt(buffer.stream, key);
+                            ValueCodec.writeValue(buffer.stream, value);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+
+                    @Override
+                    public void onMetaRemove(int blockIndex, int plugin, int key) {
+                        try {
+                            writeBlock(META_REMOVE, chunkKey, blockIndex);
+                            ValueCodec.writeVarInt(buffer.stream, plugin);
+                            ValueCodec.writeVarInt(buffer.stream, key);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                buffer.truncate(start);
+                throw e;
+            }
+        }
+    }
+
+    public void logBlockState(long chunkKey, int blockIndex, BlockMeta state) {
+        synchronized (bufferLock) {
+            int start = buffer.size();
+
+            try {
+                writeBlock(BLOCK_STATE, chunkKey, blockIndex);
+                state.write(buffer.stream);
+            } catch (IOException e) {
+                buffer.truncate(start);
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void writeBlock(int type, long chunkKey, int blockIndex) throws IOException {
+        buffer.stream.writeByte(type);
+        buffer.stream.writeLong(chunkKey);
+        buffer.stream.writeShort(blockIndex);
+    }
+
+    /**
+     * Passes every record in the segments before the current one to handler, in the order they were logged.
+     * Returns the number of records replayed.
+     */
+    public int replay(Handler handler) {
+        int records = 0;
+
+        for(long existing : listSegments()) {
+            if(existing >= getSegment())
+                continue;
+
+            File file = getSegmentFile(existing);
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                int type;
+
+                while((type = in.read()) != -1) {
+                    replayRecord(type, in, handler);
+                    records += 1;
+                }
+            } catch (EOFException e) {
+                // The server stopped part way through writing the last record
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return records;
+    }
+
+    private void replayRecord(int type, DataInputStream in, Handler handler) throws IOException {
+        if(type == NAME) {
+            int id = ValueCodec.readVarInt(in);
+            String name = in.readUTF();
+
+            handler.onName(id, name);
+            return;
+        }
+
+        long chunkKey = in.readLong();
+        int blockIndex = in.readUnsignedShort();
+
+        if(blockIndex >= BlockContainer.CAPACITY)
+            throw new IOException("Invalid block index " + blockIndex);
+
+        switch (type) {
+            case PLACED:
+                handler.onPlaced(chunkKey, blockIndex, in.readBoolean());
+                break;
+            case META_SET: {
+                int plugin = ValueCodec.readVarInt(in);
+                int key = ValueCodec.readVarInt(in);
+                Object value = ValueCodec.readValue(in);
+
+                if(value == null)
+                    throw new IOException("Missing value for plugin " + plugin + " and key " + key);
+
+                handler.onMetaSet(chunkKey, blockIndex, plugin, key, value);
+                break;
+            }
+            case META_REMOVE: {
+                int plugin = ValueCodec.readVarInt(in);
+                int key = ValueCodec.readVarInt(in);
+
+                handler.onMetaRemove(chunkKey, blockIndex, plugin, key);
+                break;
+            }
+            case BLOCK_STATE: {
+                BlockMeta state = new BlockMeta();
+
+                state.read(in);
+
+                handler.onBlockState(chunkKey, blockIndex, state);
+                break;
+            }
+            default:
+                throw new IOException("Unknown mutation type " + type);
+        }
+    }
+
+    public interface Handler {
+
+        public void onName(int id, String name);
+
+        public void onPlaced(long chunkKey, int blockIndex, boolean placed);
+
+        public void onMetaSet(long chunkKey, int blockIndex, int plugin, int key, Object value);
+
+        public void onMetaRemove(long chunkKey, int blockIndex, int plugin, int key);
+
+        public void onBlockState(long chunkKey, int blockIndex, BlockMeta state);
+
+    }
+
+    private static class RecordBuffer extends ByteArrayOutputStream {
+
+        private final DataOutputStream stream = new DataOutputStream(this);
+
+        public void truncate(int size) {
+            count = size;
+        }
+
+    }
+
+}
@@ -13,6 +13,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjIntConsumer;
 
 public class NameStore {
 
@@ -22,6 +23,11 @@ public class NameStore {
 
     private final List<String> names = new CopyOnWriteArrayList<>();
     private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile ObjIntConsumer<String> onNameAdded;
+
+    public void setOnNameAdded(ObjIntConsumer<String> onNameAdded) {
+        this.onNameAdded = onNameAdded;
+    }
 
     public int toId(String name, boolean create) {
         Checks.ensureNonNull(name, "name");
@@ -44,16 +50,46 @@ public class NameStore {
         try {
             writeLock.lock();
 
+            Integer existing = ids.get(name);
+
+            if(existing != null)
+                return existing;
+
             int id = names.size();
 
             names.add(name);
             ids.put(name, id);
 
+            ObjIntConsumer<String> onNameAdded = this.onNameAdded;
+
+            if(onNameAdded != null) {
+                onNameAdded.accept(name, id);
+            }
+
             return id;
         } finally {
             writeLock.unlock();
         }
     }
+
+    protected boolean restoreName(int id, String name) {
+        try {
+            writeLock.lock();
+
+            if(id < names.size())
+                return names.get(id).equals(name);
+
+            if(id > names.size() || ids.containsKey(name))
+                return false;
+
+            names.add(name);
+            ids.put(name, id);
+
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
     
     public String fromId(int id) {
         Checks.ensureTrue(id >= 0, "Invalid id " + id + ", valid ids are >= 0");
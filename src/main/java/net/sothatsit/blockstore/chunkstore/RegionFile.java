@@ -0,0 +1,316 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import net.sothatsit.blockstore.util.Checks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+public class RegionFile implements Closeable {
+
+    public static final int REGION_SIZE = 32;
+
+    private static final int MAGIC = 0x42535247;
+    private static final int FORMAT_VERSION = 1;
+    private static final int SECTOR_SIZE = 256;
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_SIZE = 8;
+
+    private final File file;
+    private final FileChannel channel;
+    private final int ySections;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final BitSet usedSectors = new BitSet();
+    private int sectorCount;
+    private boolean closed = false;
+
+    public RegionFile(File file, int ySections) throws IOException {
+        Checks.ensureNonNull(file, "file");
+        Checks.ensureTrue(ySections > 0, "ySections must be greater than 0");
+
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            if(channel.size() == 0) {
+                this.ySections = ySections;
+                this.offsets = new int[REGION_SIZE * REGION_SIZE * ySections];
+                this.lengths = new int[offsets.length];
+
+                writeHeader();
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(header, 0);
+                header.flip();
+
+                if(header.getInt() != MAGIC)
+                    throw new IOException("Region file " + file + " is not a BlockStore region file");
+
+                int version = header.getInt();
+                if(version != FORMAT_VERSION)
+                    throw new IOException("Unknown region file version " + version + " in " + file);
+
+                this.ySections = header.getInt();
+                this.offsets = new int[REGION_SIZE * REGION_SIZE * this.ySections];
+                this.lengths = new int[offsets.length];
+
+                readTable();
+            }
+        } catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getYSections() {
+        return ySections;
+    }
+
+    private int getTableSectors() {
+        int tableBytes = HEADER_SIZE + offsets.length * ENTRY_SIZE;
+
+        return (tableBytes + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(getTableSectors() * SECTOR_SIZE);
+
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(ySections);
+        header.rewind();
+
+        writeFully(header, 0);
+
+        this.sectorCount = getTableSectors();
+        usedSectors.set(0, sectorCount);
+    }
+
+    private void readTable() throws IOException {
+        ByteBuffer table = ByteBuffer.allocate(offsets.length * ENTRY_SIZE);
+        readFully(table, HEADER_SIZE);
+        table.flip();
+
+        this.sectorCount = Math.max(getTableSectors(), (int) ((channel.size() + SECTOR_SIZE - 1) / SECTOR_SIZE));
+        usedSectors.set(0, getTableSectors());
+
+        for(int index = 0; index < offsets.length; ++index) {
+            int offset = table.getInt();
+            int length = table.getInt();
+
+            if(offset <= 0 || length <= 0)
+                continue;
+
+            int sectors = toSectors(length);
+
+            if(offset + sectors > sectorCount) {
+                // The store was only partially written, treat it as missing
+                continue;
+            }
+
+            offsets[index] = offset;
+            lengths[index] = length;
+            usedSectors.set(offset, offset + sectors);
+        }
+    }
+
+    private int getIndex(ChunkLoc chunkLoc) {
+        if(chunkLoc.y < 0 || chunkLoc.y >= ySections)
+            return -1;
+
+        int relx = chunkLoc.x & (REGION_SIZE - 1);
+        int relz = chunkLoc.z & (REGION_SIZE - 1);
+
+        return relx + REGION_SIZE * (relz + REGION_SIZE * chunkLoc.y);
+    }
+
+    private static int toSectors(int length) {
+        return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+    private void ensureOpen() throws IOException {
+        if(closed)
+            throw new IOException("Region file " + file + " has been closed");
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized boolean hasEntry(ChunkLoc chunkLoc) {
+        int index = getIndex(chunkLoc);
+
+        return index >= 0 && offsets[index] > 0;
+    }
+
+    /**
+     * Returns the sector the store starts at, or -1 if it is not saved in this region file. This does not lock
+     * the region file as it is only used to order reads, where a sector that is out of date does no harm.
+     */
+    public int getSectorHint(ChunkLoc chunkLoc) {
+        int index = getIndex(chunkLoc);
+
+        if(index < 0 || offsets[index] == 0)
+            return -1;
+
+        return offsets[index];
+    }
+
+    /**
+     * Returns the indices of the stores saved in this region file, in the order they are laid out in its table.
+     */
+    public synchronized BitSet getEntries() {
+        BitSet entries = new BitSet(offsets.length);
+
+        for(int index = 0; index < offsets.length; ++index) {
+            if(offsets[index] > 0) {
+                entries.set(index);
+            }
+        }
+
+        return entries;
+    }
+
+    public synchronized byte[] read(ChunkLoc chunkLoc) throws IOException {
+        ensureOpen();
+
+        int index = getIndex(chunkLoc);
+
+        if(index < 0 || offsets[index] == 0)
+            return null;
+
+        ByteBuffer buffer = ByteBuffer.allocate(lengths[index]);
+        readFully(buffer, (long) offsets[index] * SECTOR_SIZE);
+
+        return buffer.array();
+    }
+
+    public synchronized void write(ChunkLoc chunkLoc, byte[] data, int length) throws IOException {
+        Checks.ensureNonNull(data, "data");
+        Checks.ensureTrue(length > 0 && length <= data.length, "length out of bounds");
+        ensureOpen();
+
+        int index = getIndex(chunkLoc);
+
+        if(index < 0)
+            throw new IOException("Chunk section " + chunkLoc + " is outside of the region file " + file);
+
+        int oldOffset = offsets[index];
+        int oldSectors = (oldOffset > 0 ? toSectors(lengths[index]) : 0);
+
+        // The old copy is never overwritten, and is only freed once the table points at the new copy on disk,
+        // so a crash part way through a write leaves the previous copy of the store intact
+        int offset = allocate(toSectors(length));
+
+        writeFully(ByteBuffer.wrap(data, 0, length), (long) offset * SECTOR_SIZE);
+        channel.force(false);
+        writeEntry(index, offset, length);
+
+        if(oldOffset > 0) {
+            usedSectors.clear(oldOffset, oldOffset + oldSectors);
+        }
+    }
+
+    public synchronized void delete(ChunkLoc chunkLoc) throws IOException {
+        ensureOpen();
+
+        int index = getIndex(chunkLoc);
+
+        if(index < 0 || offsets[index] == 0)
+            return;
+
+        usedSectors.clear(offsets[index], offsets[index] + toSectors(lengths[index]));
+        writeEntry(index, 0, 0);
+    }
+
+    private int allocate(int sectors) {
+        int start = usedSectors.nextClearBit(getTableSectors());
+
+        while(start < sectorCount) {
+            int end = usedSectors.nextSetBit(start);
+
+            if(end < 0 || end > sectorCount) {
+                end = sectorCount;
+            }
+
+            // Free sectors at the end of the file can be extended past the end of the file
+            if(end - start >= sectors || end == sectorCount)
+                break;
+
+            start = usedSectors.nextClearBit(end);
+        }
+
+        usedSectors.set(start, start + sectors);
+        sectorCount = Math.max(sectorCount, start + sectors);
+
+        return start;
+    }
+
+    private void writeEntry(int index, int offset, int length) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+
+        entry.putInt(offset);
+        entry.putInt(length);
+        entry.flip();
+
+        writeFully(entry, HEADER_SIZE + (long) index * ENTRY_SIZE);
+
+        offsets[index] = offset;
+        lengths[index] = length;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+
+            if(read < 0)
+                throw new IOException("Unexpected end of region file " + file);
+
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Forces every write made to this region file so far to disk.
+     */
+    public synchronized void force() throws IOException {
+        ensureOpen();
+
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed)
+            return;
+
+        closed = true;
+
+        try {
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    public static int toRegionCoord(int chunkCoord) {
+        return chunkCoord >> 5;
+    }
+
+}
@@ -0,0 +1,191 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import net.sothatsit.blockstore.util.Checks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class RegionFileCache {
+
+    private static final int MAX_OPEN_FILES = 64;
+
+    private final File folder;
+    private final int ySections;
+    private final Map<Long, RegionFile> openFiles = new LinkedHashMap<Long, RegionFile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, RegionFile> eldest) {
+            if(size() <= MAX_OPEN_FILES)
+                return false;
+
+            openRegions.remove(eldest.getKey(), eldest.getValue());
+            closeQuietly(eldest.getValue());
+            return true;
+        }
+    };
+
+    // The same files as openFiles, readable without waiting for a file to be opened
+    private final Map<Long, RegionFile> openRegions = new ConcurrentHashMap<>();
+
+    public RegionFileCache(File folder, int ySections) {
+        Checks.ensureNonNull(folder, "folder");
+        Checks.ensureTrue(ySections > 0, "ySections must be greater than 0");
+
+        this.folder = folder;
+        this.ySections = ySections;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public File getRegionFile(int regionX, int regionZ) {
+        return new File(folder, "r." + regionX + "." + regionZ + ".bsr");
+    }
+
+    private static long toKey(int regionX, int regionZ) {
+        return ((long) regionX << 32) | (regionZ & 0xFFFFFFFFL);
+    }
+
+    private RegionFile getRegion(ChunkLoc chunkLoc, boolean create) throws IOException {
+        int regionX = RegionFile.toRegionCoord(chunkLoc.x);
+        int regionZ = RegionFile.toRegionCoord(chunkLoc.z);
+        long key = toKey(regionX, regionZ);
+
+        synchronized (openFiles) {
+            RegionFile region = openFiles.get(key);
+
+            if(region != null && !region.isClosed())
+                return region;
+
+            File file = getRegionFile(regionX, regionZ);
+
+            if(!create && !file.exists())
+                return null;
+
+            if(!folder.exists()) {
+                folder.mkdirs();
+            }
+
+            region = new RegionFile(file, ySections);
+            openFiles.put(key, region);
+            openRegions.put(key, region);
+
+            return region;
+        }
+    }
+
+    /**
+     * Returns the sector the store starts at in its region file, or -1 if its region file is not open or
+     * it is not saved. Never opens a region file or waits on one.
+     */
+    public int getSectorHint(ChunkLoc chunkLoc) {
+        long key = toKey(RegionFile.toRegionCoord(chunkLoc.x), RegionFile.toRegionCoord(chunkLoc.z));
+        RegionFile region = openRegions.get(key);
+
+        return (region != null ? region.getSectorHint(chunkLoc) : -1);
+    }
+
+    public byte[] read(ChunkLoc chunkLoc) throws IOException {
+        while(true) {
+            RegionFile region = getRegion(chunkLoc, false);
+
+            if(region == null)
+                return null;
+
+            // The region may be closed if it is evicted from the cache between getting and using it
+            synchronized (region) {
+                if(region.isClosed())
+                    continue;
+
+                return region.read(chunkLoc);
+            }
+        }
+    }
+
+    public void write(ChunkLoc chunkLoc, byte[] data, int length) throws IOException {
+        while(true) {
+            RegionFile region = getRegion(chunkLoc, true);
+
+            synchronized (region) {
+                if(region.isClosed())
+                    continue;
+
+                region.write(chunkLoc, data, length);
+                return;
+            }
+        }
+    }
+
+    public void delete(ChunkLoc chunkLoc) throws IOException {
+        while(true) {
+            RegionFile region = getRegion(chunkLoc, false);
+
+            if(region == null)
+                return;
+
+            synchronized (region) {
+                if(region.isClosed())
+                    continue;
+
+                region.delete(chunkLoc);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forces the writes to every open region file to disk, region files are also forced as they are closed.
+     * Returns whether they all were.
+     */
+    public boolean forceAll() {
+        List<RegionFile> regions;
+
+        synchronized (openFiles) {
+            regions = new ArrayList<>(openFiles.values());
+        }
+
+        boolean forced = true;
+
+        for(RegionFile region : regions) {
+            synchronized (region) {
+                if(region.isClosed())
+                    continue;
+
+                try {
+                    region.force();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    forced = false;
+                }
+            }
+        }
+
+        return forced;
+    }
+
+    public void closeAll() {
+        List<RegionFile> regions;
+
+        synchronized (openFiles) {
+            regions = new ArrayList<>(openFiles.values());
+            openFiles.clear();
+            openRegions.clear();
+        }
+
+        regions.forEach(RegionFileCache::closeQuietly);
+    }
+
+    private static void closeQuietly(RegionFile region) {
+        try {
+            region.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+final class RunContainer extends BlockContainer {
+
+    // Pairs of the inclusive start and end of each run, in ascending order
+    private final short[] runs;
+    private final int cardinality;
+
+    RunContainer(short[] runs, int cardinality) {
+        this.runs = runs;
+        this.cardinality = cardinality;
+    }
+
+    private int getRunStart(int run) {
+        return runs[2 * run];
+    }
+
+    private int getRunEnd(int run) {
+        return runs[2 * run + 1];
+    }
+
+    // Finds the last run that starts at or before index, or -1 if there is none
+    private int findRun(int index) {
+        int low = 0;
+        int high = getRunCount() - 1;
+
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+
+            if(getRunStart(mid) <= index) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return high;
+    }
+
+    @Override
+    public boolean contains(int index) {
+        int run = findRun(index);
+
+        return run >= 0 && index <= getRunEnd(run);
+    }
+
+    @Override
+    public BlockContainer add(int index) {
+        checkIndex(index);
+
+        int run = findRun(index);
+
+        if(run >= 0 && index <= getRunEnd(run))
+            return this;
+
+        boolean joinsPrevious = (run >= 0 && getRunEnd(run) == index - 1);
+        boolean joinsNext = (run + 1 < getRunCount() && getRunStart(run + 1) == index + 1);
+
+        short[] newRuns;
+
+        if(joinsPrevious && joinsNext) {
+            newRuns = new short[runs.length - 2];
+            System.arraycopy(runs, 0, newRuns, 0, 2 * run + 1);
+            System.arraycopy(runs, 2 * run + 3, newRuns, 2 * run + 1, runs.length - 2 * run - 3);
+        } else if(joinsPrevious) {
+            newRuns = runs.clone();
+            newRuns[2 * run + 1] = (short) index;
+        } else if(joinsNext) {
+            newRuns = runs.clone();
+            newRuns[2 * run + 2] = (short) index;
+        } else {
+            int position = 2 * (run + 1);
+
+            newRuns = new short[runs.length + 2];
+            System.arraycopy(runs, 0, newRuns, 0, position);
+            System.arraycopy(runs, position, newRuns, position + 2, runs.length - position);
+            newRuns[position] = (short) index;
+            newRuns[position + 1] = (short) index;
+        }
+
+        return new RunContainer(newRuns, cardinality + 1).optimise();
+    }
+
+    @Override
+    public BlockContainer remove(int index) {
+        checkIndex(index);
+
+        int run = findRun(index);
+
+        if(run < 0 || index > getRunEnd(run))
+            return this;
+
+        if(cardinality == 1)
+            return empty();
+
+        int start = getRunStart(run);
+        int end = getRunEnd(run);
+        short[] newRuns;
+
+        if(start == end) {
+            newRuns = new short[runs.length - 2];
+            System.arraycopy(runs, 0, newRuns, 0, 2 * run);
+            System.arraycopy(runs, 2 * run + 2, newRuns, 2 * run, runs.length - 2 * run - 2);
+        } else if(index == start) {
+            newRuns = runs.clone();
+            newRuns[2 * run] = (short) (index + 1);
+        } else if(index == end) {
+            newRuns = runs.clone();
+            newRuns[2 * run + 1] = (short) (index - 1);
+        } else {
+            newRuns = new short[runs.length + 2];
+            System.arraycopy(runs, 0, newRuns, 0, 2 * run + 1);
+            System.arraycopy(runs, 2 * run + 1, newRuns, 2 * run + 3, runs.length - 2 * run - 1);
+            newRuns[2 * run + 1] = (short) (index - 1);
+            newRuns[2 * run + 2] = (short) (index + 1);
+        }
+
+        return new RunContainer(newRuns, cardinality - 1).optimise();
+    }
+
+    @Override
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public int getRunCount() {
+        return runs.length / 2;
+    }
+
+    @Override
+    protected int getType() {
+        return TYPE_RUN;
+    }
+
+    @Override
+    public void forEach(IntConsumer consumer) {
+        for(int run = 0; run < getRunCount(); ++run) {
+            for(int index = getRunStart(run); index <= getRunEnd(run); ++index) {
+                consumer.accept(index);
+            }
+        }
+    }
+
+    @Override
+    public void copyWords(long[] words) {
+        Arrays.fill(words, 0);
+
+        for(int run = 0; run < getRunCount(); ++run) {
+            setRange(words, getRunStart(run), getRunEnd(run) + 1);
+        }
+    }
+
+    @Override
+    protected void writeContents(DataOutput out) throws IOException {
+        ValueCodec.writeVarInt(out, getRunCount());
+
+        for(int run = 0; run < getRunCount(); ++run) {
+            out.writeShort(getRunStart(run));
+            out.writeShort(getRunEnd(run) - getRunStart(run));
+        }
+    }
+
+    static RunContainer fromWords(long[] words, int cardinality, int runCount) {
+        short[] runs = new short[2 * runCount];
+        int run = 0;
+
+        for(int start = nextSetBit(words, 0); start >= 0; ) {
+            int end = nextClearBit(words, start);
+
+            runs[2 * run] = (short) start;
+            runs[2 * run + 1] = (short) (end - 1);
+            run += 1;
+
+            start = nextSetBit(words, end);
+        }
+
+        return new RunContainer(runs, cardinality);
+    }
+
+    static BlockContainer readContents(DataInput in) throws IOException {
+        int runCount = ValueCodec.readVarInt(in);
+
+        if(runCount < 0 || runCount > CAPACITY / 2)
+            throw new IOException("Invalid run container size " + runCount);
+
+        if(runCount == 0)
+            return empty();
+
+        short[] runs = new short[2 * runCount];
+        int cardinality = 0;
+        int previousEnd = -2;
+
+        for(int run = 0; run < runCount; ++run) {
+            int start = in.readUnsignedShort();
+            int end = start + in.readUnsignedShort();
+
+            if(start <= previousEnd + 1 || end >= CAPACITY)
+                throw new IOException("Invalid or unsorted run " + start + "-" + end + " in run container");
+
+            runs[2 * run] = (short) start;
+            runs[2 * run + 1] = (short) end;
+            cardinality += end - start + 1;
+            previousEnd = end;
+        }
+
+        return new RunContainer(runs, cardinality);
+    }
+
+}
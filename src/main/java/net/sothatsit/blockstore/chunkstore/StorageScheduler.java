@@ -0,0 +1,359 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import net.sothatsit.blockstore.util.Checks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs store loads and saves on a fixed number of threads, taking queued tasks in priority order.
+ * Preloads and saves are bounded by a maximum queue size, while tasks that a caller is waiting on
+ * are always accepted. Tasks submitted with the same key while one is still queued are merged.
+ */
+public class StorageScheduler {
+
+    public enum Priority {
+        BLOCKING,
+        RETRIEVE,
+        PRELOAD,
+        SAVE;
+
+        public boolean isBounded() {
+            return this == PRELOAD || this == SAVE;
+        }
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+
+    private final Object lock = new Object();
+    private final Thread[] threads;
+    private final int maxQueued;
+
+    private final List<ArrayDeque<Task>> queues;
+    private final Map<Object, Task> queuedByKey = new HashMap<>();
+    private final int[] queued = new int[PRIORITIES.length];
+    private final long[] completed = new long[PRIORITIES.length];
+    private final long[] rejected = new long[PRIORITIES.length];
+    private final long[] cancelled = new long[PRIORITIES.length];
+    private final long[] totalWaitNanos = new long[PRIORITIES.length];
+    private final long[] maxWaitNanos = new long[PRIORITIES.length];
+    private boolean shutdown = false;
+
+    public StorageScheduler(String name, int threadCount, int maxQueued) {
+        Checks.ensureNonNull(name, "name");
+        Checks.ensureTrue(threadCount > 0, "threadCount must be greater than 0");
+        Checks.ensureTrue(maxQueued > 0, "maxQueued must be greater than 0");
+
+        this.maxQueued = maxQueued;
+        this.queues = new ArrayList<>(PRIORITIES.length);
+
+        for(int index = 0; index < PRIORITIES.length; ++index) {
+            queues.add(new ArrayDeque<>());
+        }
+
+        this.threads = new Thread[threadCount];
+
+        for(int index = 0; index < threadCount; ++index) {
+            Thread thread = new Thread(this::runWorker, name + " #" + (index + 1));
+
+            thread.setDaemon(true);
+            thread.start();
+
+            threads[index] = thread;
+        }
+    }
+
+    public int getThreadCount() {
+        return threads.length;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public boolean hasCapacity(Priority priority) {
+        synchronized (lock) {
+            return !priority.isBounded() || queued[priority.ordinal()] < maxQueued;
+        }
+    }
+
+    /**
+     * Returns the task that will run the given runnable, or null if the queue for a bounded priority is full.
+     * If a task with the same non-null key is still queued the two are merged, and the existing task is
+     * returned after raising its priority if needed. Once shut down, submitted tasks run on the calling thread.
+     */
+    public Task submit(Object key, Priority priority, Runnable runnable) {
+        Checks.ensureNonNull(priority, "priority");
+        Checks.ensureNonNull(runnable, "runnable");
+
+        synchronized (lock) {
+            if(!shutdown) {
+                if(key != null) {
+                    Task existing = queuedByKey.get(key);
+
+                    if(existing != null) {
+                        promote(existing, priority);
+                        return existing;
+                    }
+                }
+
+                if(priority.isBounded() && queued[priority.ordinal()] >= maxQueued) {
+                    rejected[priority.ordinal()] += 1;
+                    return null;
+                }
+
+                Task task = new Task(key, priority, runnable);
+
+                enqueue(task);
+
+                if(key != null) {
+                    queuedByKey.put(key, task);
+                }
+
+                lock.notify();
+                return task;
+            }
+        }
+
+        Task task = new Task(key, priority, runnable);
+
+        task.state = RUNNING;
+        task.run();
+
+        return task;
+    }
+
+    private void enqueue(Task task) {
+        int index = task.priority.ordinal();
+
+        queues.get(index).add(task);
+        queued[index] += 1;
+    }
+
+    private void promote(Task task, Priority priority) {
+        synchronized (lock) {
+            // A cancelled task is queued again, as something now needs it to run
+            if(task.state == CANCELLED) {
+                task.priority = (priority.ordinal() < task.priority.ordinal() ? priority : task.priority);
+
+                // There are no workers left to run it once shut down, so it is run on the calling thread below
+                if(shutdown) {
+                    task.state = RUNNING;
+                } else {
+                    task.state = QUEUED;
+                    enqueue(task);
+
+                    if(task.key != null) {
+                        queuedByKey.putIfAbsent(task.key, task);
+                    }
+
+                    lock.notify();
+                    return;
+                }
+            } else {
+                if(task.state != QUEUED || priority.ordinal() >= task.priority.ordinal())
+                    return;
+
+                queued[task.priority.ordinal()] -= 1;
+
+                // The entry left in the old queue is skipped when it is polled as its priority no longer matches
+                task.priority = priority;
+                enqueue(task);
+                return;
+            }
+        }
+
+        task.run();
+    }
+
+    private boolean cancel(Task task, Priority priority) {
+        synchronized (lock) {
+            if(task.state != QUEUED || task.priority != priority)
+                return false;
+
+            // The entry left in the queue is skipped when it is polled as the task is no longer queued
+            task.state = CANCELLED;
+            queued[priority.ordinal()] -= 1;
+            cancelled[priority.ordinal()] += 1;
+
+            if(task.key != null) {
+                queuedByKey.remove(task.key, task);
+            }
+
+            return true;
+        }
+    }
+
+    private Task poll() {
+        for(int index = 0; index < PRIORITIES.length; ++index) {
+            ArrayDeque<Task> queue = queues.get(index);
+
+            while(!queue.isEmpty()) {
+                Task task = queue.poll();
+
+                if(task.state != QUEUED || task.priority.ordinal() != index)
+                    continue;
+
+                long wait = System.nanoTime() - task.submitTime;
+
+                task.state = RUNNING;
+                queued[index] -= 1;
+                totalWaitNanos[index] += wait;
+                maxWaitNanos[index] = Math.max(maxWaitNanos[index], wait);
+
+                if(task.key != null) {
+                    queuedByKey.remove(task.key);
+                }
+
+                return task;
+            }
+        }
+
+        return null;
+    }
+
+    private void runWorker() {
+        while(true) {
+            Task task;
+
+            synchronized (lock) {
+                while((task = poll()) == null) {
+                    if(shutdown)
+                        return;
+
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            task.run();
+        }
+    }
+
+    /**
+     * Stops accepting tasks, drops the queued preloads, and waits for every other queued task to finish.
+     * A dropped preload is run on the thread that promotes it if something still needs it.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+
+            for(Task task : queues.get(Priority.PRELOAD.ordinal())) {
+                cancel(task, Priority.PRELOAD);
+            }
+
+            lock.notifyAll();
+        }
+
+        for(Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public int getQueued(Priority priority) {
+        synchronized (lock) {
+            return queued[priority.ordinal()];
+        }
+    }
+
+    public long getCompleted(Priority priority) {
+        synchronized (lock) {
+            return completed[priority.ordinal()];
+        }
+    }
+
+    public long getRejected(Priority priority) {
+        synchronized (lock) {
+            return rejected[priority.ordinal()];
+        }
+    }
+
+    public long getCancelled(Priority priority) {
+        synchronized (lock) {
+            return cancelled[priority.ordinal()];
+        }
+    }
+
+    public double getAverageWaitMillis(Priority priority) {
+        synchronized (lock) {
+            long count = completed[priority.ordinal()];
+
+            if(count == 0)
+                return 0;
+
+            return totalWaitNanos[priority.ordinal()] / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+
+    public double getMaxWaitMillis(Priority priority) {
+        synchronized (lock) {
+            return maxWaitNanos[priority.ordinal()] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+
+    public final class Task {
+
+        private final Object key;
+        private final Runnable runnable;
+        private final long submitTime;
+        private Priority priority;
+        private int state = QUEUED;
+
+        private Task(Object key, Priority priority, Runnable runnable) {
+            this.key = key;
+            this.priority = priority;
+            this.runnable = runnable;
+            this.submitTime = System.nanoTime();
+        }
+
+        public void promote(Priority priority) {
+            StorageScheduler.this.promote(this, priority);
+        }
+
+        /**
+         * Stops the task from running if it is still queued at the given priority. Promoting a cancelled task
+         * queues it again. Returns whether the task was cancelled.
+         */
+        public boolean cancel(Priority priority) {
+            return StorageScheduler.this.cancel(this, priority);
+        }
+
+        public boolean isDone() {
+            synchronized (lock) {
+                return state == DONE;
+            }
+        }
+
+        private void run() {
+            try {
+                runnable.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            } finally {
+                synchronized (lock) {
+                    state = DONE;
+                    completed[priority.ordinal()] += 1;
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,405 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import net.sothatsit.blockstore.util.Checks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the encoded, compressed contents of recently unloaded stores in memory so that they can be
+ * loaded again without reading their region files. Stores that were changed are only written to their
+ * region file once they are evicted from the cache or flushed, so a store that is loaded and unloaded
+ * repeatedly is only written once.
+ *
+ * Entries are written back without holding the cache's lock, so that one cache can be shared by every
+ * world without lookups waiting on disk. While an entry is being written it is kept as a pending write,
+ * which is still found by contains and take, and no other write of the same store is started until it
+ * finishes. Saves of a store that are not made through the cache should call awaitWriteBack first.
+ */
+public class StoreCache {
+
+    // The entry, its key and its place in the map
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long maxBytes;
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // The entries that are being written back, which may also still be in entries if they are being flushed
+    private final Map<Key, Entry> writing = new HashMap<>();
+    private long bytes = 0;
+    private int dirtyCount = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long writeBacks = 0;
+
+    public StoreCache(long maxBytes) {
+        Checks.ensureTrue(maxBytes >= 0, "maxBytes cannot be negative");
+
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Adds the encoded contents of a store, replacing any previous entry for it. data is null if the store
+     * is empty. If dirty, the entry is written back using writeBack before it is dropped from the cache.
+     */
+    public void put(WriteBack writeBack, long key, byte[] data, boolean dirty) {
+        Checks.ensureNonNull(writeBack, "writeBack");
+
+        List<Entry> evicted;
+
+        synchronized (this) {
+            Entry entry = new Entry(writeBack, key, data, dirty);
+            Entry previous = entries.put(entry.key, entry);
+
+            if(previous != null) {
+                removed(previous);
+
+                // The previous changes are included in the new contents, and must still be written
+                if(previous.dirty && !entry.dirty) {
+                    entry.dirty = true;
+                }
+            }
+
+            bytes += entry.size;
+
+            if(entry.dirty) {
+                dirtyCount += 1;
+            }
+
+            evicted = evict();
+        }
+
+        for(Entry entry : evicted) {
+            writeBackEvicted(entry);
+        }
+    }
+
+    public synchronized boolean contains(WriteBack writeBack, long key) {
+        Key cacheKey = new Key(writeBack, key);
+
+        return entries.containsKey(cacheKey) || writing.containsKey(cacheKey);
+    }
+
+    /**
+     * Waits until the store is not being written back, so that a save of it made outside the cache
+     * cannot be overwritten by an older copy that was still being written.
+     */
+    public synchronized void awaitWriteBack(WriteBack writeBack, long key) {
+        awaitWrite(new Key(writeBack, key));
+    }
+
+    private void awaitWrite(Key key) {
+        try {
+            while(writing.containsKey(key)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Thread interrupted waiting for a store to be written back", e);
+        }
+    }
+
+    /**
+     * Removes and returns the entry for the given store, or null if it is not cached.
+     */
+    public synchronized Entry take(WriteBack writeBack, long key) {
+        Key cacheKey = new Key(writeBack, key);
+        Entry entry = entries.remove(cacheKey);
+
+        if(entry != null) {
+            hits += 1;
+            removed(entry);
+
+            return entry;
+        }
+
+        // An evicted entry that is still being written is the newest copy of the store, and is still dirty
+        entry = writing.get(cacheKey);
+
+        if(entry == null) {
+            misses += 1;
+            return null;
+        }
+
+        hits += 1;
+        entry.taken = true;
+
+        return entry;
+    }
+
+    private void removed(Entry entry) {
+        bytes -= entry.size;
+
+        if(entry.dirty) {
+            dirtyCount -= 1;
+        }
+    }
+
+    /**
+     * Removes entries until the cache fits in maxBytes, and returns the dirty entries removed, which are
+     * left as pending writes to be written back once the lock is released.
+     */
+    private List<Entry> evict() {
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while(bytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+
+            // An older copy of the store is still being written, and this one must not be written at the same time
+            if(entry.dirty && writing.containsKey(entry.key))
+                continue;
+
+            iterator.remove();
+            bytes -= entry.size;
+
+            if(entry.dirty) {
+                writing.put(entry.key, entry);
+                evicted.add(entry);
+            }
+        }
+
+        return evicted;
+    }
+
+    private static boolean write(Entry entry) {
+        try {
+            entry.key.writeBack.write(entry.key.key, entry.data);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void writeBackEvicted(Entry entry) {
+        boolean written = write(entry);
+
+        synchronized (this) {
+            writing.remove(entry.key);
+            dirtyCount -= 1;
+
+            if(written) {
+                entry.written = true;
+                writeBacks += 1;
+            } else if(!entry.taken && !entries.containsKey(entry.key)) {
+                // Kept so that the changes are not lost, and written again when it is next evicted or flushed
+                entries.put(entry.key, entry);
+                bytes += entry.size;
+                dirtyCount += 1;
+            }
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes back every changed entry that was added using writeBack, leaving them cached.
+     * Returns whether all of them were written.
+     */
+    public boolean flush(WriteBack writeBack) {
+        List<Entry> dirty = new ArrayList<>();
+        boolean flushed = true;
+
+        synchronized (this) {
+            // Entries that were evicted and are still being written back, whose writes must also have finished.
+            // Those that failed are put back into the cache, and are written again below.
+            for(Entry entry : new ArrayList<>(writing.values())) {
+                if(entry.key.writeBack != writeBack)
+                    continue;
+
+                awaitWrite(entry.key);
+
+                // An entry that failed and was taken has changes that are now only in the store it was loaded into
+                if(!entry.written && entries.get(entry.key) != entry) {
+                    flushed = false;
+                }
+            }
+
+            for(Entry entry : entries.values()) {
+                if(entry.dirty && entry.key.writeBack == writeBack) {
+                    dirty.add(entry);
+                }
+            }
+        }
+
+        // Each entry is written without the lock, so that loads are not held up by the flush
+        for(Entry entry : dirty) {
+            synchronized (this) {
+                awaitWrite(entry.key);
+
+                if(!entry.dirty || entries.get(entry.key) != entry)
+                    continue;
+
+                writing.put(entry.key, entry);
+            }
+
+            boolean written = write(entry);
+
+            synchronized (this) {
+                writing.remove(entry.key);
+
+                // If the entry was taken while it was written, the store it was loaded into is already dirty
+                if(written && entries.get(entry.key) == entry) {
+                    entry.dirty = false;
+                    dirtyCount -= 1;
+                    writeBacks += 1;
+                }
+
+                flushed &= written;
+                notifyAll();
+            }
+        }
+
+        return flushed;
+    }
+
+    /**
+     * Writes back and then removes every entry that was added using writeBack.
+     * Returns whether all changed entries were written, entries that could not be written are kept.
+     */
+    public boolean clear(WriteBack writeBack) {
+        boolean flushed = flush(writeBack);
+
+        synchronized (this) {
+            // Wait for any entries that were evicted from another thread to finish being written
+            for(Entry entry : new ArrayList<>(writing.values())) {
+                if(entry.key.writeBack == writeBack) {
+                    awaitWrite(entry.key);
+                }
+            }
+
+            Iterator<Entry> iterator = entries.values().iterator();
+
+            while(iterator.hasNext()) {
+                Entry entry = iterator.next();
+
+                if(entry.key.writeBack != writeBack)
+                    continue;
+
+                // Entries whose write back failed are kept
+                if(entry.dirty) {
+                    flushed = false;
+                    continue;
+                }
+
+                iterator.remove();
+                bytes -= entry.size;
+            }
+        }
+
+        return flushed;
+    }
+
+    /**
+     * Returns the keys of every entry that was added using writeBack.
+     */
+    public synchronized long[] getKeys(WriteBack writeBack) {
+        return Stream.concat(entries.keySet().stream(), writing.keySet().stream())
+                .filter(key -> key.writeBack == writeBack)
+                .distinct()
+                .mapToLong(key -> key.key)
+                .toArray();
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getWriteBacks() {
+        return writeBacks;
+    }
+
+    public interface WriteBack {
+
+        /**
+         * Writes the encoded contents of a store to disk, where data is null if the store is empty.
+         */
+        public void write(long key, byte[] data) throws IOException;
+
+    }
+
+    public static final class Entry {
+
+        private final Key key;
+        private final byte[] data;
+        private final long size;
+        private boolean dirty;
+        // Whether the entry was taken while it was being written back, and whether its eviction write back succeeded
+        private boolean taken;
+        private boolean written;
+
+        private Entry(WriteBack writeBack, long key, byte[] data, boolean dirty) {
+            this.key = new Key(writeBack, key);
+            this.data = data;
+            this.size = ENTRY_OVERHEAD + (data != null ? data.length : 0);
+            this.dirty = dirty;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public boolean isDirty() {
+            return dirty;
+        }
+
+    }
+
+    private static final class Key {
+
+        private final WriteBack writeBack;
+        private final long key;
+
+        private Key(WriteBack writeBack, long key) {
+            this.writeBack = writeBack;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Key))
+                return false;
+
+            Key other = (Key) obj;
+
+            return writeBack == other.writeBack && key == other.key;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(writeBack) * 31 + Long.hashCode(key);
+        }
+
+    }
+
+}
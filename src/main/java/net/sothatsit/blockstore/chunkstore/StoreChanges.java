@@ -0,0 +1,121 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import java.util.Arrays;
+
+/**
+ * A list of changes to the blocks of one chunk store, applied together under one lock.
+ * Changes are kept in flat arrays rather than as an object per change, and are applied in the order they were added.
+ */
+public final class StoreChanges {
+
+    private static final int SET_PLACED = 0;
+    private static final int SET_UNPLACED = 1;
+    private static final int META_SET = 2;
+    private static final int META_REMOVE = 3;
+
+    // Each operation is its block index shifted left by two, with its type in the lowest two bits
+    private int[] operations = new int[16];
+    private int size = 0;
+
+    // The plugin and key of each metadata operation, in pairs
+    private int[] names = new int[0];
+    private int nameCount = 0;
+
+    // The value of each metadata set
+    private Object[] values = new Object[0];
+    private int valueCount = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void setPlaced(int blockIndex, boolean value) {
+        ChunkStore.checkBlockIndex(blockIndex);
+
+        addOperation(blockIndex, value ? SET_PLACED : SET_UNPLACED);
+    }
+
+    public void setMetaValue(int blockIndex, int plugin, int key, Object value) {
+        ChunkStore.checkBlockIndex(blockIndex);
+
+        addOperation(blockIndex, META_SET);
+        addNames(plugin, key);
+
+        if(valueCount == values.length) {
+            values = Arrays.copyOf(values, Math.max(8, valueCount * 2));
+        }
+
+        values[valueCount++] = value;
+    }
+
+    public void removeMetaValue(int blockIndex, int plugin, int key) {
+        ChunkStore.checkBlockIndex(blockIndex);
+
+        addOperation(blockIndex, META_REMOVE);
+        addNames(plugin, key);
+    }
+
+    private void addOperation(int blockIndex, int type) {
+        if(size == operations.length) {
+            operations = Arrays.copyOf(operations, size * 2);
+        }
+
+        operations[size++] = (blockIndex << 2) | type;
+    }
+
+    private void addNames(int plugin, int key) {
+        if(nameCount + 2 > names.length) {
+            names = Arrays.copyOf(names, Math.max(16, names.length * 2));
+        }
+
+        names[nameCount++] = plugin;
+        names[nameCount++] = key;
+    }
+
+    /**
+     * Passes every change to handler, in the order they were added.
+     */
+    public void forEach(Handler handler) {
+        int nameIndex = 0;
+        int valueIndex = 0;
+
+        for(int index = 0; index < size; ++index) {
+            int operation = operations[index];
+            int blockIndex = operation >>> 2;
+
+            switch(operation & 3) {
+                case SET_PLACED:
+                    handler.onPlaced(blockIndex, true);
+                    break;
+                case SET_UNPLACED:
+                    handler.onPlaced(blockIndex, false);
+                    break;
+                case META_SET:
+                    handler.onMetaSet(blockIndex, names[nameIndex], names[nameIndex + 1], values[valueIndex++]);
+                    nameIndex += 2;
+                    break;
+                case META_REMOVE:
+                    handler.onMetaRemove(blockIndex, names[nameIndex], names[nameIndex + 1]);
+                    nameIndex += 2;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation type " + (operation & 3));
+            }
+        }
+    }
+
+    public interface Handler {
+
+        public void onPlaced(int blockIndex, boolean placed);
+
+        public void onMetaSet(int blockIndex, int plugin, int key, Object value);
+
+        public void onMetaRemove(int blockIndex, int plugin, int key);
+
+    }
+
+}
@@ -0,0 +1,154 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import net.sothatsit.blockstore.util.Checks;
+import net.sothatsit.blockstore.util.LongObjectMap;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongConsumer;
+
+/**
+ * Tracks which chunk sections of a world may have a store saved on disk, so that loading the sections
+ * that have never had a placed block does not need to touch the file system. A section may be marked
+ * while it has no data, but a section with data is never left unmarked.
+ *
+ * Sections are kept in a bitset per region, laid out in the same order as the entries of a region file.
+ */
+public class StoreIndex {
+
+    private static final int REGION_SECTIONS = RegionFile.REGION_SIZE * RegionFile.REGION_SIZE;
+
+    private final int ySections;
+    private final LongObjectMap<AtomicLongArray> regions = new LongObjectMap<>();
+
+    public StoreIndex(int ySections) {
+        Checks.ensureTrue(ySections > 0, "ySections must be greater than 0");
+
+        this.ySections = ySections;
+    }
+
+    public int getYSections() {
+        return ySections;
+    }
+
+    private static long toRegionKey(int regionX, int regionZ) {
+        return ((long) regionX << 32) | (regionZ & 0xFFFFFFFFL);
+    }
+
+    private static int getIndex(int cx, int cy, int cz) {
+        int relx = cx & (RegionFile.REGION_SIZE - 1);
+        int relz = cz & (RegionFile.REGION_SIZE - 1);
+
+        return relx + RegionFile.REGION_SIZE * (relz + RegionFile.REGION_SIZE * cy);
+    }
+
+    private AtomicLongArray getRegion(int cx, int cz, boolean create) {
+        long key = toRegionKey(RegionFile.toRegionCoord(cx), RegionFile.toRegionCoord(cz));
+
+        if(!create)
+            return regions.get(key);
+
+        return regions.computeIfAbsent(key, region -> new AtomicLongArray((REGION_SECTIONS * ySections + 63) / 64));
+    }
+
+    public boolean contains(int cx, int cy, int cz) {
+        if(cy < 0 || cy >= ySections)
+            return false;
+
+        AtomicLongArray region = getRegion(cx, cz, false);
+
+        if(region == null)
+            return false;
+
+        int index = getIndex(cx, cy, cz);
+
+        return (region.get(index >> 6) & (1L << index)) != 0;
+    }
+
+    public boolean contains(ChunkLoc chunkLoc) {
+        return contains(chunkLoc.x, chunkLoc.y, chunkLoc.z);
+    }
+
+    public void add(ChunkLoc chunkLoc) {
+        if(chunkLoc.y < 0 || chunkLoc.y >= ySections)
+            return;
+
+        AtomicLongArray region = getRegion(chunkLoc.x, chunkLoc.z, true);
+        int index = getIndex(chunkLoc.x, chunkLoc.y, chunkLoc.z);
+        long bit = 1L << index;
+
+        region.getAndUpdate(index >> 6, word -> word | bit);
+    }
+
+    public void remove(ChunkLoc chunkLoc) {
+        if(chunkLoc.y < 0 || chunkLoc.y >= ySections)
+            return;
+
+        AtomicLongArray region = getRegion(chunkLoc.x, chunkLoc.z, false);
+
+        if(region == null)
+            return;
+
+        int index = getIndex(chunkLoc.x, chunkLoc.y, chunkLoc.z);
+        long bit = 1L << index;
+
+        region.getAndUpdate(index >> 6, word -> word & ~bit);
+    }
+
+    /**
+     * Marks every section that has an entry in a region file, given the indices of its entries.
+     */
+    public void addRegion(int regionX, int regionZ, BitSet entries) {
+        if(entries.isEmpty())
+            return;
+
+        int originX = regionX * RegionFile.REGION_SIZE;
+        int originZ = regionZ * RegionFile.REGION_SIZE;
+        AtomicLongArray region = getRegion(originX, originZ, true);
+        int capacity = REGION_SECTIONS * ySections;
+
+        for(int index = entries.nextSetBit(0); index >= 0 && index < capacity; index = entries.nextSetBit(index + 1)) {
+            long bit = 1L << index;
+
+            region.getAndUpdate(index >> 6, word -> word | bit);
+        }
+    }
+
+    /**
+     * Passes the packed ChunkLoc of every marked section to consumer.
+     */
+    public void forEach(LongConsumer consumer) {
+        regions.forEach((regionKey, region) -> {
+            int originX = (int) (regionKey >> 32) * RegionFile.REGION_SIZE;
+            int originZ = (int) regionKey * RegionFile.REGION_SIZE;
+
+            for(int word = 0; word < region.length(); ++word) {
+                long bits = region.get(word);
+
+                while(bits != 0) {
+                    int index = word * 64 + Long.numberOfTrailingZeros(bits);
+                    int relx = index % RegionFile.REGION_SIZE;
+                    int relz = (index / RegionFile.REGION_SIZE) % RegionFile.REGION_SIZE;
+                    int cy = index / REGION_SECTIONS;
+
+                    consumer.accept(ChunkLoc.pack(originX + relx, cy, originZ + relz));
+
+                    bits &= bits - 1;
+                }
+            }
+        });
+    }
+
+    public int size() {
+        int[] count = {0};
+
+        regions.values().forEach(region -> {
+            for(int index = 0; index < region.length(); ++index) {
+                count[0] += Long.bitCount(region.get(index));
+            }
+        });
+
+        return count[0];
+    }
+
+}
@@ -0,0 +1,59 @@
+package net.sothatsit.blockstore.chunkstore;
+
+/**
+ * Notified of changes to the blocks of loaded chunk stores. Called while the store's write lock is held,
+ * so calls for one store are never concurrent and arrive in the order the changes were made.
+ */
+public interface StoreListener {
+
+    /**
+     * Called after the value of one metadata key of a block changes, where value is null if it was removed.
+     */
+    public default void onMetaValue(ChunkLoc chunkLoc, int blockIndex, int plugin, int key, Object value) {
+
+    }
+
+    /**
+     * Called after all of the metadata of a block is replaced, where meta is null if it was removed.
+     */
+    public default void onBlockMeta(ChunkLoc chunkLoc, int blockIndex, BlockMeta meta) {
+
+    }
+
+    /**
+     * Called with the number of placed blocks and blocks with metadata in the store when the listener is set,
+     * and again after every change that may have changed either.
+     */
+    public default void onCounts(ChunkLoc chunkLoc, int placed, int metaBlocks) {
+
+    }
+
+    /**
+     * Returns a listener that passes every call on to each of listeners in order.
+     */
+    public static StoreListener combine(StoreListener... listeners) {
+        return new StoreListener() {
+            @Override
+            public void onMetaValue(ChunkLoc chunkLoc, int blockIndex, int plugin, int key, Object value) {
+                for(StoreListener listener : listeners) {
+                    listener.onMetaValue(chunkLoc, blockIndex, plugin, key, value);
+                }
+            }
+
+            @Override
+            public void onBlockMeta(ChunkLoc chunkLoc, int blockIndex, BlockMeta meta) {
+                for(StoreListener listener : listeners) {
+                    listener.onBlockMeta(chunkLoc, blockIndex, meta);
+                }
+            }
+
+            @Override
+            public void onCounts(ChunkLoc chunkLoc, int placed, int metaBlocks) {
+                for(StoreListener listener : listeners) {
+                    listener.onCounts(chunkLoc, placed, metaBlocks);
+                }
+            }
+        };
+    }
+
+}
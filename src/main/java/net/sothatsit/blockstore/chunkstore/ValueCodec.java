@@ -0,0 +1,347 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+
+public final class ValueCodec {
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int BOOLEAN = 2;
+    private static final int BYTE = 3;
+    private static final int SHORT = 4;
+    private static final int INT = 5;
+    private static final int LONG = 6;
+    private static final int FLOAT = 7;
+    private static final int DOUBLE = 8;
+    private static final int ARRAY = 9;
+    private static final int PRIMITIVE_BOOLEAN = 10;
+    private static final int PRIMITIVE_BYTE = 11;
+    private static final int PRIMITIVE_SHORT = 12;
+    private static final int PRIMITIVE_INT = 13;
+    private static final int PRIMITIVE_LONG = 14;
+    private static final int PRIMITIVE_FLOAT = 15;
+    private static final int PRIMITIVE_DOUBLE = 16;
+
+    // The most elements in an array, or bytes in a string, so a corrupt length can't allocate gigabytes
+    public static final int MAX_LENGTH = 1 << 20;
+
+    private ValueCodec() {}
+
+    public static void writeValue(DataOutput out, Object value) throws IOException {
+        if(value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+
+        Class<?> type = value.getClass();
+
+        if(type.isArray()) {
+            out.writeByte(ARRAY);
+            writeType(out, type.getComponentType());
+            writeArray(out, value);
+            return;
+        }
+
+        int tag = getTag(type);
+        out.writeByte(tag);
+
+        switch(tag) {
+            case STRING:
+                writeString(out, (String) value);
+                break;
+            case BOOLEAN:
+                out.writeBoolean((Boolean) value);
+                break;
+            case BYTE:
+                out.writeByte((Byte) value);
+                break;
+            case SHORT:
+                out.writeShort((Short) value);
+                break;
+            case INT:
+                out.writeInt((Integer) value);
+                break;
+            case LONG:
+                out.writeLong((Long) value);
+                break;
+            case FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            default:
+                throw new IOException("Unable to write value of type " + type.getName());
+        }
+    }
+
+    public static Object readValue(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+
+        switch(tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case BOOLEAN:
+                return in.readBoolean();
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return in.readShort();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case ARRAY:
+                return readArray(in, readType(in));
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    private static int getTag(Class<?> type) throws IOException {
+        if(type == String.class)
+            return STRING;
+        if(type == Boolean.class)
+            return BOOLEAN;
+        if(type == Byte.class)
+            return BYTE;
+        if(type == Short.class)
+            return SHORT;
+        if(type == Integer.class)
+            return INT;
+        if(type == Long.class)
+            return LONG;
+        if(type == Float.class)
+            return FLOAT;
+        if(type == Double.class)
+            return DOUBLE;
+        if(type == boolean.class)
+            return PRIMITIVE_BOOLEAN;
+        if(type == byte.class)
+            return PRIMITIVE_BYTE;
+        if(type == short.class)
+            return PRIMITIVE_SHORT;
+        if(type == int.class)
+            return PRIMITIVE_INT;
+        if(type == long.class)
+            return PRIMITIVE_LONG;
+        if(type == float.class)
+            return PRIMITIVE_FLOAT;
+        if(type == double.class)
+            return PRIMITIVE_DOUBLE;
+
+        throw new IOException("Unable to write value of type " + type.getName());
+    }
+
+    private static void writeType(DataOutput out, Class<?> type) throws IOException {
+        if(type.isArray()) {
+            out.writeByte(ARRAY);
+            writeType(out, type.getComponentType());
+            return;
+        }
+
+        out.writeByte(getTag(type));
+    }
+
+    private static Class<?> readType(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+
+        switch(tag) {
+            case STRING:
+                return String.class;
+            case BOOLEAN:
+                return Boolean.class;
+            case BYTE:
+                return Byte.class;
+            case SHORT:
+                return Short.class;
+            case INT:
+                return Integer.class;
+            case LONG:
+                return Long.class;
+            case FLOAT:
+                return Float.class;
+            case DOUBLE:
+                return Double.class;
+            case PRIMITIVE_BOOLEAN:
+                return boolean.class;
+            case PRIMITIVE_BYTE:
+                return byte.class;
+            case PRIMITIVE_SHORT:
+                return short.class;
+            case PRIMITIVE_INT:
+                return int.class;
+            case PRIMITIVE_LONG:
+                return long.class;
+            case PRIMITIVE_FLOAT:
+                return float.class;
+            case PRIMITIVE_DOUBLE:
+                return double.class;
+            case ARRAY:
+                return Array.newInstance(readType(in), 0).getClass();
+            default:
+                throw new IOException("Unknown type tag " + tag);
+        }
+    }
+
+    private static void writeArray(DataOutput out, Object array) throws IOException {
+        int length = Array.getLength(array);
+        writeLength(out, length);
+
+        if(array instanceof boolean[]) {
+            for(boolean value : (boolean[]) array) {
+                out.writeBoolean(value);
+            }
+        } else if(array instanceof byte[]) {
+            out.write((byte[]) array);
+        } else if(array instanceof short[]) {
+            for(short value : (short[]) array) {
+                out.writeShort(value);
+            }
+        } else if(array instanceof int[]) {
+            for(int value : (int[]) array) {
+                out.writeInt(value);
+            }
+        } else if(array instanceof long[]) {
+            for(long value : (long[]) array) {
+                out.writeLong(value);
+            }
+        } else if(array instanceof float[]) {
+            for(float value : (float[]) array) {
+                out.writeFloat(value);
+            }
+        } else if(array instanceof double[]) {
+            for(double value : (double[]) array) {
+                out.writeDouble(value);
+            }
+        } else {
+            for(Object value : (Object[]) array) {
+                writeValue(out, value);
+            }
+        }
+    }
+
+    private static Object readArray(DataInput in, Class<?> componentType) throws IOException {
+        int length = readLength(in);
+
+        if(componentType == boolean.class) {
+            boolean[] array = new boolean[length];
+            for(int i = 0; i < length; ++i) {
+                array[i] = in.readBoolean();
+            }
+            return array;
+        } else if(componentType == byte.class) {
+            byte[] array = new byte[length];
+            in.readFully(array);
+            return array;
+        } else if(componentType == short.class) {
+            short[] array = new short[length];
+            for(int i = 0; i < length; ++i) {
+                array[i] = in.readShort();
+            }
+            return array;
+        } else if(componentType == int.class) {
+            int[] array = new int[length];
+            for(int i = 0; i < length; ++i) {
+                array[i] = in.readInt();
+            }
+            return array;
+        } else if(componentType == long.class) {
+            long[] array = new long[length];
+            for(int i = 0; i < length; ++i) {
+                array[i] = in.readLong();
+            }
+            return array;
+        } else if(componentType == float.class) {
+            float[] array = new float[length];
+            for(int i = 0; i < length; ++i) {
+                array[i] = in.readFloat();
+            }
+            return array;
+        } else if(componentType == double.class) {
+            double[] array = new double[length];
+            for(int i = 0; i < length; ++i) {
+                array[i] = in.readDouble();
+            }
+            return array;
+        }
+
+        Object[] array = (Object[]) Array.newInstance(componentType, length);
+
+        for(int i = 0; i < length; ++i) {
+            Object value = readValue(in);
+
+            if(value != null && !componentType.isInstance(value))
+                throw new IOException("Array element of type " + value.getClass().getName()
+                        + " does not match array type " + componentType.getName());
+
+            array[i] = value;
+        }
+
+        return array;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        writeLength(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLength(DataOutput out, int length) throws IOException {
+        if(length > MAX_LENGTH)
+            throw new IOException("Length " + length + " is over the maximum of " + MAX_LENGTH);
+
+        writeVarInt(out, length);
+    }
+
+    private static int readLength(DataInput in) throws IOException {
+        int length = readVarInt(in);
+
+        if(length < 0 || length > MAX_LENGTH)
+            throw new IOException("Invalid length " + length);
+
+        return length;
+    }
+
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+
+        for(int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+
+            if((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("VarInt is too long");
+    }
+
+}
@@ -0,0 +1,298 @@
+package net.sothatsit.blockstore.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongFunction;
+
+/**
+ * An open-addressing map from long keys to values with lock-free, allocation-free reads.
+ * Removed entries keep their slot with a null value until the next resize, so readers
+ * never see a slot change its key.
+ */
+public class LongObjectMap<V> {
+
+    private static final long FREE = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 8;
+
+    private volatile Table<V> table;
+    private volatile int size = 0;
+    private int claimed = 0;
+
+    public LongObjectMap() {
+        this.table = null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public V get(long key) {
+        Table<V> table = this.table;
+
+        if(table == null)
+            return null;
+
+        int index = table.find(key);
+
+        return (index >= 0 ? table.values.get(index) : null);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public synchronized V put(long key, V value) {
+        Checks.ensureTrue(key != FREE, "key cannot be " + FREE);
+        Checks.ensureNonNull(value, "value");
+
+        int index = claim(key);
+        V previous = table.values.getAndSet(index, value);
+
+        if(previous == null) {
+            size += 1;
+        }
+
+        return previous;
+    }
+
+    public V computeIfAbsent(long key, LongFunction<? extends V> function) {
+        V value = get(key);
+
+        if(value != null)
+            return value;
+
+        synchronized (this) {
+            value = get(key);
+
+            if(value != null)
+                return value;
+
+            value = function.apply(key);
+
+            if(value != null) {
+                put(key, value);
+            }
+
+            return value;
+        }
+    }
+
+    public synchronized V remove(long key) {
+        Table<V> table = this.table;
+
+        if(table == null)
+            return null;
+
+        int index = table.find(key);
+
+        if(index < 0)
+            return null;
+
+        V previous = table.values.getAndSet(index, null);
+
+        if(previous != null) {
+            size -= 1;
+        }
+
+        return previous;
+    }
+
+    public synchronized boolean remove(long key, V value) {
+        if(value == null || get(key) != value)
+            return false;
+
+        remove(key);
+        return true;
+    }
+
+    public synchronized boolean replace(long key, V expected, V value) {
+        Checks.ensureNonNull(value, "value");
+
+        if(expected == null || get(key) != expected)
+            return false;
+
+        put(key, value);
+        return true;
+    }
+
+    public synchronized void clear() {
+        this.table = null;
+        this.size = 0;
+        this.claimed = 0;
+    }
+
+    public void forEach(Consumer<? super V> consumer) {
+        Table<V> table = this.table;
+
+        if(table == null)
+            return;
+
+        for(int index = 0; index < table.capacity; ++index) {
+            V value = table.values.get(index);
+
+            if(value != null) {
+                consumer.accept(table.keys.get(index), value);
+            }
+        }
+    }
+
+    public long[] keys() {
+        Table<V> table = this.table;
+
+        if(table == null)
+            return new long[0];
+
+        long[] keys = new long[table.capacity];
+        int count = 0;
+
+        for(int index = 0; index < table.capacity; ++index) {
+            if(table.values.get(index) != null) {
+                keys[count++] = table.keys.get(index);
+            }
+        }
+
+        long[] result = new long[count];
+        System.arraycopy(keys, 0, result, 0, count);
+
+        return result;
+    }
+
+    public List<V> values() {
+        Table<V> table = this.table;
+
+        if(table == null)
+            return new ArrayList<>();
+
+        List<V> values = new ArrayList<>(size);
+
+        for(int index = 0; index < table.capacity; ++index) {
+            V value = table.values.get(index);
+
+            if(value != null) {
+                values.add(value);
+            }
+        }
+
+        return values;
+    }
+
+    private int claim(long key) {
+        Table<V> table = this.table;
+
+        if(table != null) {
+            int index = table.find(key);
+
+            if(index >= 0)
+                return index;
+        }
+
+        if(table == null || (claimed + 1) * 3 > table.capacity * 2) {
+            table = resize(size + 1);
+        }
+
+        int index = table.slot(key);
+
+        while(table.keys.get(index) != FREE) {
+            index = (index + 1) & table.mask;
+        }
+
+        table.keys.set(index, key);
+        claimed += 1;
+
+        return index;
+    }
+
+    private Table<V> resize(int minSize) {
+        int capacity = MIN_CAPACITY;
+
+        while(capacity < minSize * 2) {
+            capacity <<= 1;
+        }
+
+        Table<V> oldTable = this.table;
+        Table<V> newTable = new Table<>(capacity);
+        int newClaimed = 0;
+
+        if(oldTable != null) {
+            for(int index = 0; index < oldTable.capacity; ++index) {
+                V value = oldTable.values.get(index);
+
+                if(value == null)
+                    continue;
+
+                long key = oldTable.keys.get(index);
+                int slot = newTable.slot(key);
+
+                while(newTable.keys.get(slot) != FREE) {
+                    slot = (slot + 1) & newTable.mask;
+                }
+
+                newTable.keys.set(slot, key);
+                newTable.values.set(slot, value);
+                newClaimed += 1;
+            }
+        }
+
+        this.claimed = newClaimed;
+        this.table = newTable;
+
+        return newTable;
+    }
+
+    public interface Consumer<V> {
+
+        public void accept(long key, V value);
+
+    }
+
+    private static final class Table<V> {
+
+        private final int capacity;
+        private final int mask;
+        private final AtomicLongArray keys;
+        private final AtomicReferenceArray<V> values;
+
+        private Table(int capacity) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.keys = new AtomicLongArray(capacity);
+            this.values = new AtomicReferenceArray<>(capacity);
+
+            for(int index = 0; index < capacity; ++index) {
+                keys.set(index, FREE);
+            }
+        }
+
+        private int slot(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+
+            hash ^= (hash >>> 32);
+
+            return ((int) hash ^ ((int) hash >>> 16)) & mask;
+        }
+
+        private int find(long key) {
+            int index = slot(key);
+
+            while(true) {
+                long slotKey = keys.get(index);
+
+                if(slotKey == key)
+                    return index;
+
+                if(slotKey == FREE)
+                    return -1;
+
+                index = (index + 1) & mask;
+            }
+        }
+
+    }
+
+}
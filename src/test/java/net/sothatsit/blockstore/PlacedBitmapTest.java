@@ -0,0 +1,135 @@
+package net.sothatsit.blockstore;
+
+import net.sothatsit.blockstore.chunkstore.BlockContainer;
+import net.sothatsit.blockstore.chunkstore.BlockLoc;
+import org.bukkit.World;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.*;
+
+public class PlacedBitmapTest {
+
+    private static final World WORLD = (World) Proxy.newProxyInstance(World.class.getClassLoader(),
+            new Class<?>[] {World.class}, (proxy, method, args) -> null);
+
+    // Whether the block is placed in the sections copied into the bitmaps under test
+    private static boolean isPlaced(int x, int y, int z) {
+        int hash = x * 0x1F1F1F1F ^ y * 0x5BD1E995 ^ z * 0x27D4EB2D;
+
+        return ((hash ^ (hash >>> 15)) & 3) == 0;
+    }
+
+    private static long[] getSectionWords(int cx, int cy, int cz) {
+        long[] words = new long[BlockContainer.WORDS];
+
+        for(int y = cy << 6; y < (cy << 6) + 64; ++y) {
+            for(int z = cz << 4; z < (cz << 4) + 16; ++z) {
+                for(int x = cx << 4; x < (cx << 4) + 16; ++x) {
+                    if(isPlaced(x, y, z)) {
+                        int blockIndex = BlockLoc.toBlockIndex(x, y, z);
+
+                        words[blockIndex >>> 6] |= 1L << blockIndex;
+                    }
+                }
+            }
+        }
+
+        return words;
+    }
+
+    private static PlacedBitmap query(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        PlacedBitmap bitmap = new PlacedBitmap(WORLD, minX, minY, minZ, maxX, maxY, maxZ);
+
+        // One section past each side is included to check that sections outside of the cuboid are ignored
+        for(int cx = (minX >> 4) - 1; cx <= (maxX >> 4) + 1; ++cx) {
+            for(int cy = (minY >> 6) - 1; cy <= (maxY >> 6) + 1; ++cy) {
+                for(int cz = (minZ >> 4) - 1; cz <= (maxZ >> 4) + 1; ++cz) {
+                    bitmap.copySection(cx, cy, cz, getSectionWords(cx, cy, cz));
+                }
+            }
+        }
+
+        return bitmap;
+    }
+
+    private static void assertCuboid(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        PlacedBitmap bitmap = query(minX, minY, minZ, maxX, maxY, maxZ);
+        long[] bits = bitmap.toLongArray();
+        int sizeX = maxX - minX + 1;
+        int sizeZ = maxZ - minZ + 1;
+        int placed = 0;
+
+        for(int y = minY; y <= maxY; ++y) {
+            for(int z = minZ; z <= maxZ; ++z) {
+                for(int x = minX; x <= maxX; ++x) {
+                    boolean expected = isPlaced(x, y, z);
+                    long index = (x - minX) + sizeX * ((z - minZ) + (long) sizeZ * (y - minY));
+
+                    assertEquals(expected, bitmap.isPlaced(x, y, z));
+                    assertEquals(expected, (bits[(int) (index >>> 6)] & (1L << index)) != 0);
+
+                    if(expected) {
+                        placed += 1;
+                    }
+                }
+            }
+        }
+
+        // Nothing is set past the end of the cuboid in the last word
+        long volume = bitmap.getVolume();
+
+        if((volume & 63) != 0) {
+            assertEquals(0, bits[bits.length - 1] >>> (volume & 63));
+        }
+
+        assertEquals(placed, bitmap.getPlacedCount());
+    }
+
+    @Test
+    public void cuboidsCrossingSectionsAreCopied() {
+        assertCuboid(-20, 50, -37, 19, 70, 12);
+        assertCuboid(5, 0, 5, 40, 130, 40);
+    }
+
+    @Test
+    public void rowsCrossingWordBoundariesAreCopied() {
+        // Row widths that don't divide 64, so rows start at every offset within a word
+        assertCuboid(-3, 10, -3, 33, 12, 30);
+        assertCuboid(-7, -70, -9, 6, -60, 9);
+        assertCuboid(1, 0, 0, 60, 3, 70);
+    }
+
+    @Test
+    public void singleBlockWideCuboidsAreCopied() {
+        assertCuboid(-17, 0, -40, -17, 130, 40);
+        assertCuboid(-40, 20, 15, 40, 25, 15);
+        assertCuboid(16, 63, -16, 16, 64, -16);
+    }
+
+    @Test
+    public void sectionWideCuboidsAreCopied() {
+        // Aligned with one section, and straddling two
+        assertCuboid(-16, 0, -32, -1, 70, 31);
+        assertCuboid(-8, 30, -8, 7, 100, 7);
+        assertCuboid(8, -5, 3, 23, 5, 18);
+    }
+
+    @Test
+    public void placedBlocksAreVisitedWithTheirCoordinates() {
+        PlacedBitmap bitmap = query(-20, 60, -5, 10, 66, 17);
+        int[] count = {0};
+
+        bitmap.forEachPlaced((x, y, z) -> {
+            assertTrue(bitmap.contains(x, y, z));
+            assertTrue(isPlaced(x, y, z));
+
+            count[0] += 1;
+        });
+
+        assertEquals(bitmap.getPlacedCount(), count[0]);
+        assertFalse(bitmap.isPlaced(-21, 60, -5));
+    }
+
+}
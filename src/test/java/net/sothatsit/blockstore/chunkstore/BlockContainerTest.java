@@ -0,0 +1,176 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockContainerTest {
+
+    private static BlockContainer writeAndRead(BlockContainer container) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            container.write(out);
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return BlockContainer.read(in);
+        }
+    }
+
+    private static void assertMatches(BitSet expected, BlockContainer container) {
+        long[] words = new long[BlockContainer.WORDS];
+        long[] expectedWords = expected.toLongArray();
+        System.arraycopy(expectedWords, 0, words, 0, expectedWords.length);
+
+        int runs = 0;
+
+        for(int index = expected.nextSetBit(0); index >= 0; index = expected.nextSetBit(expected.nextClearBit(index))) {
+            runs += 1;
+        }
+
+        assertEquals(expected.cardinality(), container.getCardinality());
+        assertEquals(runs, container.getRunCount());
+        assertArrayEquals(words, container.toWords());
+    }
+
+    @Test
+    public void scatteredBlocksMoveBetweenArrayAndBitmap() {
+        BlockContainer container = BlockContainer.empty();
+
+        // Every other block, so each block is its own run and run containers are never the smallest.
+        // An array of 1366 blocks is the first that is a third larger than a 2048 byte bitmap.
+        for(int index = 0; index < 2 * 1365; index += 2) {
+            container = container.add(index);
+        }
+
+        assertEquals(BlockContainer.TYPE_ARRAY, container.getType());
+
+        container = container.add(2 * 1365);
+
+        assertEquals(BlockContainer.TYPE_BITMAP, container.getType());
+        assertEquals(1366, container.getCardinality());
+
+        // Removing a few blocks doesn't switch back, as the array would not be a quarter smaller.
+        // It is again at 767 blocks, the first array a quarter smaller than the bitmap.
+        for(int index = 2 * 1365; index > 2 * 767; index -= 2) {
+            container = container.remove(index);
+        }
+
+        assertEquals(BlockContainer.TYPE_BITMAP, container.getType());
+        assertEquals(768, container.getCardinality());
+
+        container = container.remove(2 * 767);
+
+        assertEquals(BlockContainer.TYPE_ARRAY, container.getType());
+        assertEquals(767, container.getCardinality());
+        assertTrue(container.contains(2 * 766));
+        assertFalse(container.contains(2 * 767));
+    }
+
+    @Test
+    public void contiguousBlocksMoveBetweenArrayAndRuns() {
+        BlockContainer container = BlockContainer.empty().add(100).add(101);
+
+        assertEquals(BlockContainer.TYPE_ARRAY, container.getType());
+
+        container = container.add(102);
+
+        assertEquals(BlockContainer.TYPE_RUN, container.getType());
+        assertEquals(1, container.getRunCount());
+
+        for(int index = 103; index < BlockContainer.CAPACITY; ++index) {
+            container = container.add(index);
+        }
+
+        assertEquals(BlockContainer.TYPE_RUN, container.getType());
+        assertEquals(BlockContainer.CAPACITY - 100, container.getCardinality());
+
+        // Splitting the run into many runs makes a bitmap smaller
+        for(int index = 101; index < BlockContainer.CAPACITY; index += 4) {
+            container = container.remove(index);
+        }
+
+        assertEquals(BlockContainer.TYPE_BITMAP, container.getType());
+        assertTrue(container.contains(100));
+        assertFalse(container.contains(101));
+        assertTrue(container.contains(102));
+    }
+
+    @Test
+    public void randomChangesMatchABitSet() throws IOException {
+        Random random = new Random(42);
+        BitSet expected = new BitSet(BlockContainer.CAPACITY);
+        BlockContainer container = BlockContainer.empty();
+
+        for(int change = 0; change < 50000; ++change) {
+            // Changes cluster around a moving centre so that every container type is used
+            int centre = (change / 5000) * 1500;
+            int index = Math.floorMod(centre + (int) (random.nextGaussian() * 600), BlockContainer.CAPACITY);
+            boolean value = random.nextInt(3) != 0;
+
+            container = container.set(index, value);
+            expected.set(index, value);
+
+            assertEquals(value, container.contains(index));
+
+            if(change % 1000 == 0) {
+                assertMatches(expected, container);
+                assertMatches(expected, writeAndRead(container));
+            }
+        }
+
+        assertMatches(expected, container);
+    }
+
+    @Test
+    public void eachContainerTypeIsWrittenAndRead() throws IOException {
+        BlockContainer array = BlockContainer.empty().add(0).add(4095).add(BlockContainer.CAPACITY - 1);
+        BlockContainer run = BlockContainer.empty();
+        BlockContainer bitmap = BlockContainer.empty();
+
+        for(int index = 64; index < 4000; ++index) {
+            run = run.add(index);
+        }
+
+        for(int index = 1; index < BlockContainer.CAPACITY; index += 3) {
+            bitmap = bitmap.add(index);
+        }
+
+        assertEquals(BlockContainer.TYPE_ARRAY, array.getType());
+        assertEquals(BlockContainer.TYPE_RUN, run.getType());
+        assertEquals(BlockContainer.TYPE_BITMAP, bitmap.getType());
+
+        for(BlockContainer container : new BlockContainer[] {array, run, bitmap}) {
+            BlockContainer read = writeAndRead(container);
+
+            assertEquals(container.getType(), read.getType());
+            assertEquals(container.getCardinality(), read.getCardinality());
+            assertEquals(container.getRunCount(), read.getRunCount());
+            assertArrayEquals(container.toWords(), read.toWords());
+        }
+
+        assertTrue(writeAndRead(BlockContainer.empty()).isEmpty());
+    }
+
+    @Test
+    public void removingEveryBlockLeavesAnEmptyContainer() {
+        BlockContainer container = BlockContainer.empty();
+
+        for(int index = 0; index < 3000; ++index) {
+            container = container.add(index * 5 % BlockContainer.CAPACITY);
+        }
+
+        for(int index = 0; index < 3000; ++index) {
+            container = container.remove(index * 5 % BlockContainer.CAPACITY);
+        }
+
+        assertTrue(container.isEmpty());
+        assertEquals(0, container.getRunCount());
+    }
+
+}
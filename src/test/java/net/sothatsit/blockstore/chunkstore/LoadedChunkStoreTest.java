@@ -0,0 +1,81 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import org.bukkit.World;
+import org.junit.Test;
+
+import java.io.*;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.*;
+
+public class LoadedChunkStoreTest {
+
+    private static final World WORLD = (World) Proxy.newProxyInstance(World.class.getClassLoader(),
+            new Class<?>[] {World.class}, (proxy, method, args) -> null);
+
+    private static LoadedChunkStore saveAndLoad(LoadedChunkStore store) throws IOException {
+        LoadedChunkStore.Snapshot snapshot = store.snapshot();
+
+        assertFalse("a store with data must not be treated as empty", snapshot.isEmpty());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            snapshot.write(out);
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return LoadedChunkStore.readVersion4(WORLD, store.getChunkLoc(), in);
+        }
+    }
+
+    @Test
+    public void emptyStoreIsEmpty() {
+        LoadedChunkStore store = new LoadedChunkStore(WORLD, new ChunkLoc(0, 0, 0));
+
+        assertTrue(store.isEmpty());
+        assertTrue(store.snapshot().isEmpty());
+    }
+
+    @Test
+    public void metadataOnlyStoreIsNotEmpty() {
+        LoadedChunkStore store = new LoadedChunkStore(WORLD, new ChunkLoc(0, 0, 0));
+
+        store.setMetaValue(42, 1, 2, "value");
+
+        assertFalse(store.isEmpty());
+
+        store.removeMetaValue(42, 1, 2);
+
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    public void metadataOnlyStoreIsSavedAndLoaded() throws IOException {
+        LoadedChunkStore store = new LoadedChunkStore(WORLD, new ChunkLoc(3, 1, -7));
+
+        store.setMetaValue(42, 1, 2, "value");
+
+        LoadedChunkStore loaded = saveAndLoad(store);
+
+        assertFalse(loaded.isPlaced(42));
+        assertEquals("value", loaded.getMetaValue(42, 1, 2));
+    }
+
+    @Test
+    public void placedBlocksAndMetadataAreSavedAndLoaded() throws IOException {
+        LoadedChunkStore store = new LoadedChunkStore(WORLD, new ChunkLoc(0, 0, 0));
+
+        store.setPlaced(7, true);
+        store.setPlaced(4095, true);
+        store.setMetaValue(7, 1, 1, 12);
+
+        LoadedChunkStore loaded = saveAndLoad(store);
+
+        assertTrue(loaded.isPlaced(7));
+        assertTrue(loaded.isPlaced(4095));
+        assertFalse(loaded.isPlaced(8));
+        assertEquals(12, loaded.getMetaValue(7, 1, 1));
+    }
+
+}
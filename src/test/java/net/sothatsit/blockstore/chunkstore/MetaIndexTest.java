@@ -0,0 +1,53 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetaIndexTest {
+
+    @Test
+    public void clearSectionOnlyRemovesThatSection() {
+        MetaIndex index = new MetaIndex("plugin", "key", true);
+        ChunkLoc cleared = new ChunkLoc(-1, 2, -3);
+        ChunkLoc kept = new ChunkLoc(-1, 1, -3);
+
+        index.set(cleared, 0, "a");
+        index.set(cleared, BlockContainer.CAPACITY - 1, "b");
+        index.set(kept, 0, "a");
+        index.set(kept, 100, 7);
+
+        index.clearSection(cleared);
+
+        assertEquals(2, index.size());
+        assertArrayEquals(new long[] {MetaIndex.pack(kept, 0)}, index.getBlocks("a"));
+        assertEquals(0, index.getBlocks("b").length);
+        assertArrayEquals(new long[] {MetaIndex.pack(kept, 100)}, index.getBlocks(7));
+    }
+
+    @Test
+    public void removedValuesAreNotClearedAgain() {
+        MetaIndex index = new MetaIndex("plugin", "key", true);
+        ChunkLoc chunkLoc = new ChunkLoc(5, 0, -9);
+
+        index.set(chunkLoc, 10, "a");
+        index.set(chunkLoc, 10, "b");
+        index.set(chunkLoc, 11, "b");
+        index.set(chunkLoc, 11, null);
+
+        assertEquals(1, index.size());
+
+        index.clearSection(chunkLoc);
+
+        assertEquals(0, index.size());
+        assertEquals(0, index.getBlocks("a").length);
+        assertEquals(0, index.getBlocks("b").length);
+
+        // The section can be filled again once cleared
+        index.set(chunkLoc, 12, "c");
+        index.clearSection(chunkLoc);
+
+        assertEquals(0, index.size());
+    }
+
+}
@@ -0,0 +1,159 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MutationLogTest {
+
+    private static File createFolder() throws IOException {
+        File folder = Files.createTempDirectory("blockstore-log").toFile();
+        folder.deleteOnExit();
+        return folder;
+    }
+
+    private static void deleteFolder(File folder) {
+        File[] files = folder.listFiles();
+
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+
+        folder.delete();
+    }
+
+    private static List<String> replay(File folder) {
+        List<String> records = new ArrayList<>();
+
+        new MutationLog(folder).replay(new MutationLog.Handler() {
+            @Override
+            public void onName(int id, String name) {
+                records.add("name " + id + " " + name);
+            }
+
+            @Override
+            public void onPlaced(long chunkKey, int blockIndex, boolean placed) {
+                records.add("placed " + ChunkLoc.unpack(chunkKey) + " " + blockIndex + " " + placed);
+            }
+
+            @Override
+            public void onMetaSet(long chunkKey, int blockIndex, int plugin, int key, Object value) {
+                String text = (value instanceof int[] ? Arrays.toString((int[]) value) : String.valueOf(value));
+
+                records.add("set " + blockIndex + " " + plugin + " " + key + " " + text);
+            }
+
+            @Override
+            public void onMetaRemove(long chunkKey, int blockIndex, int plugin, int key) {
+                records.add("remove " + blockIndex + " " + plugin + " " + key);
+            }
+
+            @Override
+            public void onBlockState(long chunkKey, int blockIndex, BlockMeta state) {
+                records.add("state " + blockIndex + " " + state.getValue(0, 2));
+            }
+        });
+
+        return records;
+    }
+
+    @Test
+    public void recordsAreReplayedInOrderAcrossSegments() throws IOException {
+        File folder = createFolder();
+
+        try {
+            long chunkKey = ChunkLoc.pack(-3, 1, 7);
+            MutationLog log = new MutationLog(folder);
+            log.start("test log");
+
+            log.logName(0, "plugin");
+            log.logPlaced(chunkKey, 100, true);
+            log.logMetaSet(chunkKey, 100, 0, 1, new int[] {1, 2});
+
+            long segment = log.rotate();
+
+            BlockMeta state = new BlockMeta();
+            state.setValue(0, 2, "x");
+
+            log.logBlockState(chunkKey, 4095, state);
+            log.logMetaRemove(chunkKey, 100, 0, 1);
+            log.close();
+
+            assertEquals(2, segment);
+            assertEquals(Arrays.asList(
+                    "name 0 plugin",
+                    "placed " + new ChunkLoc(-3, 1, 7) + " 100 true",
+                    "set 100 0 1 [1, 2]",
+                    "state 4095 x",
+                    "remove 100 0 1"
+            ), replay(folder));
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    @Test
+    public void truncatedFinalRecordIsSkipped() throws IOException {
+        File folder = createFolder();
+
+        try {
+            MutationLog log = new MutationLog(folder);
+            log.start("test log");
+            log.logPlaced(ChunkLoc.pack(0, 0, 0), 5, true);
+            log.logPlaced(ChunkLoc.pack(0, 0, 0), 6, true);
+            log.close();
+
+            // The start of a placed record, cut off part way through its chunk key
+            try (FileOutputStream out = new FileOutputStream(new File(folder, "1.log"), true)) {
+                out.write(new byte[] {1, 0, 0, 0});
+            }
+
+            List<String> records = replay(folder);
+
+            assertEquals(2, records.size());
+            assertTrue(records.get(1).endsWith(" 6 true"));
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    @Test
+    public void deleteSegmentsBeforeKeepsLaterSegments() throws IOException {
+        File folder = createFolder();
+
+        try {
+            MutationLog log = new MutationLog(folder);
+            log.start("test log");
+            log.logPlaced(ChunkLoc.pack(0, 0, 0), 1, true);
+
+            // As in a checkpoint, records logged after the rotation are not covered by the saves that follow it
+            long segment = log.rotate();
+            log.logPlaced(ChunkLoc.pack(0, 0, 0), 2, true);
+            log.flush();
+
+            assertTrue(log.deleteSegmentsBefore(segment));
+            log.close();
+
+            assertFalse(new File(folder, "1.log").exists());
+            assertTrue(new File(folder, segment + ".log").exists());
+
+            List<String> records = replay(folder);
+
+            assertEquals(1, records.size());
+            assertTrue(records.get(0).endsWith(" 2 true"));
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+}
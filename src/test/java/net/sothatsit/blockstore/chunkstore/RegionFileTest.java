@@ -0,0 +1,161 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.BitSet;
+
+import static org.junit.Assert.*;
+
+public class RegionFileTest {
+
+    private static final int Y_SECTIONS = 4;
+
+    private static File createFile() throws IOException {
+        File file = Files.createTempFile("blockstore-region", ".bsr").toFile();
+        file.deleteOnExit();
+
+        // The region file is created by RegionFile when it doesn't exist
+        file.delete();
+        return file;
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+
+        for(int index = 0; index < length; ++index) {
+            data[index] = (byte) (index * 31 + seed);
+        }
+
+        return data;
+    }
+
+    private static int toIndex(ChunkLoc chunkLoc) {
+        int relx = chunkLoc.x & (RegionFile.REGION_SIZE - 1);
+        int relz = chunkLoc.z & (RegionFile.REGION_SIZE - 1);
+
+        return relx + RegionFile.REGION_SIZE * (relz + RegionFile.REGION_SIZE * chunkLoc.y);
+    }
+
+    private static void write(RegionFile region, ChunkLoc chunkLoc, byte[] data) throws IOException {
+        region.write(chunkLoc, data, data.length);
+    }
+
+    @Test
+    public void storesAreReadBackAfterReopening() throws IOException {
+        File file = createFile();
+
+        ChunkLoc grown = new ChunkLoc(-1, 0, -32);
+        ChunkLoc shrunk = new ChunkLoc(-20, 3, -5);
+        ChunkLoc deleted = new ChunkLoc(-32, 1, -1);
+        ChunkLoc untouched = new ChunkLoc(-7, 2, -9);
+
+        try {
+            int[] sectors = new int[4];
+
+            try (RegionFile region = new RegionFile(file, Y_SECTIONS)) {
+                write(region, grown, data(100, 1));
+                write(region, shrunk, data(1000, 2));
+                write(region, deleted, data(300, 3));
+                write(region, untouched, data(600, 4));
+
+                write(region, grown, data(700, 5));
+                write(region, shrunk, data(10, 6));
+                region.delete(deleted);
+
+                assertFalse(region.hasEntry(deleted));
+                assertNull(region.read(deleted));
+
+                sectors[0] = region.getSectorHint(grown);
+                sectors[1] = region.getSectorHint(shrunk);
+                sectors[2] = region.getSectorHint(deleted);
+                sectors[3] = region.getSectorHint(untouched);
+            }
+
+            try (RegionFile region = new RegionFile(file, 1)) {
+                assertEquals(Y_SECTIONS, region.getYSections());
+
+                assertArrayEquals(data(700, 5), region.read(grown));
+                assertArrayEquals(data(10, 6), region.read(shrunk));
+                assertArrayEquals(data(600, 4), region.read(untouched));
+                assertNull(region.read(deleted));
+
+                assertEquals(sectors[0], region.getSectorHint(grown));
+                assertEquals(sectors[1], region.getSectorHint(shrunk));
+                assertEquals(-1, sectors[2]);
+                assertEquals(-1, region.getSectorHint(deleted));
+                assertEquals(sectors[3], region.getSectorHint(untouched));
+
+                BitSet expected = new BitSet();
+                expected.set(toIndex(grown));
+                expected.set(toIndex(shrunk));
+                expected.set(toIndex(untouched));
+
+                assertEquals(expected, region.getEntries());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void overwritesGoToNewSectorsAndFreeTheOldOnes() throws IOException {
+        File file = createFile();
+
+        ChunkLoc first = new ChunkLoc(0, 0, 0);
+        ChunkLoc second = new ChunkLoc(1, 0, 0);
+        ChunkLoc third = new ChunkLoc(2, 0, 0);
+
+        try (RegionFile region = new RegionFile(file, Y_SECTIONS)) {
+            write(region, first, data(500, 1));
+            write(region, second, data(500, 2));
+
+            int oldSector = region.getSectorHint(first);
+
+            // Even a store that still fits is written to new sectors, so the old copy survives a failed write
+            write(region, first, data(400, 3));
+
+            int newSector = region.getSectorHint(first);
+
+            assertTrue(newSector != oldSector);
+            assertTrue(newSector > region.getSectorHint(second));
+
+            // The sectors of the first copy are free again once the table points at the new copy
+            write(region, third, data(200, 4));
+
+            assertEquals(oldSector, region.getSectorHint(third));
+
+            assertArrayEquals(data(400, 3), region.read(first));
+            assertArrayEquals(data(500, 2), region.read(second));
+            assertArrayEquals(data(200, 4), region.read(third));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void storesOutsideTheRegionHeightAreRejected() throws IOException {
+        File file = createFile();
+
+        try (RegionFile region = new RegionFile(file, Y_SECTIONS)) {
+            ChunkLoc above = new ChunkLoc(0, Y_SECTIONS, 0);
+
+            assertFalse(region.hasEntry(above));
+            assertNull(region.read(above));
+
+            try {
+                write(region, above, data(10, 1));
+                fail("a store above the region must not be written");
+            } catch (IOException e) {
+                // expected
+            }
+
+            assertTrue(region.getEntries().isEmpty());
+        } finally {
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class StoreCacheTest {
+
+    @Test
+    public void pendingWriteBackIsFoundWithoutWaiting() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Map<Long, byte[]> disk = new ConcurrentHashMap<>();
+
+        StoreCache.WriteBack writeBack = (key, data) -> {
+            started.countDown();
+
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            disk.put(key, data);
+        };
+
+        StoreCache cache = new StoreCache(500);
+        cache.put(writeBack, 1, new byte[300], true);
+
+        // Evicts the first entry, which blocks in the write back until released
+        Thread evicting = new Thread(() -> cache.put(writeBack, 2, new byte[300], false));
+        evicting.start();
+        started.await();
+
+        assertTrue(cache.contains(writeBack, 1));
+        assertTrue(cache.contains(writeBack, 2));
+
+        StoreCache.Entry entry = cache.take(writeBack, 1);
+
+        assertNotNull(entry);
+        assertTrue(entry.isDirty());
+        assertEquals(300, entry.getData().length);
+
+        release.countDown();
+        evicting.join();
+
+        assertTrue(disk.containsKey(1L));
+        assertFalse(cache.contains(writeBack, 1));
+        assertEquals(0, cache.getDirtyCount());
+    }
+
+    @Test
+    public void flushWaitsForPendingWriteBacks() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Map<Long, byte[]> disk = new ConcurrentHashMap<>();
+
+        StoreCache.WriteBack writeBack = (key, data) -> {
+            started.countDown();
+
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            disk.put(key, data);
+        };
+
+        StoreCache cache = new StoreCache(500);
+        cache.put(writeBack, 1, new byte[300], true);
+
+        Thread evicting = new Thread(() -> cache.put(writeBack, 2, new byte[300], false));
+        evicting.start();
+        started.await();
+
+        Thread releasing = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+
+            release.countDown();
+        });
+        releasing.start();
+
+        assertTrue(cache.flush(writeBack));
+        assertTrue(disk.containsKey(1L));
+
+        evicting.join();
+        releasing.join();
+    }
+
+    @Test
+    public void failedWriteBackIsKept() {
+        StoreCache.WriteBack failing = (key, data) -> {
+            throw new IOException("expected failure");
+        };
+
+        StoreCache cache = new StoreCache(500);
+        cache.put(failing, 1, new byte[300], true);
+        cache.put(failing, 2, new byte[300], false);
+
+        assertTrue(cache.contains(failing, 1));
+        assertEquals(1, cache.getDirtyCount());
+        assertFalse(cache.clear(failing));
+    }
+
+}
@@ -0,0 +1,131 @@
+package net.sothatsit.blockstore.chunkstore;
+
+import net.sothatsit.blockstore.util.LongObjectMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares looking up loaded stores in a LongObjectMap keyed by ChunkLoc.pack, as ChunkManager does,
+ * against the ConcurrentHashMap keyed by a ChunkLoc allocated for each lookup that it replaced.
+ * The old map's keys hash as ChunkLoc did before, with x ^ y ^ z, which collides for many nearby sections.
+ * Lookups follow random walks through a square of loaded chunks, as players moving around would.
+ * After mvn test-compile, run org.openjdk.jmh.Main on the test classpath with the name of this class.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreMapBenchmark {
+
+    private static final int Y_SECTIONS = 4;
+    private static final int LOOKUPS = 1 << 16;
+
+    // The width in chunks of the square of loaded chunks, with Y_SECTIONS stores in each.
+    // 159 chunks wide is 101,124 stores.
+    @Param({"16", "159"})
+    public int width;
+
+    private LongObjectMap<Object> packedMap;
+    private Map<OldChunkLoc, Object> chunkLocMap;
+
+    private int[] xs;
+    private int[] ys;
+    private int[] zs;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        packedMap = new LongObjectMap<>();
+        chunkLocMap = new ConcurrentHashMap<>();
+
+        int min = -width / 2;
+
+        for(int cx = min; cx < min + width; ++cx) {
+            for(int cz = min; cz < min + width; ++cz) {
+                for(int cy = 0; cy < Y_SECTIONS; ++cy) {
+                    Object store = new Object();
+
+                    packedMap.put(ChunkLoc.pack(cx, cy, cz), store);
+                    chunkLocMap.put(new OldChunkLoc(cx, cy, cz), store);
+                }
+            }
+        }
+
+        Random random = new Random(42);
+
+        xs = new int[LOOKUPS];
+        ys = new int[LOOKUPS];
+        zs = new int[LOOKUPS];
+
+        // 100 walks, each moving at most one chunk at a time and staying inside the loaded square
+        int walkLength = LOOKUPS / 100 + 1;
+        int x = 0;
+        int z = 0;
+
+        for(int index = 0; index < LOOKUPS; ++index) {
+            if(index % walkLength == 0) {
+                x = min + random.nextInt(width);
+                z = min + random.nextInt(width);
+            } else {
+                x = Math.max(min, Math.min(min + width - 1, x + random.nextInt(3) - 1));
+                z = Math.max(min, Math.min(min + width - 1, z + random.nextInt(3) - 1));
+            }
+
+            xs[index] = x;
+            ys[index] = random.nextInt(Y_SECTIONS);
+            zs[index] = z;
+        }
+    }
+
+    @Benchmark
+    public Object packedGet() {
+        int index = next;
+        next = (index + 1) & (LOOKUPS - 1);
+
+        return packedMap.get(ChunkLoc.pack(xs[index], ys[index], zs[index]));
+    }
+
+    @Benchmark
+    public Object chunkLocGet() {
+        int index = next;
+        next = (index + 1) & (LOOKUPS - 1);
+
+        return chunkLocMap.get(new OldChunkLoc(xs[index], ys[index], zs[index]));
+    }
+
+    private static final class OldChunkLoc {
+
+        private final int x;
+        private final int y;
+        private final int z;
+
+        private OldChunkLoc(int x, int y, int z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public int hashCode() {
+            return Integer.hashCode(x) ^ Integer.hashCode(y) ^ Integer.hashCode(z);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof OldChunkLoc))
+                return false;
+
+            OldChunkLoc other = (OldChunkLoc) obj;
+
+            return other.x == x && other.y == y && other.z == z;
+        }
+
+    }
+
+}
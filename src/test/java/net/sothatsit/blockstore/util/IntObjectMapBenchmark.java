@@ -0,0 +1,94 @@
+package net.sothatsit.blockstore.util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-block metadata map of a chunk store, IntObjectMap, against the ConcurrentHashMap with
+ * boxed keys that it replaced. Keys are block indexes within a chunk section, and size is the number of
+ * blocks with metadata. After mvn test-compile, run org.openjdk.jmh.Main on the test classpath with the
+ * name of this class.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntObjectMapBenchmark {
+
+    private static final int BLOCKS = 16 * 64 * 16;
+    private static final int LOOKUPS = 1024;
+
+    @Param({"8", "64", "512"})
+    public int size;
+
+    private IntObjectMap<Object> primitiveMap;
+    private Map<Integer, Object> boxedMap;
+
+    // Half of the lookups are of blocks with metadata and half are of blocks without
+    private int[] lookups;
+    // Blocks without metadata, which are added and then removed again so the maps keep their size
+    private int[] absent;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        int[] keys = random.ints(0, BLOCKS).distinct().limit(size * 2).toArray();
+
+        primitiveMap = new IntObjectMap<>();
+        boxedMap = new ConcurrentHashMap<>();
+
+        for(int index = 0; index < size; ++index) {
+            primitiveMap.put(keys[index], new Object());
+            boxedMap.put(keys[index], new Object());
+        }
+
+        lookups = new int[LOOKUPS];
+        absent = new int[LOOKUPS];
+
+        for(int index = 0; index < LOOKUPS; ++index) {
+            lookups[index] = keys[random.nextInt(keys.length)];
+            absent[index] = keys[size + random.nextInt(size)];
+        }
+    }
+
+    private int nextKey(int[] keys) {
+        int key = keys[next];
+        next = (next + 1) % LOOKUPS;
+        return key;
+    }
+
+    @Benchmark
+    public Object primitiveGet() {
+        return primitiveMap.get(nextKey(lookups));
+    }
+
+    @Benchmark
+    public Object boxedGet() {
+        return boxedMap.get(nextKey(lookups));
+    }
+
+    @Benchmark
+    public void primitivePutRemove(Blackhole blackhole) {
+        int key = nextKey(absent);
+
+        blackhole.consume(primitiveMap.put(key, this));
+        blackhole.consume(primitiveMap.remove(key));
+    }
+
+    @Benchmark
+    public void boxedPutRemove(Blackhole blackhole) {
+        int key = nextKey(absent);
+
+        blackhole.consume(boxedMap.put(key, this));
+        blackhole.consume(boxedMap.remove(key));
+    }
+
+}